@@ -0,0 +1,97 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.content.Intent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How BluetoothService puts an intent on the wire and takes it off again: the
+ * legacy URI form, the binary codec and the Deflate wrapper around it.
+ *
+ * Encoded sizes are printed once per trial, so bytes saved can be read next to the
+ * time spent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IntentCodecBenchmark {
+
+    @Param({IntentCorpus.MUSIC, IntentCorpus.NOTIFICATION, IntentCorpus.BULK})
+    public String intent;
+
+    private final CodecWriter mOut = new CodecWriter();
+    private final FrameCompressor mCompressor = new FrameCompressor();
+
+    private Intent mIntent;
+    private String mUri;
+    private byte[] mBinary;
+    private byte[] mCompressed;
+
+    @Setup
+    public void setup() {
+        mIntent = IntentCorpus.create(intent);
+        mUri = UriIntentCodec.encode(mIntent);
+        mBinary = IntentCodec.encode(mIntent);
+
+        CodecWriter compressed = mCompressor.compress(mBinary, 0, mBinary.length);
+        mCompressed = compressed != null ? compressed.toByteArray() : null;
+
+        System.out.println(intent + ": uri " + mUri.getBytes().length + " B, binary " + mBinary.length
+                + " B, deflated " + (mCompressed != null ? mCompressed.length + " B" : "not smaller"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mCompressor.release();
+    }
+
+    @Benchmark
+    public byte[] uriEncode() {
+        return UriIntentCodec.encode(mIntent).getBytes();
+    }
+
+    @Benchmark
+    public Intent uriDecode() throws URISyntaxException {
+        return UriIntentCodec.decode(mUri);
+    }
+
+    @Benchmark
+    public int binaryEncode() {
+        mOut.reset();
+        IntentCodec.encode(mIntent, mOut);
+        return mOut.size();
+    }
+
+    @Benchmark
+    public Intent binaryDecode() throws IOException {
+        return IntentCodec.decode(mBinary, 0, mBinary.length);
+    }
+
+    /**
+     * null where compressing doesn't pay off, BluetoothService then sends the frame as it is
+     */
+    @Benchmark
+    public CodecWriter deflate() {
+        return mCompressor.compress(mBinary, 0, mBinary.length);
+    }
+
+    @Benchmark
+    public byte[] inflate() throws IOException {
+        if (mCompressed == null) {
+            return mBinary;
+        }
+        return mCompressor.decompress(mCompressed, 0, mCompressed.length);
+    }
+}
@@ -0,0 +1,79 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Intents the benchmarks send, from the sample app's music command to an activity
+ * carrying binary extras.
+ */
+public class IntentCorpus {
+    // a media button press, what MusicPusherSample sends
+    public static final String MUSIC = "music";
+    // a notification mirrored from the phone: component, data, category and a dozen extras
+    public static final String NOTIFICATION = "notification";
+    // an activity with a 4 KB byte[] and a list, the extras toUri() can't carry itself
+    public static final String BULK = "bulk";
+
+    private IntentCorpus() {
+    }
+
+    public static Intent create(String name) {
+        if (MUSIC.equals(name)) {
+            return music("togglepause");
+        } else if (NOTIFICATION.equals(name)) {
+            return notification(1);
+        } else if (BULK.equals(name)) {
+            return bulk();
+        }
+        throw new IllegalArgumentException("unknown intent: " + name);
+    }
+
+    public static Intent music(String command) {
+        Intent intent = new Intent("com.android.music.musicservicecommand");
+        intent.putExtra("command", command);
+        return intent;
+    }
+
+    public static Intent notification(int id) {
+        Intent intent = new Intent("com.masterbaron.intenttunnel.NOTIFICATION_POSTED");
+        intent.setComponent(new ComponentName("com.masterbaron.intenttunnel",
+                "com.masterbaron.intenttunnel.NotificationReceiver"));
+        intent.setData(Uri.parse("content://com.android.sms/inbox/" + id));
+        intent.addCategory("android.intent.category.DEFAULT");
+        intent.setFlags(0x10000000);
+        intent.putExtra("android.title", "Dinner");
+        intent.putExtra("android.text", "Are we still on for 7? I booked the table by the window.");
+        intent.putExtra("android.subText", "Messages");
+        intent.putExtra("android.showWhen", true);
+        intent.putExtra("android.progress", 0);
+        intent.putExtra("android.progressMax", 100);
+        intent.putExtra("when", 1389900000000L + id);
+        intent.putExtra("id", id);
+        intent.putExtra("priority", (byte) 1);
+        intent.putExtra("score", 0.75f);
+        intent.putExtra("latitude", 52.3702157d);
+        intent.putExtra("tag", "sms:" + id);
+        return intent;
+    }
+
+    public static Intent bulk() {
+        byte[] thumbnail = new byte[4096];
+        new Random(1).nextBytes(thumbnail);
+        ArrayList<String> recipients = new ArrayList<String>();
+        for (int i = 0; i < 8; i++) {
+            recipients.add("contact" + i + "@example.com");
+        }
+
+        Intent intent = new Intent("android.intent.action.SEND");
+        intent.setType("image/jpeg");
+        intent.putExtra("android.intent.extra.TEXT", "sent from Glass");
+        intent.putExtra("thumbnail", thumbnail);
+        intent.putStringArrayListExtra("recipients", recipients);
+        return intent;
+    }
+}
@@ -0,0 +1,61 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.os.Message;
+
+import ktlab.lib.connection.Connection;
+import ktlab.lib.connection.TransportConnection;
+
+/**
+ * BluetoothService over a LoopbackLink. The server side listens again right after
+ * its connection is lost, like ServerService without the delays.
+ */
+class LinkService extends BluetoothService {
+    private static final int MESSAGE_RECONNECT = 3200;
+    private static final long RECONNECT_DELAY = 50;
+
+    private final LoopbackLink mLink;
+    private final boolean isServer;
+
+    LinkService(RouterService routerService, LoopbackLink link, boolean server) {
+        super(routerService);
+        mLink = link;
+        isServer = server;
+    }
+
+    @Override
+    protected Connection createNewBTConnection() {
+        return new TransportConnection(isServer ? mLink.server() : mLink.client(), this, false);
+    }
+
+    @Override
+    protected boolean isBTServer() {
+        return isServer;
+    }
+
+    @Override
+    public void onConnectionLost() {
+        boolean enabled = isEnabled();
+        super.onConnectionLost();
+        if (isServer && enabled) {
+            mHandler.sendEmptyMessageDelayed(MESSAGE_RECONNECT, RECONNECT_DELAY);
+        }
+    }
+
+    @Override
+    public void onConnectionFailed() {
+        boolean enabled = isEnabled();
+        super.onConnectionFailed();
+        if (isServer && enabled) {
+            mHandler.sendEmptyMessageDelayed(MESSAGE_RECONNECT, RECONNECT_DELAY);
+        }
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        if (msg.what == MESSAGE_RECONNECT) {
+            startConnection();
+            return true;
+        }
+        return super.handleMessage(msg);
+    }
+}
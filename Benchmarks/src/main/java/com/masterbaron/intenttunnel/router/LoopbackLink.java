@@ -0,0 +1,108 @@
+package com.masterbaron.intenttunnel.router;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+import ktlab.lib.connection.Transport;
+import ktlab.lib.connection.TransportConnector;
+import ktlab.lib.connection.transport.PipeTransport;
+
+/**
+ * Stands in for the bluetooth link to one router's server: the server end waits in
+ * connect() for a client, every connection is a new in-memory pipe. kill() breaks
+ * the current one the way a radio dropping out does.
+ */
+class LoopbackLink {
+    // a client gives up when nobody is listening, like a bluetooth connect does
+    private static final long CONNECT_TIMEOUT = 1000;
+
+    private final SynchronousQueue<PipeTransport> mAccepting = new SynchronousQueue<PipeTransport>();
+    private volatile PipeTransport[] mCurrent;
+    private volatile int mConnects = 0;
+
+    /**
+     * @return connector waiting for one client
+     */
+    TransportConnector server() {
+        return new TransportConnector() {
+            private volatile Thread mWaiting;
+
+            @Override
+            public Transport connect() throws IOException {
+                mWaiting = Thread.currentThread();
+                try {
+                    return mAccepting.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("stopped listening");
+                } finally {
+                    mWaiting = null;
+                }
+            }
+
+            @Override
+            public void cancel() {
+                Thread waiting = mWaiting;
+                if (waiting != null) {
+                    waiting.interrupt();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return connector handing a new pipe to the listening server
+     */
+    TransportConnector client() {
+        return new TransportConnector() {
+            @Override
+            public Transport connect() throws IOException {
+                PipeTransport[] pair = PipeTransport.createPair();
+                try {
+                    if (!mAccepting.offer(pair[1], CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        throw new ConnectException("nobody listening");
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("connect interrupted");
+                }
+                mCurrent = pair;
+                mConnects++;
+                return pair[0];
+            }
+
+            @Override
+            public void cancel() {
+            }
+        };
+    }
+
+    /**
+     * @return connections made so far
+     */
+    int getConnects() {
+        return mConnects;
+    }
+
+    /**
+     * close both ends of the current connection
+     *
+     * @return false if there is none
+     */
+    boolean kill() {
+        PipeTransport[] pair = mCurrent;
+        if (pair == null) {
+            return false;
+        }
+        mCurrent = null;
+        for (PipeTransport end : pair) {
+            try {
+                end.close();
+            } catch (IOException e) {
+                // DO NOTHING
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,200 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * RouterService on a looper thread of its own, its client and server talking over
+ * LoopbackLinks. Broadcasts it dispatches are counted by their EXTRA_NUMBER.
+ */
+class LoopbackRouter extends RouterService {
+    static final String EXTRA_NUMBER = "n";
+
+    /**
+     * runs on the router's thread once it is constructed, before onCreate
+     */
+    interface Setup {
+        void beforeCreate(RouterService router);
+    }
+
+    private final LoopbackLink mClientLink;
+    private final LoopbackLink mServerLink;
+    private Looper mLooper;
+    private Thread mThread;
+    private Messenger mMessenger;
+    private BluetoothService mServer;
+
+    // times each number was broadcast, and broadcasts in all
+    private final HashMap<Integer, Integer> mDelivered = new HashMap<Integer, Integer>();
+    private int mDeliveries = 0;
+
+    private LoopbackRouter(LoopbackLink clientLink, LoopbackLink serverLink) {
+        mClientLink = clientLink;
+        mServerLink = serverLink;
+    }
+
+    /**
+     * @param clientLink link to the peer's server
+     * @param serverLink link this router listens on
+     * @param setup      null for the defaults
+     */
+    static LoopbackRouter start(final LoopbackLink clientLink, final LoopbackLink serverLink, final Setup setup)
+            throws InterruptedException {
+        final AtomicReference<LoopbackRouter> started = new AtomicReference<LoopbackRouter>();
+        final CountDownLatch created = new CountDownLatch(1);
+        Thread thread = new Thread("router") {
+            @Override
+            public void run() {
+                Looper.prepare();
+                LoopbackRouter router = new LoopbackRouter(clientLink, serverLink);
+                router.mLooper = Looper.myLooper();
+                router.mThread = this;
+                if (setup != null) {
+                    setup.beforeCreate(router);
+                }
+                router.onCreate();
+                router.mMessenger = new Messenger(router.onBind(null));
+                started.set(router);
+                created.countDown();
+                Looper.loop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        created.await();
+        return started.get();
+    }
+
+    @Override
+    protected BluetoothService createClientService() {
+        return new LinkService(this, mClientLink, false);
+    }
+
+    @Override
+    protected BluetoothService createServerService() {
+        mServer = new LinkService(this, mServerLink, true);
+        return mServer;
+    }
+
+    BluetoothService getServerService() {
+        return mServer;
+    }
+
+    @Override
+    public boolean isBluetoothEnabled() {
+        return true;
+    }
+
+    @Override
+    public void sendBroadcast(Intent intent) {
+        int number = intent.getIntExtra(EXTRA_NUMBER, -1);
+        synchronized (mDelivered) {
+            Integer count = mDelivered.get(number);
+            mDelivered.put(number, count == null ? 1 : count + 1);
+            mDeliveries++;
+            mDelivered.notifyAll();
+        }
+    }
+
+    /**
+     * run on the router's thread
+     */
+    void post(Runnable task) {
+        new Handler(mLooper).post(task);
+    }
+
+    /**
+     * hand a numbered broadcast to the router, like a bound client does
+     *
+     * @param priority RouterService.PRIORITY_LOW, PRIORITY_NORMAL or PRIORITY_HIGH
+     * @param ttl      milliseconds it may wait to be sent
+     */
+    void sendBroadcastIntent(int number, int priority, long ttl) throws RemoteException {
+        Intent intent = new Intent("com.masterbaron.intenttunnel.test.NUMBERED");
+        intent.putExtra(EXTRA_NUMBER, number);
+        Message msg = Message.obtain(null, ROUTER_MESSAGE_BROADCAST_INTENT, priority, 0, intent);
+        Bundle data = new Bundle();
+        data.putLong(MESSAGE_DATA_TTL, ttl);
+        msg.setData(data);
+        mMessenger.send(msg);
+    }
+
+    /**
+     * @return times the number was broadcast
+     */
+    int getDelivered(int number) {
+        synchronized (mDelivered) {
+            Integer count = mDelivered.get(number);
+            return count == null ? 0 : count;
+        }
+    }
+
+    /**
+     * wait until numbers 0 to count - 1 were all broadcast
+     *
+     * @return false on timeout
+     */
+    boolean awaitDelivered(int count, long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (mDelivered) {
+            while (true) {
+                int missing = 0;
+                for (int i = 0; i < count; i++) {
+                    if (!mDelivered.containsKey(i)) {
+                        missing++;
+                    }
+                }
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (missing == 0) {
+                    return true;
+                } else if (left <= 0) {
+                    return false;
+                }
+                mDelivered.wait(left);
+            }
+        }
+    }
+
+    /**
+     * wait until this many broadcasts were made in all
+     *
+     * @return false on timeout
+     */
+    boolean awaitDeliveries(int deliveries, long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (mDelivered) {
+            while (mDeliveries < deliveries) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) {
+                    return false;
+                }
+                mDelivered.wait(left);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * destroy the router on its thread and wait for the thread to end
+     */
+    void shutdown() throws InterruptedException {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                onDestroy();
+                mLooper.quit();
+            }
+        });
+        mThread.join(TimeUnit.SECONDS.toMillis(10));
+    }
+}
@@ -0,0 +1,132 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.content.Intent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The durable outbound queue: filling it with 100k packets, the queue's cap, and
+ * replaying it after the service was killed. Logs are written to a temporary directory,
+ * run it on the kind of storage to be measured.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class PacketLogBenchmark {
+    private static final int TYPE = 1000;
+    private static final int PACKETS = 100000;
+    private static final long EPOCH = 1;
+    private static final long TTL = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * an empty log, opened
+     */
+    @State(Scope.Thread)
+    public static class EmptyLog {
+        final Intent intent = IntentCorpus.notification(1);
+        File directory;
+        PacketLog log;
+
+        @Setup(Level.Invocation)
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("packetlog").toFile();
+            log = new PacketLog(directory);
+            log.open(EPOCH);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            log.close();
+            delete(directory);
+        }
+    }
+
+    /**
+     * a log of 100k appended packets, of which livePercent weren't removed yet
+     */
+    @State(Scope.Thread)
+    public static class FullLog {
+        @Param({"10", "100"})
+        public int livePercent;
+
+        File directory;
+
+        @Setup(Level.Invocation)
+        public void setup() throws IOException {
+            directory = Files.createTempDirectory("packetlog").toFile();
+            PacketLog log = new PacketLog(directory);
+            log.open(EPOCH);
+            Intent intent = IntentCorpus.notification(1);
+            long expiredTime = System.currentTimeMillis() + TTL;
+            for (int i = 0; i < PACKETS; i++) {
+                Packet packet = new Packet(log.nextPacketId(), TYPE, intent, Packet.DEFAULT_PRIORITY, expiredTime);
+                log.append(packet);
+                if (i % 100 >= livePercent) {
+                    log.remove(packet);
+                }
+            }
+            log.close();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            delete(directory);
+        }
+    }
+
+    /**
+     * queue 100k intents and force them to disk with one sync, like a burst the
+     * router takes while the link is down
+     */
+    @Benchmark
+    public PacketLog append100k(EmptyLog state) {
+        PacketLog log = state.log;
+        long expiredTime = System.currentTimeMillis() + TTL;
+        for (int i = 0; i < PACKETS; i++) {
+            log.append(new Packet(log.nextPacketId(), TYPE, state.intent, Packet.DEFAULT_PRIORITY, expiredTime));
+        }
+        log.sync();
+        return log;
+    }
+
+    /**
+     * replay the log at service start
+     */
+    @Benchmark
+    public List<Packet> recover100k(FullLog state) throws IOException {
+        PacketLog log = new PacketLog(state.directory);
+        try {
+            return log.open(EPOCH);
+        } finally {
+            log.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
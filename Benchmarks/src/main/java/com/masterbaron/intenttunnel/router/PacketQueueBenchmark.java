@@ -0,0 +1,99 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.content.Intent;
+import android.os.SystemClock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The operations RouterService runs on its outbound queue for every intent, with the
+ * queue holding depth packets of all three priority classes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketQueueBenchmark {
+    private static final int TYPE = 1000;
+    // long enough that nothing queued expires during a run
+    private static final long TTL = TimeUnit.HOURS.toMillis(1);
+
+    // up to the cap of the durable queue
+    @Param({"16", "1000", "100000"})
+    public int depth;
+
+    private final PacketQueue mQueue = new PacketQueue();
+    private final ArrayList<Packet> mExpired = new ArrayList<Packet>();
+    private final Intent mIntent = IntentCorpus.music("togglepause");
+    private Packet[] mSpares;
+    private int mNextId = 0;
+    private int mNextKey = 0;
+    private long mNextExpiry;
+
+    @Setup
+    public void setup() {
+        long expiredTime = System.currentTimeMillis() + TTL;
+        for (int priorityClass = PacketQueue.CLASS_HIGH; priorityClass <= PacketQueue.CLASS_LOW; priorityClass++) {
+            mQueue.setPolicy(priorityClass, depth + 1, PacketQueue.DROP_OLDEST);
+        }
+
+        // every queued packet has a key and a spare packet superseding it
+        mSpares = new Packet[depth];
+        for (int i = 0; i < depth; i++) {
+            int priority = i % 3 - 1;
+            mQueue.offer(new Packet(mNextId++, TYPE, mIntent, priority, expiredTime, "key" + i));
+            mSpares[i] = new Packet(mNextId++, TYPE, mIntent, priority, expiredTime, "key" + i);
+        }
+    }
+
+    /**
+     * an intent goes in, the expiry timer is rescheduled, the next one by weighted round
+     * robin goes out and the timer ticks, what RouterService does per intent while the
+     * link keeps up
+     */
+    @Benchmark
+    public Packet queueAndSend() {
+        long expiredTime = System.currentTimeMillis() + TTL;
+        Packet packet = new Packet(mNextId++, TYPE, mIntent, mNextId % 3 - 1, expiredTime);
+        mQueue.offer(packet);
+        // the expiry timer is rescheduled for every queued packet
+        mNextExpiry = mQueue.getNextExpiry();
+        Packet next = mQueue.poll();
+
+        mQueue.removeExpired(SystemClock.elapsedRealtime(), mExpired);
+        mExpired.clear();
+        return next;
+    }
+
+    /**
+     * a newer intent supersedes a queued one with its key
+     */
+    @Benchmark
+    public Packet coalesce() {
+        int i = mNextKey;
+        mNextKey = (mNextKey + 1) % depth;
+        Packet superseded = mQueue.replace(mSpares[i]);
+        // the superseded packet supersedes its successor next time round
+        mSpares[i] = superseded;
+        return superseded;
+    }
+
+    /**
+     * a packet that couldn't be sent goes back in front of its class
+     */
+    @Benchmark
+    public Packet requeue() {
+        Packet packet = mQueue.poll();
+        mQueue.offerFirst(packet);
+        return packet;
+    }
+}
@@ -0,0 +1,66 @@
+package com.masterbaron.intenttunnel.router;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Intents through two routers over a LoopbackLink, from the sender's messenger to the
+ * receiver's broadcast, with up to window packets in flight on the sender's client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RouterWindowBenchmark {
+    private static final int BATCH = 256;
+    private static final long TTL = TimeUnit.MINUTES.toMillis(10);
+    private static final long DELIVERY_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    @Param({"1", "4", "16"})
+    public int window;
+
+    private LoopbackRouter mSender;
+    private LoopbackRouter mReceiver;
+    private int mSent = 0;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        LoopbackLink link = new LoopbackLink();
+        mReceiver = LoopbackRouter.start(new LoopbackLink(), link, null);
+        mSender = LoopbackRouter.start(link, new LoopbackLink(), new LoopbackRouter.Setup() {
+            @Override
+            public void beforeCreate(RouterService router) {
+                RouterService.setSendWindow(router, window);
+                // a whole batch fits in the queue
+                RouterService.setQueuePolicy(router, PacketQueue.CLASS_NORMAL, BATCH, PacketQueue.DROP_NEWEST);
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        mSender.shutdown();
+        mReceiver.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void intents() throws Exception {
+        for (int i = 0; i < BATCH; i++) {
+            mSender.sendBroadcastIntent(i, RouterService.PRIORITY_NORMAL, TTL);
+        }
+        mSent += BATCH;
+        if (!mReceiver.awaitDeliveries(mSent, DELIVERY_TIMEOUT)) {
+            throw new IllegalStateException("intents lost");
+        }
+    }
+}
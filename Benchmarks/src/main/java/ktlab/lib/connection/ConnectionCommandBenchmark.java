@@ -0,0 +1,119 @@
+package ktlab.lib.connection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Framing of a command: the whole-frame conversions next to the paths the reader and
+ * writer threads take, which write in place and draw option buffers from the pool.
+ * Run with -prof gc to see the allocation per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConnectionCommandBenchmark {
+    private static final byte TYPE = 100;
+    private static final ByteOrder ORDER = ByteOrder.nativeOrder();
+
+    @Param({"16", "1024", "65536"})
+    public int payloadSize;
+
+    private final BufferPool mPool = new BufferPool();
+    private ConnectionCommand mCommand;
+    private byte[] mFrame;
+    // sized like the writer's
+    private final byte[] mScratch = new byte[ConnectionCommand.HEADER_LENGTH + ConnectionCommand.CHUNK_HEADER_LENGTH
+            + ConnectionCommand.GATHER_LIMIT];
+
+    // the link, without the cost of a real one
+    private final OutputStream mSink = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setup() {
+        byte[] payload = new byte[payloadSize];
+        new Random(1).nextBytes(payload);
+        mCommand = ConnectionCommand.wrap(TYPE, payload);
+        mFrame = ConnectionCommand.toByteArray(mCommand, ORDER);
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        return ConnectionCommand.toByteArray(mCommand, ORDER);
+    }
+
+    @Benchmark
+    public ConnectionCommand fromByteArray() {
+        return ConnectionCommand.fromByteArray(mFrame, ORDER);
+    }
+
+    /**
+     * what CommandSendThread does, header and option written without building a frame
+     */
+    @Benchmark
+    public void writeTo() throws IOException {
+        mCommand.writeTo(mSink, ORDER, mScratch);
+    }
+
+    /**
+     * what CommandReceiveThread and the receiving callback do, the option is read into a
+     * pooled buffer that goes back once the command is handled
+     */
+    @Benchmark
+    public int readPooled() {
+        int length = ConnectionCommand.getOptionLength(mFrame, ORDER);
+        byte[] option = mPool.acquire(length);
+        System.arraycopy(mFrame, ConnectionCommand.HEADER_LENGTH, option, 0, length);
+        ConnectionCommand command = ConnectionCommand.wrapPooled(mFrame[0], option, length, mPool);
+        int type = command.type;
+        command.release();
+        return type;
+    }
+
+    /**
+     * the receive path before the pool, five copies of the option: read, reordered into
+     * an unused array, joined to the header, taken out of the frame, copied by the constructor
+     */
+    @Benchmark
+    public int readLegacy() {
+        byte[] rawHeader = new byte[ConnectionCommand.HEADER_LENGTH];
+        System.arraycopy(mFrame, 0, rawHeader, 0, rawHeader.length);
+        int length = ByteBuffer.wrap(rawHeader).order(ORDER).getInt(1);
+        byte[] rawOption = new byte[length];
+        System.arraycopy(mFrame, ConnectionCommand.HEADER_LENGTH, rawOption, 0, length);
+
+        byte[] orderedOption = new byte[rawOption.length];
+        ByteBuffer.wrap(rawOption).order(ORDER).get(orderedOption);
+
+        byte[] data = new byte[rawHeader.length + rawOption.length];
+        System.arraycopy(rawHeader, 0, data, 0, rawHeader.length);
+        System.arraycopy(rawOption, 0, data, rawHeader.length, rawOption.length);
+
+        ByteBuffer bf = ByteBuffer.wrap(data).order(ORDER);
+        byte type = bf.get();
+        byte[] option = new byte[bf.getInt()];
+        bf.get(option);
+        ConnectionCommand command = new ConnectionCommand(type, option);
+        return command.type + orderedOption.length;
+    }
+}
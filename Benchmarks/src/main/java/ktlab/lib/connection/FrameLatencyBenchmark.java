@@ -0,0 +1,179 @@
+package ktlab.lib.connection;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import ktlab.lib.connection.transport.PipeTransport;
+
+/**
+ * Latency a frame picks up between arriving on an idle link and reaching the
+ * connection's handler.
+ *
+ * blocking is CommandReceiveThread, waiting in read until the frame is there.
+ * polling is the header wait it replaced: a read that returns 0 while nothing
+ * arrived is followed by a 50 ms sleep.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameLatencyBenchmark {
+    private static final byte TYPE = 100;
+    private static final ByteOrder ORDER = ByteOrder.nativeOrder();
+    private static final long DELIVERY_TIMEOUT = 30;
+
+    @Param({"blocking", "polling"})
+    public String reader;
+
+    private final BufferPool mPool = new BufferPool();
+    private final Semaphore mDelivered = new Semaphore(0);
+    private byte[] mFrame;
+    private PipeTransport[] mTransports;
+    private OutputStream mOutput;
+    private Looper mLooper;
+    private Thread mLooperThread;
+    private CommandReceiveThread mReceiveThread;
+    private PollingThread mPollingThread;
+
+    @Setup
+    public void setup() throws Exception {
+        mFrame = ConnectionCommand.toByteArray(ConnectionCommand.wrap(TYPE, new byte[16]), ORDER);
+        mTransports = PipeTransport.createPair();
+        mOutput = mTransports[0].getOutputStream();
+
+        final CountDownLatch prepared = new CountDownLatch(1);
+        mLooperThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Looper.prepare();
+                mLooper = Looper.myLooper();
+                prepared.countDown();
+                Looper.loop();
+            }
+        }, "FrameLatencyMain");
+        mLooperThread.start();
+        prepared.await();
+
+        Handler handler = new Handler(mLooper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == Connection.EVENT_DATA_RECEIVED) {
+                    ((ConnectionCommand) msg.obj).release();
+                    mDelivered.release();
+                }
+            }
+        };
+        InputStream input = mTransports[1].getInputStream();
+        if ("polling".equals(reader)) {
+            mPollingThread = new PollingThread(input, handler, mPool);
+            mPollingThread.start();
+        } else {
+            mReceiveThread = new CommandReceiveThread(input, handler, ORDER, mPool, null, new RttEstimator());
+            mReceiveThread.start();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (mReceiveThread != null) {
+            mReceiveThread.forceStop();
+        }
+        if (mPollingThread != null) {
+            mPollingThread.isStopped = true;
+        }
+        for (PipeTransport t : mTransports) {
+            t.close();
+        }
+        mLooper.quit();
+        mLooperThread.join();
+    }
+
+    @Benchmark
+    public void frame() throws IOException, InterruptedException {
+        mOutput.write(mFrame);
+        mOutput.flush();
+        if (!mDelivered.tryAcquire(DELIVERY_TIMEOUT, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(reader + " stopped delivering");
+        }
+    }
+
+    /**
+     * the header wait before blocking reads, over a stream that doesn't wait for data
+     */
+    private static class PollingThread extends Thread {
+        private final InputStream mInput;
+        private final Handler mHandler;
+        private final BufferPool mPool;
+        volatile boolean isStopped = false;
+
+        PollingThread(InputStream input, Handler handler, BufferPool pool) {
+            super("CommandReceiveThread");
+            mInput = input;
+            mHandler = handler;
+            mPool = pool;
+        }
+
+        public void run() {
+            byte[] rawHeader = new byte[ConnectionCommand.HEADER_LENGTH];
+            try {
+                while (!isStopped) {
+                    int receivedSize = 0;
+                    while (!isStopped && receivedSize < ConnectionCommand.HEADER_LENGTH) {
+                        int length = read(rawHeader, receivedSize, ConnectionCommand.HEADER_LENGTH - receivedSize);
+                        receivedSize += length;
+                        if (length == 0) {
+                            try {
+                                sleep(50);
+                            } catch (InterruptedException e) {
+                                // DO NOTHING
+                            }
+                        }
+                    }
+                    if (isStopped) {
+                        return;
+                    }
+
+                    int optionLen = ConnectionCommand.getOptionLength(rawHeader, ORDER);
+                    byte[] rawOption = mPool.acquire(optionLen);
+                    receivedSize = 0;
+                    while (receivedSize < optionLen) {
+                        receivedSize += read(rawOption, receivedSize, optionLen - receivedSize);
+                    }
+                    ConnectionCommand command = ConnectionCommand.wrapPooled(rawHeader[0], rawOption, optionLen, mPool);
+                    mHandler.obtainMessage(Connection.EVENT_DATA_RECEIVED, command).sendToTarget();
+                }
+            } catch (IOException e) {
+                // DO NOTHING
+            }
+        }
+
+        /**
+         * @return bytes read, 0 while nothing arrived
+         */
+        private int read(byte[] buffer, int offset, int length) throws IOException {
+            int available = mInput.available();
+            if (available == 0) {
+                return 0;
+            }
+            return mInput.read(buffer, offset, Math.min(length, available));
+        }
+    }
+}
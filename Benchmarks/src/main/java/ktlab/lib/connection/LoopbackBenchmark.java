@@ -0,0 +1,235 @@
+package ktlab.lib.connection;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import ktlab.lib.connection.transport.PipeTransport;
+import ktlab.lib.connection.transport.SocketTransport;
+
+/**
+ * Two Connections talking to each other in one process, the full path of a command:
+ * handed to the sending connection on its handler thread, written by its writer, read
+ * by the peer's reader and delivered to the peer's callback.
+ *
+ * latency sends a command and waits for its delivery, sampled for the percentiles.
+ * windowed measures messages per second with up to window commands in flight, like
+ * the router keeps with its in-flight window.
+ */
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+    private static final byte TYPE = 100;
+    private static final int BATCH = 64;
+    private static final long DELIVERY_TIMEOUT = 30;
+
+    // what a Connection handler is told by the benchmark thread
+    private static final int SEND = 1;
+    private static final int START = 2;
+    private static final int STOP = 3;
+
+    @Param({"16", "1024", "65536", "1048576"})
+    public int payloadSize;
+
+    /**
+     * pipe: in-memory streams. socket: TCP over loopback with blocking streams.
+     * socket-readiness: TCP with the selector based streams of readiness mode.
+     */
+    @Param({"pipe", "socket", "socket-readiness"})
+    public String transport;
+
+    private byte[] mPayload;
+    private Transport[] mTransports;
+    private Looper mLooper;
+    private Thread mLooperThread;
+    private Handler mDriver;
+    private TransportConnection mSender;
+    private TransportConnection mReceiver;
+    private int mNextId = 0;
+
+    private final CountDownLatch mConnected = new CountDownLatch(2);
+    private final Semaphore mDelivered = new Semaphore(0);
+    private volatile boolean isBroken = false;
+
+    @State(Scope.Thread)
+    public static class Window {
+        @Param({"1", "4", "16"})
+        public int window;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        mPayload = new byte[payloadSize];
+        new Random(1).nextBytes(mPayload);
+        mTransports = openTransports();
+
+        final CountDownLatch prepared = new CountDownLatch(1);
+        mLooperThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // connections are handlers, they run on the thread they are made on
+                Looper.prepare();
+                mLooper = Looper.myLooper();
+                boolean readiness = transport.endsWith("-readiness");
+                mSender = newConnection(mTransports[0], readiness, false);
+                mReceiver = newConnection(mTransports[1], readiness, true);
+                mDriver = new Handler() {
+                    @Override
+                    public void handleMessage(Message msg) {
+                        if (msg.what == SEND) {
+                            // the payload is only read, every command can share it
+                            mSender.sendCommand(ConnectionCommand.wrap(TYPE, mPayload), msg.arg1);
+                        } else if (msg.what == START) {
+                            mSender.startConnection();
+                            mReceiver.startConnection();
+                        } else if (msg.what == STOP) {
+                            mSender.stopConnection();
+                            mReceiver.stopConnection();
+                            mLooper.quit();
+                        }
+                    }
+                };
+                prepared.countDown();
+                Looper.loop();
+            }
+        }, "LoopbackMain");
+        mLooperThread.start();
+        prepared.await();
+
+        mDriver.sendEmptyMessage(START);
+        if (!mConnected.await(DELIVERY_TIMEOUT, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("loopback " + transport + " didn't connect");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mDriver.sendEmptyMessage(STOP);
+        mLooperThread.join();
+        for (Transport t : mTransports) {
+            t.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency() throws InterruptedException {
+        send();
+        awaitDelivery();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void windowed(Window w) throws InterruptedException {
+        int sent = 0;
+        int delivered = 0;
+        while (delivered < BATCH) {
+            while (sent < BATCH && sent - delivered < w.window) {
+                send();
+                sent++;
+            }
+            awaitDelivery();
+            delivered++;
+        }
+    }
+
+    private void send() {
+        mDriver.obtainMessage(SEND, mNextId++, 0).sendToTarget();
+    }
+
+    private void awaitDelivery() throws InterruptedException {
+        if (!mDelivered.tryAcquire(DELIVERY_TIMEOUT, TimeUnit.SECONDS) || isBroken) {
+            throw new IllegalStateException("loopback " + transport + " stopped delivering");
+        }
+    }
+
+    private TransportConnection newConnection(final Transport t, boolean readiness, final boolean isReceiver) {
+        TransportConnector connector = new TransportConnector() {
+            @Override
+            public Transport connect() {
+                return t;
+            }
+
+            @Override
+            public void cancel() {
+            }
+        };
+        TransportConnection connection = new TransportConnection(connector, new ConnectionCallback() {
+            @Override
+            public void onConnectComplete() {
+                mConnected.countDown();
+            }
+
+            @Override
+            public void onConnectionFailed() {
+                onBroken();
+            }
+
+            @Override
+            public void onConnectionLost() {
+                onBroken();
+            }
+
+            @Override
+            public void onDataSendComplete(int id) {
+            }
+
+            @Override
+            public void onCommandReceived(ConnectionCommand command) {
+                command.release();
+                if (isReceiver) {
+                    mDelivered.release();
+                }
+            }
+        }, true);
+        connection.setReadinessMode(readiness);
+        return connection;
+    }
+
+    /**
+     * wake up a waiting benchmark thread, it fails instead of timing out
+     */
+    private void onBroken() {
+        isBroken = true;
+        mDelivered.release();
+    }
+
+    private Transport[] openTransports() throws IOException {
+        if ("pipe".equals(transport)) {
+            return PipeTransport.createPair();
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+            SocketChannel accepted = server.accept();
+            return new Transport[]{new SocketTransport(client.socket()), new SocketTransport(accepted.socket())};
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package ktlab.lib.connection;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receive throughput: a burst of frames decoded from an in-memory stream and handed
+ * to the connection's handler, the way they reach the callback.
+ *
+ * loop is the CommandReceiveThread of a connection, reading frames back-to-back.
+ * thread-per-frame is the receiver it replaced: one thread reads one frame and posts
+ * it, and the handler starts the thread for the next. Both decode frames the same
+ * way, only the threading differs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReceiveLoopBenchmark {
+    private static final byte TYPE = 100;
+    private static final ByteOrder ORDER = ByteOrder.nativeOrder();
+    private static final int FRAMES = 1000;
+    private static final long DELIVERY_TIMEOUT = 30;
+
+    // what the handler is told by the benchmark thread
+    private static final int START = 1;
+
+    @Param({"16", "1024"})
+    public int payloadSize;
+
+    @Param({"loop", "thread-per-frame"})
+    public String receiver;
+
+    private final BufferPool mPool = new BufferPool();
+    private byte[] mStream;
+    private Looper mLooper;
+    private Thread mLooperThread;
+    private Handler mHandler;
+
+    // handler thread only
+    private Burst mBurst;
+
+    /**
+     * one invocation's frames and how far their delivery got
+     */
+    private static class Burst {
+        final InputStream input;
+        final CountDownLatch done = new CountDownLatch(1);
+        int received = 0;
+
+        Burst(byte[] stream) {
+            // not a pipe, it fails once the last thread to read from it has ended
+            input = new ByteArrayInputStream(stream);
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] payload = new byte[payloadSize];
+        new Random(1).nextBytes(payload);
+        byte[] frame = ConnectionCommand.toByteArray(ConnectionCommand.wrap(TYPE, payload), ORDER);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(frame.length * FRAMES);
+        for (int i = 0; i < FRAMES; i++) {
+            stream.write(frame);
+        }
+        mStream = stream.toByteArray();
+
+        final CountDownLatch prepared = new CountDownLatch(1);
+        mLooperThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Looper.prepare();
+                mLooper = Looper.myLooper();
+                prepared.countDown();
+                Looper.loop();
+            }
+        }, "ReceiveLoopMain");
+        mLooperThread.start();
+        prepared.await();
+
+        final boolean isThreadPerFrame = "thread-per-frame".equals(receiver);
+        mHandler = new Handler(mLooper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == START) {
+                    mBurst = (Burst) msg.obj;
+                    if (isThreadPerFrame) {
+                        new FrameThread(mBurst.input, this, mPool).start();
+                    } else {
+                        new CommandReceiveThread(mBurst.input, this, ORDER, mPool, null, new RttEstimator()).start();
+                    }
+                } else if (msg.what == Connection.EVENT_DATA_RECEIVED) {
+                    ((ConnectionCommand) msg.obj).release();
+                    mBurst.received++;
+                    if (mBurst.received == FRAMES) {
+                        mBurst.done.countDown();
+                    } else if (isThreadPerFrame) {
+                        new FrameThread(mBurst.input, this, mPool).start();
+                    }
+                }
+                // the loop runs into the end of the stream after the burst, that's no failure here
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        mLooper.quit();
+        mLooperThread.join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void burst() throws InterruptedException {
+        Burst burst = new Burst(mStream);
+        mHandler.obtainMessage(START, burst).sendToTarget();
+        if (!burst.done.await(DELIVERY_TIMEOUT, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(receiver + " stopped delivering");
+        }
+    }
+
+    /**
+     * the receiver before the loop: reads a single frame, posts it and ends
+     */
+    private static class FrameThread extends Thread {
+        private final InputStream mInput;
+        private final Handler mHandler;
+        private final BufferPool mPool;
+
+        FrameThread(InputStream input, Handler handler, BufferPool pool) {
+            super("CommandReceiveThread");
+            mInput = input;
+            mHandler = handler;
+            mPool = pool;
+        }
+
+        public void run() {
+            try {
+                byte[] rawHeader = new byte[ConnectionCommand.HEADER_LENGTH];
+                readFully(rawHeader, ConnectionCommand.HEADER_LENGTH);
+                int optionLen = ConnectionCommand.getOptionLength(rawHeader, ORDER);
+                byte[] rawOption = mPool.acquire(optionLen);
+                readFully(rawOption, optionLen);
+                ConnectionCommand command = ConnectionCommand.wrapPooled(rawHeader[0], rawOption, optionLen, mPool);
+                mHandler.obtainMessage(Connection.EVENT_DATA_RECEIVED, command).sendToTarget();
+            } catch (IOException e) {
+                mHandler.obtainMessage(Connection.EVENT_CONNECTION_FAIL).sendToTarget();
+            }
+        }
+
+        private void readFully(byte[] buffer, int length) throws IOException {
+            int receivedSize = 0;
+            while (receivedSize < length) {
+                int read = mInput.read(buffer, receivedSize, length - receivedSize);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                receivedSize += read;
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ktlab.lib.connection;
+
+import android.content.Intent;
+import android.util.Log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a per-frame log line costs. The shim's Log discards the line, so the unguarded
+ * cases measure formatting alone, which is what a release build paid before the guards.
+ * The guarded cases should show next to no time and, with -prof gc, no allocation:
+ * the verbose guard is compiled out, the debug one is a read of the runtime flag.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TunnelLogBenchmark {
+    private static final String TAG = "RouterService";
+
+    private final Intent mIntent = new Intent("com.android.music.musicservicecommand")
+            .putExtra("command", "togglepause");
+    private byte mWhat = 100;
+    private int mLength = 64;
+
+    @Benchmark
+    public void unguardedIntent() {
+        Log.d(TAG, "send message: " + mIntent.toUri(0));
+    }
+
+    @Benchmark
+    public void guardedIntent() {
+        if (TunnelLog.isDebug()) {
+            TunnelLog.d(TAG, "send message: " + mIntent.toUri(0));
+        }
+    }
+
+    @Benchmark
+    public void unguardedFrame() {
+        Log.v("CommandReceiveThread", "what=" + mWhat + " / len = " + mLength);
+    }
+
+    @Benchmark
+    public void guardedFrame() {
+        if (TunnelLog.VERBOSE) {
+            TunnelLog.v("CommandReceiveThread", "what=" + mWhat + " / len = " + mLength);
+        }
+    }
+
+    /**
+     * a debug build logging every frame, past the burst almost every line is dropped
+     */
+    @Benchmark
+    public void rateLimitedFrame() {
+        TunnelLog.v("CommandReceiveThread", "what=" + mWhat + " / len = " + mLength);
+    }
+}
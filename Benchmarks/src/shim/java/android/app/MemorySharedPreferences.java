@@ -0,0 +1,123 @@
+package android.app;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * preferences held in memory. listeners hear about a changed key on the thread that commits it.
+ */
+class MemorySharedPreferences implements SharedPreferences {
+    private final HashMap<String, Object> mValues = new HashMap<String, Object>();
+    private final CopyOnWriteArrayList<OnSharedPreferenceChangeListener> mListeners
+            = new CopyOnWriteArrayList<OnSharedPreferenceChangeListener>();
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        Object o = mValues.get(key);
+        return o instanceof String ? (String) o : defValue;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        Object o = mValues.get(key);
+        return o instanceof Integer ? (Integer) o : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        Object o = mValues.get(key);
+        return o instanceof Long ? (Long) o : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        Object o = mValues.get(key);
+        return o instanceof Boolean ? (Boolean) o : defValue;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new MemoryEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private class MemoryEditor implements Editor {
+        // a null value removes the key
+        private final HashMap<String, Object> mChanges = new HashMap<String, Object>();
+
+        @Override
+        public Editor putString(String key, String value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mChanges.put(key, null);
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            List<String> changed = new ArrayList<String>();
+            synchronized (MemorySharedPreferences.this) {
+                for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                    Object old = change.getValue() != null
+                            ? mValues.put(change.getKey(), change.getValue())
+                            : mValues.remove(change.getKey());
+                    if (old == null ? change.getValue() != null : !old.equals(change.getValue())) {
+                        changed.add(change.getKey());
+                    }
+                }
+            }
+            for (String key : changed) {
+                for (OnSharedPreferenceChangeListener listener : mListeners) {
+                    listener.onSharedPreferenceChanged(MemorySharedPreferences.this, key);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
+}
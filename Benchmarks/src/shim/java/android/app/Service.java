@@ -0,0 +1,83 @@
+package android.app;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.os.IBinder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+
+/**
+ * JVM stand-in. Each service is its own little app: preferences live in memory and the
+ * files dir is a fresh temporary directory. Starting services, broadcasts and activities
+ * go nowhere unless a subclass catches them.
+ */
+public abstract class Service extends Context {
+    public static final int START_STICKY = 1;
+
+    private final HashMap<String, SharedPreferences> mPreferences = new HashMap<String, SharedPreferences>();
+    private final ApplicationInfo mApplicationInfo = new ApplicationInfo();
+    private File mFilesDir;
+
+    public void onCreate() {
+    }
+
+    public void onDestroy() {
+    }
+
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_STICKY;
+    }
+
+    public abstract IBinder onBind(Intent intent);
+
+    @Override
+    public String getPackageName() {
+        return "com.masterbaron.intenttunnel";
+    }
+
+    @Override
+    public ApplicationInfo getApplicationInfo() {
+        return mApplicationInfo;
+    }
+
+    @Override
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences preferences = mPreferences.get(name);
+        if (preferences == null) {
+            preferences = new MemorySharedPreferences();
+            mPreferences.put(name, preferences);
+        }
+        return preferences;
+    }
+
+    @Override
+    public synchronized File getFilesDir() {
+        if (mFilesDir == null) {
+            try {
+                mFilesDir = Files.createTempDirectory("files").toFile();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return mFilesDir;
+    }
+
+    @Override
+    public ComponentName startService(Intent service) {
+        return service.getComponent();
+    }
+
+    @Override
+    public void sendBroadcast(Intent intent) {
+    }
+
+    @Override
+    public void startActivity(Intent intent) {
+    }
+}
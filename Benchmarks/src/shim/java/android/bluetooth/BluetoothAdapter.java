@@ -0,0 +1,42 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * JVM stand-in for a machine without bluetooth, there is never a default adapter.
+ */
+public final class BluetoothAdapter {
+    public static final String ACTION_STATE_CHANGED = "android.bluetooth.adapter.action.STATE_CHANGED";
+    public static final String EXTRA_STATE = "android.bluetooth.adapter.extra.STATE";
+    public static final int ERROR = Integer.MIN_VALUE;
+    public static final int STATE_OFF = 10;
+    public static final int STATE_TURNING_ON = 11;
+    public static final int STATE_ON = 12;
+    public static final int STATE_TURNING_OFF = 13;
+
+    private BluetoothAdapter() {
+    }
+
+    public static BluetoothAdapter getDefaultAdapter() {
+        return null;
+    }
+
+    public boolean isEnabled() {
+        return false;
+    }
+
+    public String getAddress() {
+        return "00:00:00:00:00:00";
+    }
+
+    public Set<BluetoothDevice> getBondedDevices() {
+        return Collections.emptySet();
+    }
+
+    public BluetoothServerSocket listenUsingRfcommWithServiceRecord(String name, UUID uuid) throws IOException {
+        throw new IOException("no bluetooth");
+    }
+}
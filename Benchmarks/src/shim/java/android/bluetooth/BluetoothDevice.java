@@ -0,0 +1,32 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * JVM stand-in, only compiled against. No adapter ever hands one out.
+ */
+public final class BluetoothDevice {
+    public static final int BOND_NONE = 10;
+    public static final int BOND_BONDING = 11;
+    public static final int BOND_BONDED = 12;
+
+    private BluetoothDevice() {
+    }
+
+    public String getName() {
+        return null;
+    }
+
+    public String getAddress() {
+        return null;
+    }
+
+    public int getBondState() {
+        return BOND_NONE;
+    }
+
+    public BluetoothSocket createRfcommSocketToServiceRecord(UUID uuid) throws IOException {
+        throw new IOException("no bluetooth");
+    }
+}
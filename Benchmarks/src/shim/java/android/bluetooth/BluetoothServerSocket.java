@@ -0,0 +1,21 @@
+package android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * JVM stand-in, only compiled against.
+ */
+public final class BluetoothServerSocket implements Closeable {
+
+    private BluetoothServerSocket() {
+    }
+
+    public BluetoothSocket accept() throws IOException {
+        throw new IOException("no bluetooth");
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
@@ -0,0 +1,31 @@
+package android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * JVM stand-in, only compiled against.
+ */
+public final class BluetoothSocket implements Closeable {
+
+    private BluetoothSocket() {
+    }
+
+    public void connect() throws IOException {
+        throw new IOException("no bluetooth");
+    }
+
+    public InputStream getInputStream() throws IOException {
+        throw new IOException("no bluetooth");
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("no bluetooth");
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
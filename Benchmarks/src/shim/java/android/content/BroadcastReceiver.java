@@ -0,0 +1,8 @@
+package android.content;
+
+/**
+ * JVM stand-in, receivers are only compiled, nothing broadcasts to them.
+ */
+public abstract class BroadcastReceiver {
+    public abstract void onReceive(Context context, Intent intent);
+}
@@ -0,0 +1,68 @@
+package android.content;
+
+/**
+ * JVM stand-in.
+ */
+public final class ComponentName {
+    private final String mPackage;
+    private final String mClass;
+
+    public ComponentName(String pkg, String cls) {
+        if (pkg == null || cls == null) {
+            throw new NullPointerException("package name or class name is null");
+        }
+        mPackage = pkg;
+        mClass = cls;
+    }
+
+    public String getPackageName() {
+        return mPackage;
+    }
+
+    public String getClassName() {
+        return mClass;
+    }
+
+    /**
+     * @return "package/class", with the class shortened to ".Name" if it is in the package
+     */
+    public String flattenToShortString() {
+        String cls = mClass;
+        if (cls.startsWith(mPackage) && cls.length() > mPackage.length() && cls.charAt(mPackage.length()) == '.') {
+            cls = cls.substring(mPackage.length());
+        }
+        return mPackage + "/" + cls;
+    }
+
+    public static ComponentName unflattenFromString(String str) {
+        int sep = str.indexOf('/');
+        if (sep < 0 || sep + 1 >= str.length()) {
+            return null;
+        }
+        String pkg = str.substring(0, sep);
+        String cls = str.substring(sep + 1);
+        if (cls.charAt(0) == '.') {
+            cls = pkg + cls;
+        }
+        return new ComponentName(pkg, cls);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ComponentName)) {
+            return false;
+        }
+        ComponentName other = (ComponentName) obj;
+        return mPackage.equals(other.mPackage) && mClass.equals(other.mClass);
+    }
+
+    @Override
+    public int hashCode() {
+        return mPackage.hashCode() + mClass.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "ComponentInfo{" + mPackage + "/" + mClass + "}";
+    }
+}
@@ -0,0 +1,26 @@
+package android.content;
+
+import android.content.pm.ApplicationInfo;
+
+import java.io.File;
+
+/**
+ * JVM stand-in with the part of a context the router uses.
+ */
+public abstract class Context {
+    public static final int MODE_PRIVATE = 0;
+
+    public abstract String getPackageName();
+
+    public abstract ApplicationInfo getApplicationInfo();
+
+    public abstract SharedPreferences getSharedPreferences(String name, int mode);
+
+    public abstract File getFilesDir();
+
+    public abstract ComponentName startService(Intent service);
+
+    public abstract void sendBroadcast(Intent intent);
+
+    public abstract void startActivity(Intent intent);
+}
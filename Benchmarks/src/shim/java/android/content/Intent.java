@@ -0,0 +1,463 @@
+package android.content;
+
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.io.Serializable;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * JVM stand-in holding the fields the tunnel carries. toUri() and parseUri() write
+ * and read the same "#Intent;...;end" form as Android, with the same extra types, so
+ * the legacy URI codec costs what it costs on a device.
+ */
+public class Intent {
+    public static final String ACTION_VIEW = "android.intent.action.VIEW";
+
+    public static final int URI_INTENT_SCHEME = 1 << 0;
+
+    private String mAction;
+    private Uri mData;
+    private String mType;
+    private String mPackage;
+    private ComponentName mComponent;
+    private int mFlags;
+    private LinkedHashSet<String> mCategories;
+    private Bundle mExtras;
+
+    public Intent() {
+    }
+
+    public Intent(String action) {
+        mAction = action;
+    }
+
+    public Intent(String action, Uri uri) {
+        mAction = action;
+        mData = uri;
+    }
+
+    public Intent(Context packageContext, Class<?> cls) {
+        setClass(packageContext, cls);
+    }
+
+    public Intent(Intent o) {
+        mAction = o.mAction;
+        mData = o.mData;
+        mType = o.mType;
+        mPackage = o.mPackage;
+        mComponent = o.mComponent;
+        mFlags = o.mFlags;
+        if (o.mCategories != null) {
+            mCategories = new LinkedHashSet<String>(o.mCategories);
+        }
+        if (o.mExtras != null) {
+            mExtras = new Bundle(o.mExtras);
+        }
+    }
+
+    public String getAction() {
+        return mAction;
+    }
+
+    public Intent setAction(String action) {
+        mAction = action;
+        return this;
+    }
+
+    public Uri getData() {
+        return mData;
+    }
+
+    public String getDataString() {
+        return mData != null ? mData.toString() : null;
+    }
+
+    public Intent setData(Uri data) {
+        mData = data;
+        mType = null;
+        return this;
+    }
+
+    public String getType() {
+        return mType;
+    }
+
+    public Intent setType(String type) {
+        mData = null;
+        mType = type;
+        return this;
+    }
+
+    public Intent setDataAndType(Uri data, String type) {
+        mData = data;
+        mType = type;
+        return this;
+    }
+
+    public Set<String> getCategories() {
+        return mCategories;
+    }
+
+    public Intent addCategory(String category) {
+        if (mCategories == null) {
+            mCategories = new LinkedHashSet<String>();
+        }
+        mCategories.add(category);
+        return this;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public Intent setFlags(int flags) {
+        mFlags = flags;
+        return this;
+    }
+
+    public Intent addFlags(int flags) {
+        mFlags |= flags;
+        return this;
+    }
+
+    public ComponentName getComponent() {
+        return mComponent;
+    }
+
+    public Intent setComponent(ComponentName component) {
+        mComponent = component;
+        return this;
+    }
+
+    public Intent setClass(Context packageContext, Class<?> cls) {
+        mComponent = new ComponentName(packageContext.getPackageName(), cls.getName());
+        return this;
+    }
+
+    public String getPackage() {
+        return mPackage;
+    }
+
+    public Intent setPackage(String packageName) {
+        mPackage = packageName;
+        return this;
+    }
+
+    /**
+     * @return a copy of the extras, null if there are none
+     */
+    public Bundle getExtras() {
+        return mExtras != null ? new Bundle(mExtras) : null;
+    }
+
+    public boolean hasExtra(String name) {
+        return mExtras != null && mExtras.containsKey(name);
+    }
+
+    public String getStringExtra(String name) {
+        return mExtras != null ? mExtras.getString(name) : null;
+    }
+
+    public int getIntExtra(String name, int defaultValue) {
+        return mExtras != null ? mExtras.getInt(name, defaultValue) : defaultValue;
+    }
+
+    public Intent putExtras(Bundle extras) {
+        extras().putAll(extras);
+        return this;
+    }
+
+    public void removeExtra(String name) {
+        if (mExtras != null) {
+            mExtras.remove(name);
+            if (mExtras.size() == 0) {
+                mExtras = null;
+            }
+        }
+    }
+
+    public Intent putExtra(String name, String value) {
+        extras().putString(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, boolean value) {
+        extras().putBoolean(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, byte value) {
+        extras().putByte(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, char value) {
+        extras().putChar(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, short value) {
+        extras().putShort(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, int value) {
+        extras().putInt(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, long value) {
+        extras().putLong(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, float value) {
+        extras().putFloat(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, double value) {
+        extras().putDouble(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, byte[] value) {
+        extras().putByteArray(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, String[] value) {
+        extras().putStringArray(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, int[] value) {
+        extras().putIntArray(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, long[] value) {
+        extras().putLongArray(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, boolean[] value) {
+        extras().putBooleanArray(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, Bundle value) {
+        extras().putBundle(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, Serializable value) {
+        extras().putSerializable(name, value);
+        return this;
+    }
+
+    public Intent putStringArrayListExtra(String name, ArrayList<String> value) {
+        extras().putStringArrayList(name, value);
+        return this;
+    }
+
+    public Intent putIntegerArrayListExtra(String name, ArrayList<Integer> value) {
+        extras().putIntegerArrayList(name, value);
+        return this;
+    }
+
+    private Bundle extras() {
+        if (mExtras == null) {
+            mExtras = new Bundle();
+        }
+        return mExtras;
+    }
+
+    public String toUri(int flags) {
+        StringBuilder uri = new StringBuilder(128);
+        String scheme = null;
+        if (mData != null) {
+            String data = mData.toString();
+            if ((flags & URI_INTENT_SCHEME) != 0) {
+                // the data's scheme moves into the fragment, "intent:" takes its place
+                int length = data.length();
+                for (int i = 0; i < length; i++) {
+                    char c = data.charAt(i);
+                    if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '.' || c == '-') {
+                        continue;
+                    }
+                    if (c == ':' && i > 0) {
+                        scheme = data.substring(0, i);
+                        uri.append("intent:");
+                        data = data.substring(i + 1);
+                    }
+                    break;
+                }
+            }
+            uri.append(data);
+        } else if ((flags & URI_INTENT_SCHEME) != 0) {
+            uri.append("intent:");
+        }
+
+        uri.append("#Intent;");
+        if (scheme != null) {
+            uri.append("scheme=").append(scheme).append(';');
+        }
+        if (mAction != null) {
+            uri.append("action=").append(Uri.encode(mAction)).append(';');
+        }
+        if (mCategories != null) {
+            for (String category : mCategories) {
+                uri.append("category=").append(Uri.encode(category)).append(';');
+            }
+        }
+        if (mType != null) {
+            uri.append("type=").append(Uri.encode(mType, "/")).append(';');
+        }
+        if (mFlags != 0) {
+            uri.append("launchFlags=0x").append(Integer.toHexString(mFlags)).append(';');
+        }
+        if (mPackage != null) {
+            uri.append("package=").append(Uri.encode(mPackage)).append(';');
+        }
+        if (mComponent != null) {
+            uri.append("component=").append(Uri.encode(mComponent.flattenToShortString(), "/")).append(';');
+        }
+        if (mExtras != null) {
+            for (String key : mExtras.keySet()) {
+                Object value = mExtras.get(key);
+                char entryType = value instanceof String ? 'S'
+                        : value instanceof Boolean ? 'B'
+                        : value instanceof Byte ? 'b'
+                        : value instanceof Character ? 'c'
+                        : value instanceof Double ? 'd'
+                        : value instanceof Float ? 'f'
+                        : value instanceof Integer ? 'i'
+                        : value instanceof Long ? 'l'
+                        : value instanceof Short ? 's'
+                        : '\0';
+                // like on Android, other types don't survive the URI
+                if (entryType != '\0') {
+                    uri.append(entryType).append('.').append(Uri.encode(key)).append('=')
+                            .append(Uri.encode(value.toString())).append(';');
+                }
+            }
+        }
+        uri.append("end");
+        return uri.toString();
+    }
+
+    public static Intent parseUri(String uri, int flags) throws URISyntaxException {
+        int i = uri.lastIndexOf('#');
+        if (i < 0) {
+            return new Intent(ACTION_VIEW, Uri.parse(uri));
+        }
+        if (!uri.startsWith("#Intent;", i)) {
+            throw new URISyntaxException(uri, "no #Intent; fragment", i);
+        }
+
+        Intent intent = new Intent(ACTION_VIEW);
+        String data = uri.substring(0, i);
+        String scheme = null;
+        i += "#Intent;".length();
+        while (!uri.startsWith("end", i)) {
+            int eq = uri.indexOf('=', i);
+            int semi = uri.indexOf(';', i);
+            if (semi < 0) {
+                throw new URISyntaxException(uri, "unterminated field", i);
+            }
+            if (eq < 0 || eq > semi) {
+                eq = i - 1;
+            }
+            String value = eq < semi ? Uri.decode(uri.substring(eq + 1, semi)) : "";
+
+            if (uri.startsWith("action=", i)) {
+                intent.setAction(value);
+            } else if (uri.startsWith("category=", i)) {
+                intent.addCategory(value);
+            } else if (uri.startsWith("type=", i)) {
+                intent.mType = value;
+            } else if (uri.startsWith("launchFlags=", i)) {
+                intent.mFlags = Integer.decode(value);
+            } else if (uri.startsWith("package=", i)) {
+                intent.mPackage = value;
+            } else if (uri.startsWith("component=", i)) {
+                intent.mComponent = ComponentName.unflattenFromString(value);
+            } else if (uri.startsWith("scheme=", i)) {
+                scheme = value;
+            } else {
+                String key = Uri.decode(uri.substring(i + 2, eq));
+                Bundle b = intent.extras();
+                if (uri.startsWith("S.", i)) {
+                    b.putString(key, value);
+                } else if (uri.startsWith("B.", i)) {
+                    b.putBoolean(key, Boolean.parseBoolean(value));
+                } else if (uri.startsWith("b.", i)) {
+                    b.putByte(key, Byte.parseByte(value));
+                } else if (uri.startsWith("c.", i)) {
+                    b.putChar(key, value.charAt(0));
+                } else if (uri.startsWith("d.", i)) {
+                    b.putDouble(key, Double.parseDouble(value));
+                } else if (uri.startsWith("f.", i)) {
+                    b.putFloat(key, Float.parseFloat(value));
+                } else if (uri.startsWith("i.", i)) {
+                    b.putInt(key, Integer.parseInt(value));
+                } else if (uri.startsWith("l.", i)) {
+                    b.putLong(key, Long.parseLong(value));
+                } else if (uri.startsWith("s.", i)) {
+                    b.putShort(key, Short.parseShort(value));
+                } else {
+                    throw new URISyntaxException(uri, "unknown EXTRA type", i);
+                }
+            }
+            i = semi + 1;
+        }
+
+        if (data.startsWith("intent:")) {
+            data = data.substring("intent:".length());
+            if (scheme != null) {
+                data = scheme + ':' + data;
+            }
+        }
+        if (data.length() > 0) {
+            intent.mData = Uri.parse(data);
+        }
+        return intent;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder(128);
+        b.append("Intent {");
+        if (mAction != null) {
+            b.append(" act=").append(mAction);
+        }
+        if (mCategories != null) {
+            b.append(" cat=").append(mCategories);
+        }
+        if (mData != null) {
+            b.append(" dat=").append(mData);
+        }
+        if (mType != null) {
+            b.append(" typ=").append(mType);
+        }
+        if (mFlags != 0) {
+            b.append(" flg=0x").append(Integer.toHexString(mFlags));
+        }
+        if (mPackage != null) {
+            b.append(" pkg=").append(mPackage);
+        }
+        if (mComponent != null) {
+            b.append(" cmp=").append(mComponent.flattenToShortString());
+        }
+        if (mExtras != null) {
+            b.append(" (has extras)");
+        }
+        b.append(" }");
+        return b.toString();
+    }
+}
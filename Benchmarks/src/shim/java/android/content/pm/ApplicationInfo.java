@@ -0,0 +1,10 @@
+package android.content.pm;
+
+/**
+ * JVM stand-in, the flags of the app the service runs in.
+ */
+public class ApplicationInfo {
+    public static final int FLAG_DEBUGGABLE = 1 << 1;
+
+    public int flags = 0;
+}
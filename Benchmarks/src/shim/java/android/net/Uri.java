@@ -0,0 +1,122 @@
+package android.net;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * JVM stand-in, an opaque string with Android's encode() and decode().
+ */
+public final class Uri {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final String mString;
+
+    private Uri(String string) {
+        mString = string;
+    }
+
+    public static Uri parse(String uriString) {
+        if (uriString == null) {
+            throw new NullPointerException("uriString");
+        }
+        return new Uri(uriString);
+    }
+
+    public String getScheme() {
+        int colon = mString.indexOf(':');
+        return colon > 0 ? mString.substring(0, colon) : null;
+    }
+
+    public static String encode(String s) {
+        return encode(s, null);
+    }
+
+    /**
+     * percent-encode everything but letters, digits, "_-!.~'()*" and the allowed characters
+     */
+    public static String encode(String s, String allow) {
+        if (s == null) {
+            return null;
+        }
+        StringBuilder encoded = null;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (isAllowed(c, allow)) {
+                if (encoded != null) {
+                    encoded.append(c);
+                }
+                continue;
+            }
+            if (encoded == null) {
+                encoded = new StringBuilder(length + 16);
+                encoded.append(s, 0, i);
+            }
+            // a surrogate pair is one character of UTF-8
+            int end = i + 1;
+            if (Character.isHighSurrogate(c) && end < length && Character.isLowSurrogate(s.charAt(end))) {
+                end++;
+            }
+            for (byte b : s.substring(i, end).getBytes(UTF_8)) {
+                encoded.append('%').append(HEX_DIGITS[(b & 0xF0) >> 4]).append(HEX_DIGITS[b & 0x0F]);
+            }
+            i = end - 1;
+        }
+        return encoded == null ? s : encoded.toString();
+    }
+
+    public static String decode(String s) {
+        if (s == null) {
+            return null;
+        }
+        if (s.indexOf('%') < 0) {
+            return s;
+        }
+        StringBuilder decoded = new StringBuilder(s.length());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int length = s.length();
+        for (int i = 0; i < length; ) {
+            char c = s.charAt(i);
+            if (c == '%' && i + 2 < length) {
+                bytes.reset();
+                while (i + 2 < length && s.charAt(i) == '%') {
+                    int hi = Character.digit(s.charAt(i + 1), 16);
+                    int lo = Character.digit(s.charAt(i + 2), 16);
+                    if (hi < 0 || lo < 0) {
+                        break;
+                    }
+                    bytes.write((hi << 4) | lo);
+                    i += 3;
+                }
+                if (bytes.size() > 0) {
+                    decoded.append(new String(bytes.toByteArray(), UTF_8));
+                    continue;
+                }
+            }
+            decoded.append(c);
+            i++;
+        }
+        return decoded.toString();
+    }
+
+    private static boolean isAllowed(char c, String allow) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                || "_-!.~'()*".indexOf(c) != -1 || (allow != null && allow.indexOf(c) != -1);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Uri && mString.equals(((Uri) obj).mString);
+    }
+
+    @Override
+    public int hashCode() {
+        return mString.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mString;
+    }
+}
@@ -0,0 +1,177 @@
+package android.os;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * JVM stand-in, a map of the value types intents carry. Keys keep their insertion
+ * order so encoded frames are stable between runs.
+ */
+public final class Bundle {
+    private final LinkedHashMap<String, Object> mMap;
+
+    public Bundle() {
+        mMap = new LinkedHashMap<String, Object>();
+    }
+
+    public Bundle(Bundle b) {
+        mMap = new LinkedHashMap<String, Object>(b.mMap);
+    }
+
+    public int size() {
+        return mMap.size();
+    }
+
+    public boolean isEmpty() {
+        return mMap.isEmpty();
+    }
+
+    public void clear() {
+        mMap.clear();
+    }
+
+    public boolean containsKey(String key) {
+        return mMap.containsKey(key);
+    }
+
+    public Object get(String key) {
+        return mMap.get(key);
+    }
+
+    public void remove(String key) {
+        mMap.remove(key);
+    }
+
+    public void putAll(Bundle map) {
+        mMap.putAll(map.mMap);
+    }
+
+    public Set<String> keySet() {
+        return mMap.keySet();
+    }
+
+    public void putBoolean(String key, boolean value) {
+        mMap.put(key, value);
+    }
+
+    public void putByte(String key, byte value) {
+        mMap.put(key, value);
+    }
+
+    public void putChar(String key, char value) {
+        mMap.put(key, value);
+    }
+
+    public void putShort(String key, short value) {
+        mMap.put(key, value);
+    }
+
+    public void putInt(String key, int value) {
+        mMap.put(key, value);
+    }
+
+    public void putLong(String key, long value) {
+        mMap.put(key, value);
+    }
+
+    public void putFloat(String key, float value) {
+        mMap.put(key, value);
+    }
+
+    public void putDouble(String key, double value) {
+        mMap.put(key, value);
+    }
+
+    public void putString(String key, String value) {
+        mMap.put(key, value);
+    }
+
+    public void putByteArray(String key, byte[] value) {
+        mMap.put(key, value);
+    }
+
+    public void putStringArray(String key, String[] value) {
+        mMap.put(key, value);
+    }
+
+    public void putIntArray(String key, int[] value) {
+        mMap.put(key, value);
+    }
+
+    public void putLongArray(String key, long[] value) {
+        mMap.put(key, value);
+    }
+
+    public void putBooleanArray(String key, boolean[] value) {
+        mMap.put(key, value);
+    }
+
+    public void putStringArrayList(String key, ArrayList<String> value) {
+        mMap.put(key, value);
+    }
+
+    public void putIntegerArrayList(String key, ArrayList<Integer> value) {
+        mMap.put(key, value);
+    }
+
+    public void putBundle(String key, Bundle value) {
+        mMap.put(key, value);
+    }
+
+    public void putSerializable(String key, Serializable value) {
+        mMap.put(key, value);
+    }
+
+    public String getString(String key) {
+        Object o = mMap.get(key);
+        return o instanceof String ? (String) o : null;
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object o = mMap.get(key);
+        return o instanceof Boolean ? (Boolean) o : defaultValue;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        Object o = mMap.get(key);
+        return o instanceof Integer ? (Integer) o : defaultValue;
+    }
+
+    public long getLong(String key, long defaultValue) {
+        Object o = mMap.get(key);
+        return o instanceof Long ? (Long) o : defaultValue;
+    }
+
+    public byte[] getByteArray(String key) {
+        Object o = mMap.get(key);
+        return o instanceof byte[] ? (byte[]) o : null;
+    }
+
+    public Bundle getBundle(String key) {
+        Object o = mMap.get(key);
+        return o instanceof Bundle ? (Bundle) o : null;
+    }
+
+    /**
+     * like Android, a list is returned as whatever list type is asked for, the
+     * elements aren't checked
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<String> getStringArrayList(String key) {
+        Object o = mMap.get(key);
+        return o instanceof ArrayList ? (ArrayList<String>) o : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public ArrayList<Integer> getIntegerArrayList(String key) {
+        Object o = mMap.get(key);
+        return o instanceof ArrayList ? (ArrayList<Integer>) o : null;
+    }
+
+    @Override
+    public String toString() {
+        return "Bundle[" + mMap + "]";
+    }
+}
@@ -0,0 +1,122 @@
+package android.os;
+
+/**
+ * JVM stand-in delivering messages on the Looper of the thread it was created on.
+ */
+public class Handler {
+
+    public interface Callback {
+        public boolean handleMessage(Message msg);
+    }
+
+    private final Looper mLooper;
+    private final Callback mCallback;
+
+    public Handler() {
+        this(Looper.myLooper(), null);
+        if (mLooper == null) {
+            throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+        }
+    }
+
+    public Handler(Callback callback) {
+        this(Looper.myLooper(), callback);
+        if (mLooper == null) {
+            throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+        }
+    }
+
+    public Handler(Looper looper) {
+        this(looper, null);
+    }
+
+    public Handler(Looper looper, Callback callback) {
+        mLooper = looper;
+        mCallback = callback;
+    }
+
+    public void handleMessage(Message msg) {
+    }
+
+    public void dispatchMessage(Message msg) {
+        if (msg.callback != null) {
+            msg.callback.run();
+        } else if (mCallback == null || !mCallback.handleMessage(msg)) {
+            handleMessage(msg);
+        }
+    }
+
+    public final Looper getLooper() {
+        return mLooper;
+    }
+
+    public final Message obtainMessage() {
+        return Message.obtain(this, 0);
+    }
+
+    public final Message obtainMessage(int what) {
+        return Message.obtain(this, what);
+    }
+
+    public final Message obtainMessage(int what, Object obj) {
+        Message m = Message.obtain(this, what);
+        m.obj = obj;
+        return m;
+    }
+
+    public final Message obtainMessage(int what, int arg1, int arg2) {
+        Message m = Message.obtain(this, what);
+        m.arg1 = arg1;
+        m.arg2 = arg2;
+        return m;
+    }
+
+    public final Message obtainMessage(int what, int arg1, int arg2, Object obj) {
+        Message m = obtainMessage(what, arg1, arg2);
+        m.obj = obj;
+        return m;
+    }
+
+    public final boolean post(Runnable r) {
+        return postDelayed(r, 0);
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        Message m = Message.obtain(this, 0);
+        m.callback = r;
+        return sendMessageDelayed(m, delayMillis);
+    }
+
+    public final boolean sendMessage(Message msg) {
+        return sendMessageDelayed(msg, 0);
+    }
+
+    public final boolean sendEmptyMessage(int what) {
+        return sendMessageDelayed(obtainMessage(what), 0);
+    }
+
+    public final boolean sendEmptyMessageDelayed(int what, long delayMillis) {
+        return sendMessageDelayed(obtainMessage(what), delayMillis);
+    }
+
+    public final boolean sendMessageDelayed(Message msg, long delayMillis) {
+        msg.target = this;
+        return mLooper.enqueue(msg, SystemClock.uptimeMillis() + Math.max(delayMillis, 0));
+    }
+
+    public final void removeMessages(int what) {
+        mLooper.remove(this, what);
+    }
+
+    public final void removeMessages(int what, Object object) {
+        mLooper.remove(this, what, object);
+    }
+
+    public final void removeCallbacksAndMessages(Object token) {
+        mLooper.removeAll(this, token);
+    }
+
+    public final boolean hasMessages(int what) {
+        return mLooper.has(this, what);
+    }
+}
@@ -0,0 +1,7 @@
+package android.os;
+
+/**
+ * JVM stand-in, only handed from a service to the Messenger of its client.
+ */
+public interface IBinder {
+}
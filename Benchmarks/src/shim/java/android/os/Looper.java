@@ -0,0 +1,161 @@
+package android.os;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * JVM stand-in: a thread's queue of messages ordered by due time, run by loop() until
+ * quit() is called.
+ */
+public final class Looper {
+    private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<Looper>();
+
+    private final Thread mThread;
+    private final PriorityQueue<Message> mQueue = new PriorityQueue<Message>(16, new Comparator<Message>() {
+        @Override
+        public int compare(Message lhs, Message rhs) {
+            if (lhs.when != rhs.when) {
+                return lhs.when < rhs.when ? -1 : 1;
+            }
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    });
+    private long mSequence = 0;
+    private boolean isQuitting = false;
+
+    private Looper() {
+        mThread = Thread.currentThread();
+    }
+
+    public static void prepare() {
+        if (sThreadLocal.get() != null) {
+            throw new RuntimeException("Only one Looper may be created per thread");
+        }
+        sThreadLocal.set(new Looper());
+    }
+
+    public static Looper myLooper() {
+        return sThreadLocal.get();
+    }
+
+    public static void loop() {
+        Looper me = myLooper();
+        if (me == null) {
+            throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+        }
+        while (true) {
+            Message msg = me.next();
+            if (msg == null) {
+                return;
+            }
+            msg.target.dispatchMessage(msg);
+        }
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    public void quit() {
+        synchronized (mQueue) {
+            isQuitting = true;
+            mQueue.clear();
+            mQueue.notifyAll();
+        }
+    }
+
+    boolean enqueue(Message msg, long when) {
+        synchronized (mQueue) {
+            if (isQuitting) {
+                return false;
+            }
+            msg.when = when;
+            msg.sequence = mSequence++;
+            mQueue.offer(msg);
+            mQueue.notifyAll();
+            return true;
+        }
+    }
+
+    void remove(Handler h, int what) {
+        synchronized (mQueue) {
+            Iterator<Message> it = mQueue.iterator();
+            while (it.hasNext()) {
+                Message msg = it.next();
+                if (msg.target == h && msg.what == what && msg.callback == null) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param object only messages with this obj, null for any
+     */
+    void remove(Handler h, int what, Object object) {
+        synchronized (mQueue) {
+            Iterator<Message> it = mQueue.iterator();
+            while (it.hasNext()) {
+                Message msg = it.next();
+                if (msg.target == h && msg.what == what && msg.callback == null
+                        && (object == null || msg.obj == object)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param token only messages and callbacks with this obj, null for all of the handler's
+     */
+    void removeAll(Handler h, Object token) {
+        synchronized (mQueue) {
+            Iterator<Message> it = mQueue.iterator();
+            while (it.hasNext()) {
+                Message msg = it.next();
+                if (msg.target == h && (token == null || msg.obj == token)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    boolean has(Handler h, int what) {
+        synchronized (mQueue) {
+            for (Message msg : mQueue) {
+                if (msg.target == h && msg.what == what && msg.callback == null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return next due message, null once quitting
+     */
+    private Message next() {
+        synchronized (mQueue) {
+            while (true) {
+                if (isQuitting) {
+                    return null;
+                }
+                Message head = mQueue.peek();
+                long now = SystemClock.uptimeMillis();
+                if (head != null && head.when <= now) {
+                    return mQueue.poll();
+                }
+                try {
+                    if (head == null) {
+                        mQueue.wait();
+                    } else {
+                        mQueue.wait(head.when - now);
+                    }
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+        }
+    }
+}
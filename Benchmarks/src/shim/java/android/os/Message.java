@@ -0,0 +1,66 @@
+package android.os;
+
+/**
+ * JVM stand-in. Messages aren't recycled, the JVM's allocator is cheap enough here.
+ */
+public final class Message {
+    public int what;
+    public int arg1;
+    public int arg2;
+    public Object obj;
+    public Messenger replyTo;
+
+    Bundle data;
+
+    Handler target;
+    Runnable callback;
+    // uptime the message is due at, and its place among messages due at the same time
+    long when;
+    long sequence;
+
+    public static Message obtain() {
+        return new Message();
+    }
+
+    public static Message obtain(Handler h, int what) {
+        Message m = new Message();
+        m.target = h;
+        m.what = what;
+        return m;
+    }
+
+    public static Message obtain(Handler h, int what, int arg1, int arg2, Object obj) {
+        Message m = obtain(h, what);
+        m.arg1 = arg1;
+        m.arg2 = arg2;
+        m.obj = obj;
+        return m;
+    }
+
+    public Bundle getData() {
+        if (data == null) {
+            data = new Bundle();
+        }
+        return data;
+    }
+
+    public Bundle peekData() {
+        return data;
+    }
+
+    public void setData(Bundle data) {
+        this.data = data;
+    }
+
+    public Handler getTarget() {
+        return target;
+    }
+
+    public void setTarget(Handler target) {
+        this.target = target;
+    }
+
+    public void sendToTarget() {
+        target.sendMessage(this);
+    }
+}
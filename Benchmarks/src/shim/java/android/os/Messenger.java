@@ -0,0 +1,35 @@
+package android.os;
+
+/**
+ * JVM stand-in. Everything lives in one process, the binder is the Messenger's handler
+ * and sending is posting a message to it.
+ */
+public final class Messenger {
+    private final Handler mTarget;
+
+    public Messenger(Handler target) {
+        mTarget = target;
+    }
+
+    public Messenger(IBinder target) {
+        mTarget = ((HandlerBinder) target).mHandler;
+    }
+
+    public void send(Message message) throws RemoteException {
+        if (!mTarget.sendMessage(message)) {
+            throw new RemoteException("target is gone");
+        }
+    }
+
+    public IBinder getBinder() {
+        return new HandlerBinder(mTarget);
+    }
+
+    private static final class HandlerBinder implements IBinder {
+        private final Handler mHandler;
+
+        HandlerBinder(Handler handler) {
+            mHandler = handler;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package android.os;
+
+/**
+ * JVM stand-in, thrown when the target of a Messenger has quit.
+ */
+public class RemoteException extends Exception {
+    public RemoteException() {
+    }
+
+    public RemoteException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,28 @@
+package android.util;
+
+import java.nio.charset.Charset;
+
+/**
+ * JVM stand-in for the DEFAULT flavour: lines of 76 characters, each ended by '\n'.
+ * Other flags are ignored.
+ */
+public final class Base64 {
+    public static final int DEFAULT = 0;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final int LINE_LENGTH = 76;
+
+    private Base64() {
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        if (input.length == 0) {
+            return "";
+        }
+        return java.util.Base64.getMimeEncoder(LINE_LENGTH, new byte[]{'\n'}).encodeToString(input) + "\n";
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getMimeDecoder().decode(str.getBytes(US_ASCII));
+    }
+}
@@ -0,0 +1,7 @@
+package com.masterbaron.intenttunnel.common;
+
+/**
+ * JVM stand-in for the generated resource ids of the Common module, none are used here.
+ */
+public final class R {
+}
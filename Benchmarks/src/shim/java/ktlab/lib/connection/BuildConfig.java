@@ -0,0 +1,9 @@
+package ktlab.lib.connection;
+
+/**
+ * Stands in for the class the Android build generates. Benchmarks measure the
+ * release configuration, so logging guards compile away like they do on a device.
+ */
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+}
@@ -0,0 +1,76 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Intent;
+import android.os.RemoteException;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bluetooth turned off under a router that is sending over its server connection.
+ * The packets in flight on it must still be delivered, once.
+ */
+public class BluetoothStateTest extends TestCase {
+    private static final int INTENTS = 500;
+    private static final long TTL = TimeUnit.MINUTES.toMillis(10);
+    private static final long DELIVERY_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private LoopbackRouter mSender;
+    private LoopbackRouter mReceiver;
+
+    @Override
+    protected void setUp() throws Exception {
+        LoopbackLink toSender = new LoopbackLink();
+        LoopbackLink toReceiver = new LoopbackLink();
+        mReceiver = LoopbackRouter.start(toSender, toReceiver, null);
+        mSender = LoopbackRouter.start(toReceiver, toSender, new LoopbackRouter.Setup() {
+            @Override
+            public void beforeCreate(RouterService router) {
+                RouterService.setQueuePolicy(router, PacketQueue.CLASS_NORMAL, INTENTS, PacketQueue.DROP_NEWEST);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSender.shutdown();
+        mReceiver.shutdown();
+    }
+
+    public void testInFlightIntentsSurviveBluetoothOff() throws Exception {
+        // the receiver's client connects to the sender's server, the sender then sends over it
+        mReceiver.sendBroadcastIntent(-1, RouterService.PRIORITY_NORMAL, TTL);
+        assertTrue(mSender.awaitDeliveries(1, DELIVERY_TIMEOUT));
+
+        for (int i = 0; i < INTENTS; i++) {
+            mSender.sendBroadcastIntent(i, RouterService.PRIORITY_NORMAL, TTL);
+        }
+
+        // turned off while the server has packets in flight
+        final CountDownLatch turnedOff = new CountDownLatch(1);
+        mSender.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mSender.getServerService().isSending()) {
+                    mSender.post(this);
+                    return;
+                }
+                Intent off = new Intent(BluetoothAdapter.ACTION_STATE_CHANGED);
+                off.putExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_OFF);
+                mSender.onStartCommand(off, 0, 1);
+                turnedOff.countDown();
+            }
+        });
+        assertTrue(turnedOff.await(DELIVERY_TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // what was in flight goes out through the client
+        assertTrue(mReceiver.awaitDelivered(INTENTS, DELIVERY_TIMEOUT));
+        Thread.sleep(500);
+        for (int i = 0; i < INTENTS; i++) {
+            assertEquals("intent " + i, 1, mReceiver.getDelivered(i));
+        }
+    }
+}
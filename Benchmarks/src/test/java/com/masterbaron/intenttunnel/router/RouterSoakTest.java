@@ -0,0 +1,88 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.os.RemoteException;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two routers over a LoopbackLink that is broken at random moments. Every intent must
+ * be broadcast on the other side exactly once, however often the link drops and the
+ * packets in flight are sent again.
+ */
+public class RouterSoakTest extends TestCase {
+    // low priority intents queued first, high ones overtake them. the low ones still
+    // waiting arrive more than a dedup bitmap behind the highest packet id.
+    private static final int LOW_INTENTS = 1500;
+    private static final int HIGH_INTENTS = 1500;
+    private static final int INTENTS = LOW_INTENTS + HIGH_INTENTS;
+
+    private static final long TTL = TimeUnit.MINUTES.toMillis(10);
+    private static final int KILLS = 3;
+    private static final long DELIVERY_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    private LoopbackLink mLink;
+    private LoopbackRouter mSender;
+    private LoopbackRouter mReceiver;
+
+    @Override
+    protected void setUp() throws Exception {
+        mLink = new LoopbackLink();
+        mReceiver = LoopbackRouter.start(new LoopbackLink(), mLink, null);
+        mSender = LoopbackRouter.start(mLink, new LoopbackLink(), new LoopbackRouter.Setup() {
+            @Override
+            public void beforeCreate(RouterService router) {
+                // room for the whole run, nothing may be dropped for a full queue
+                for (int priorityClass : new int[]{PacketQueue.CLASS_HIGH, PacketQueue.CLASS_NORMAL,
+                        PacketQueue.CLASS_LOW}) {
+                    RouterService.setQueuePolicy(router, priorityClass, INTENTS, PacketQueue.DROP_NEWEST);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSender.shutdown();
+        mReceiver.shutdown();
+    }
+
+    public void testEveryIntentDeliveredOnceAcrossRandomKills() throws Exception {
+        long seed = System.nanoTime();
+        Random random = new Random(seed);
+
+        // queued in one go, before the connection they start is up
+        mSender.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < INTENTS; i++) {
+                        int priority = i < LOW_INTENTS ? RouterService.PRIORITY_LOW : RouterService.PRIORITY_HIGH;
+                        mSender.sendBroadcastIntent(i, priority, TTL);
+                    }
+                } catch (RemoteException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+
+        int kills = 0;
+        while (kills < KILLS && !mReceiver.awaitDelivered(INTENTS, 20 + random.nextInt(130))) {
+            if (mLink.kill()) {
+                kills++;
+            }
+        }
+        assertTrue("not all delivered, seed " + seed + ", kills " + kills,
+                mReceiver.awaitDelivered(INTENTS, DELIVERY_TIMEOUT));
+
+        // give resent packets that were already delivered the chance to show up twice
+        Thread.sleep(500);
+        for (int i = 0; i < INTENTS; i++) {
+            assertEquals("intent " + i + ", seed " + seed + ", kills " + kills, 1, mReceiver.getDelivered(i));
+        }
+        System.out.println("soak: " + INTENTS + " intents, " + kills + " kills, " + mLink.getConnects()
+                + " connections, seed " + seed);
+    }
+}
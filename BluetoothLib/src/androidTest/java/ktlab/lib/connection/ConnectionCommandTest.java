@@ -0,0 +1,72 @@
+package ktlab.lib.connection;
+
+import junit.framework.TestCase;
+
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ConnectionCommandTest extends TestCase {
+    private static final byte TYPE = 100;
+    private static final ByteOrder ORDER = ByteOrder.BIG_ENDIAN;
+
+    private final byte[] mScratch = new byte[ConnectionCommand.HEADER_LENGTH + ConnectionCommand.CHUNK_HEADER_LENGTH
+            + ConnectionCommand.GATHER_LIMIT];
+
+    /**
+     * remembers the buffer and length of every write
+     */
+    private static class RecordingStream extends OutputStream {
+        final List<byte[]> buffers = new ArrayList<byte[]>();
+        final List<Integer> lengths = new ArrayList<Integer>();
+
+        @Override
+        public void write(int b) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffers.add(b);
+            lengths.add(len);
+        }
+    }
+
+    public void testSmallFrameIsGathered() throws Exception {
+        ConnectionCommand command = ConnectionCommand.wrap(TYPE, new byte[ConnectionCommand.GATHER_LIMIT]);
+        RecordingStream out = new RecordingStream();
+        command.writeTo(out, ORDER, mScratch);
+        assertEquals(1, out.buffers.size());
+        assertSame(mScratch, out.buffers.get(0));
+        assertEquals(ConnectionCommand.HEADER_LENGTH + ConnectionCommand.GATHER_LIMIT, (int) out.lengths.get(0));
+    }
+
+    public void testLargeFrameIsWrittenFromOption() throws Exception {
+        byte[] option = new byte[ConnectionCommand.GATHER_LIMIT + 1];
+        ConnectionCommand command = ConnectionCommand.wrap(TYPE, option);
+        RecordingStream out = new RecordingStream();
+        command.writeTo(out, ORDER, mScratch);
+        assertEquals(2, out.buffers.size());
+        assertSame(mScratch, out.buffers.get(0));
+        assertEquals(ConnectionCommand.HEADER_LENGTH, (int) out.lengths.get(0));
+        assertSame(option, out.buffers.get(1));
+    }
+
+    public void testChunkSliceIsWrittenFromOption() throws Exception {
+        byte[] option = new byte[4 * ConnectionCommand.DEFAULT_CHUNK_SIZE];
+        ConnectionCommand command = ConnectionCommand.wrap(TYPE, option);
+        RecordingStream out = new RecordingStream();
+        command.writeChunkTo(out, ORDER, mScratch, 0, ConnectionCommand.DEFAULT_CHUNK_SIZE);
+        assertEquals(2, out.buffers.size());
+        assertEquals(ConnectionCommand.HEADER_LENGTH + ConnectionCommand.CHUNK_HEADER_LENGTH, (int) out.lengths.get(0));
+        assertSame(option, out.buffers.get(1));
+        assertEquals(ConnectionCommand.DEFAULT_CHUNK_SIZE, (int) out.lengths.get(1));
+
+        // a last slice small enough is gathered
+        out = new RecordingStream();
+        command.writeChunkTo(out, ORDER, mScratch, option.length - 16, 16);
+        assertEquals(1, out.buffers.size());
+        assertSame(mScratch, out.buffers.get(0));
+    }
+}
@@ -0,0 +1,147 @@
+package ktlab.lib.connection;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives KeepAlive the way Connection does, on a simulated clock: one wakeup armed
+ * at a time, traffic only recorded, poll() when the wakeup fires.
+ */
+public class KeepAliveTest extends TestCase {
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+
+    // the fixed tick KeepAlive replaced, Connection woke up that often for the whole link
+    private static final long LEGACY_PING_INTERVAL = SECOND;
+
+    /**
+     * the link as Connection sees it, stepped one millisecond at a time
+     */
+    private static class Link {
+        final KeepAlive keepAlive;
+        long now = 0;
+        long wake;
+        int wakeups = 0;
+        int pings = 0;
+        // last sign of life KeepAlive was told about
+        long lastAlive = 0;
+        // time poll() declared the link dead, -1 while it lives
+        long dead = -1;
+        boolean isPeerAnswering = true;
+        boolean isWriterStalled = false;
+
+        Link(KeepAlive keepAlive) {
+            this.keepAlive = keepAlive;
+            keepAlive.start(now);
+            wake = now;
+        }
+
+        void traffic() {
+            keepAlive.onTraffic(now);
+            lastAlive = now;
+            if (isPeerAnswering) {
+                keepAlive.onPeerSeen(now);
+            }
+        }
+
+        /**
+         * @param frameInterval a frame every so often, 0 for an idle link
+         */
+        void run(long duration, long frameInterval) {
+            long end = now + duration;
+            for (; now < end && dead < 0; now++) {
+                if (frameInterval > 0 && now % frameInterval == 0) {
+                    traffic();
+                }
+                if (now < wake) {
+                    continue;
+                }
+                wakeups++;
+                int action = keepAlive.poll(now, !isWriterStalled);
+                if (action == KeepAlive.ACTION_DEAD) {
+                    dead = now;
+                    return;
+                } else if (action == KeepAlive.ACTION_PING) {
+                    pings++;
+                    keepAlive.onProbeSent(now);
+                    // the ping went out
+                    keepAlive.onAlive(now);
+                    lastAlive = now;
+                    if (isPeerAnswering) {
+                        keepAlive.onPeerSeen(now);
+                    }
+                }
+                wake = Math.max(keepAlive.getNextWake(now), now + 1);
+            }
+        }
+    }
+
+    /**
+     * an hour of a mostly idle link with a 10 s burst every 5 minutes
+     */
+    public void testFewerWakeupsThanFixedTick() {
+        Link link = new Link(new KeepAlive());
+        for (long burst = 0; burst < HOUR; burst += 5 * MINUTE) {
+            link.run(10 * SECOND, 100);
+            link.run(5 * MINUTE - 10 * SECOND, 0);
+        }
+        assertEquals(-1, link.dead);
+
+        long legacyWakeups = HOUR / LEGACY_PING_INTERVAL;
+        assertTrue(link.wakeups + " wakeups", link.wakeups * 8 < legacyWakeups);
+    }
+
+    /**
+     * while frames flow no ping is due, frames from the start prove the link too
+     */
+    public void testNoPingWhileTrafficFlows() {
+        Link link = new Link(new KeepAlive());
+        link.run(10 * MINUTE, 200);
+        assertEquals(-1, link.dead);
+        assertEquals(0, link.pings);
+    }
+
+    /**
+     * idle pings back off from the base interval to the ceiling
+     */
+    public void testIdleBacksOffToCeiling() {
+        Link link = new Link(new KeepAlive());
+        link.run(10 * MINUTE, 0);
+        assertEquals(-1, link.dead);
+        // 2.5 + 5 + 10 s, then every 10 s
+        long expected = 1 + 3 + (10 * MINUTE - 17500) / KeepAlive.DEFAULT_MAX_INTERVAL;
+        assertTrue(link.pings + " pings", Math.abs(link.pings - expected) <= 1);
+    }
+
+    /**
+     * a peer gone silent with nothing getting out to it is given up on within the bound
+     */
+    public void testSilentPeerDetectedWithinBound() {
+        Link link = new Link(new KeepAlive());
+        link.run(MINUTE, 100);
+        link.isPeerAnswering = false;
+        link.isWriterStalled = true;
+        link.run(HOUR, 0);
+        long lastAlive = link.lastAlive;
+        assertTrue(link.dead > lastAlive + KeepAlive.DEFAULT_LIVENESS_BOUND);
+        assertTrue(link.dead <= lastAlive + KeepAlive.DEFAULT_LIVENESS_BOUND + 1);
+    }
+
+    /**
+     * with answered pings, the link is dead once one goes unanswered past the probe timeout
+     */
+    public void testUnansweredProbeDetectedEarly() {
+        KeepAlive keepAlive = new KeepAlive();
+        keepAlive.setProbeTimeout(600);
+        Link link = new Link(keepAlive);
+        link.run(MINUTE, 0);
+        assertEquals(-1, link.dead);
+        link.isPeerAnswering = false;
+        long silentSince = link.now;
+        link.run(HOUR, 0);
+        assertTrue(link.dead > 0);
+        // the next ping is due within the ceiling, its answer within the timeout
+        assertTrue(link.dead <= silentSince + KeepAlive.DEFAULT_MAX_INTERVAL + 600 + 1);
+        assertTrue(link.dead < silentSince + KeepAlive.DEFAULT_LIVENESS_BOUND);
+    }
+}
@@ -0,0 +1,129 @@
+package ktlab.lib.connection;
+
+/**
+ * Size-classed pool of receive buffers. Classes are powers of two from
+ * MIN_CLASS_SIZE up to the configured maximum buffer size; larger requests
+ * are allocated directly and never pooled.
+ */
+public class BufferPool {
+
+    public static final int MIN_CLASS_SIZE = 64;
+
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_PER_CLASS = 8;
+    public static final int DEFAULT_MAX_POOLED_BYTES = 256 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int mMaxBufferSize;
+    private final int mMaxPerClass;
+    private final int mMaxPooledBytes;
+
+    // free buffers per class, used as stacks
+    private final byte[][][] mFree;
+    private final int[] mFreeCount;
+    private int mPooledBytes = 0;
+
+    // counters
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mDiscards = 0;
+
+    public BufferPool() {
+        this(DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_PER_CLASS, DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    /**
+     * @param maxBufferSize  largest pooled buffer, rounded up to a power of two
+     * @param maxPerClass    free buffers kept per size class
+     * @param maxPooledBytes free bytes kept across all classes
+     */
+    public BufferPool(int maxBufferSize, int maxPerClass, int maxPooledBytes) {
+        mMaxBufferSize = classSize(Math.max(maxBufferSize, MIN_CLASS_SIZE));
+        mMaxPerClass = maxPerClass;
+        mMaxPooledBytes = maxPooledBytes;
+
+        int classes = classIndex(mMaxBufferSize) + 1;
+        mFree = new byte[classes][maxPerClass][];
+        mFreeCount = new int[classes];
+    }
+
+    /**
+     * @param length needed length
+     * @return a buffer of at least length bytes. only the first length bytes
+     * are meaningful to the caller.
+     */
+    public synchronized byte[] acquire(int length) {
+        if (length == 0) {
+            return EMPTY;
+        }
+        if (length > mMaxBufferSize) {
+            mMisses++;
+            return new byte[length];
+        }
+
+        int index = classIndex(length);
+        int count = mFreeCount[index];
+        if (count > 0) {
+            byte[] buffer = mFree[index][--count];
+            mFree[index][count] = null;
+            mFreeCount[index] = count;
+            mPooledBytes -= buffer.length;
+            mHits++;
+            return buffer;
+        }
+
+        mMisses++;
+        return new byte[classSize(length)];
+    }
+
+    /**
+     * return a buffer obtained from acquire. buffers that don't match a size
+     * class or would exceed the caps are left to the garbage collector.
+     */
+    public synchronized void release(byte[] buffer) {
+        int length = buffer.length;
+        if (length < MIN_CLASS_SIZE || length > mMaxBufferSize || classSize(length) != length) {
+            return;
+        }
+
+        int index = classIndex(length);
+        int count = mFreeCount[index];
+        if (count == mMaxPerClass || mPooledBytes + length > mMaxPooledBytes) {
+            mDiscards++;
+            return;
+        }
+
+        mFree[index][count] = buffer;
+        mFreeCount[index] = count + 1;
+        mPooledBytes += length;
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getDiscards() {
+        return mDiscards;
+    }
+
+    public synchronized int getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    private static int classSize(int length) {
+        if (length <= MIN_CLASS_SIZE) {
+            return MIN_CLASS_SIZE;
+        }
+        return Integer.highestOneBit(length - 1) << 1;
+    }
+
+    private static int classIndex(int length) {
+        return Integer.numberOfTrailingZeros(classSize(length))
+                - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+    }
+}
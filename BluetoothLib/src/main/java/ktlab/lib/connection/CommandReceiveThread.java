@@ -1,98 +1,231 @@
 package ktlab.lib.connection;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
-import android.os.Message;
+import android.os.Handler;
 import android.util.Log;
 
+/**
+ * Long-lived receive loop. Decodes frames back-to-back from the input stream
+ * and posts each finished command to the handler as EVENT_DATA_RECEIVED.
+ * CHUNK frames are reassembled per stream before the command is posted.
+ * CREDIT frames go straight to the writer, a busy handler doesn't delay them.
+ * With RTT probes on, timestamped pings are echoed by the writer the same way
+ * and pongs are timed here, so neither measures the handler's backlog.
+ */
 public class CommandReceiveThread extends Thread {
 
-    private boolean forceStop = false;
+    private volatile boolean forceStop = false;
 
     private final InputStream mInput;
-    private Message mMessage;
-    private ByteOrder mOrder;
-
-    public CommandReceiveThread(InputStream in, Message msg, ByteOrder order) {
+    private final Handler mHandler;
+    private final ByteOrder mOrder;
+    private final BufferPool mPool;
+    private final CommandSendThread mSendThread;
+    private final RttEstimator mRtt;
+    private volatile boolean useRttProbes = false;
+
+    // commands being reassembled from chunks, per stream
+    private final ConnectionCommand[] mPartial = new ConnectionCommand[ConnectionCommand.MAX_STREAMS];
+    private final int[] mPartialFilled = new int[ConnectionCommand.MAX_STREAMS];
+
+    public CommandReceiveThread(InputStream in, Handler handler, ByteOrder order, BufferPool pool,
+            CommandSendThread sendThread, RttEstimator rtt) {
+        super("CommandReceiveThread");
         mInput = in;
-        mMessage = msg;
+        mHandler = handler;
         mOrder = order;
+        mPool = pool;
+        mSendThread = sendThread;
+        mRtt = rtt;
+    }
+
+    /**
+     * answer timestamped pings and time the pongs. only for peers known to do the same.
+     */
+    public void setRttProbes(boolean enabled) {
+        useRttProbes = enabled;
     }
 
     public void run() {
+        byte[] rawHeader = new byte[ConnectionCommand.HEADER_LENGTH];
+        byte[] rawChunkHeader = new byte[Math.max(ConnectionCommand.CHUNK_HEADER_LENGTH, ConnectionCommand.PROBE_LENGTH)];
+
         try {
+            while (!forceStop) {
+                ConnectionCommand command = receiveCommand(rawHeader, rawChunkHeader);
+                if (command == null) {
+                    // stopped while waiting for data
+                    return;
+                }
 
-            byte[] rawHeader = new byte[ConnectionCommand.HEADER_LENGTH];
+                mHandler.obtainMessage(Connection.EVENT_DATA_RECEIVED, command).sendToTarget();
+            }
+        } catch (Exception e) {
+            if (!forceStop) {
+                Log.e("CommandReceiveThread", "error", e);
+                mHandler.obtainMessage(Connection.EVENT_CONNECTION_FAIL).sendToTarget();
+            }
+        }
+    }
 
-            int receivedSize = 0;
+    /**
+     * receive frames until a command is complete. the option is read straight
+     * into a pooled buffer the command is built around, so it is never copied,
+     * chunks included.
+     *
+     * @param rawHeader      header buffer, reused between frames
+     * @param rawChunkHeader chunk header buffer, reused between frames and for credits and pongs
+     * @return received command, or null if stopped
+     */
+    private ConnectionCommand receiveCommand(byte[] rawHeader, byte[] rawChunkHeader) throws IOException {
+        while (true) {
+            // receive header, blocking until it arrives
+            if (!readFully(rawHeader, 0, ConnectionCommand.HEADER_LENGTH)) {
+                return null;
+            }
 
-            // receive header
-            while (!forceStop && (receivedSize < ConnectionCommand.HEADER_LENGTH)) {
-                int length = 0;
-                try {
-                    length = mInput.read(rawHeader, receivedSize,
-                            ConnectionCommand.HEADER_LENGTH - receivedSize);
-                } catch (IOException e) {
-                    Log.e("CommandReceiveThread", "error", e);
-                    mMessage.what = Connection.EVENT_CONNECTION_FAIL;
-                    mMessage.sendToTarget();
-                    return;
+            byte what = rawHeader[0];
+            int optionLen = ConnectionCommand.getOptionLength(rawHeader, mOrder);
+            if (TunnelLog.VERBOSE) {
+                TunnelLog.v("CommandReceiveThread", "what=" + what + " / len = " + optionLen);
+            }
+            if (optionLen < 0) {
+                throw new IOException("invalid option length: " + optionLen);
+            }
+
+            if (what == ConnectionCommand.CHUNK) {
+                ConnectionCommand command = receiveChunk(optionLen, rawChunkHeader);
+                if (command != null || forceStop) {
+                    return command;
+                }
+                // more chunks to come
+                continue;
+            }
+
+            if (what == ConnectionCommand.CREDIT && optionLen == ConnectionCommand.CREDIT_LENGTH) {
+                // reuse the chunk header buffer, it is large enough
+                if (!readFully(rawChunkHeader, 0, ConnectionCommand.CREDIT_LENGTH)) {
+                    return null;
                 }
-                if (length != -1) {
-                    receivedSize += length;
+                int credits = ConnectionCommand.getInt(rawChunkHeader, 0, mOrder);
+                if (TunnelLog.VERBOSE) {
+                    TunnelLog.v("CommandReceiveThread", "credits granted: " + credits);
                 }
+                mSendThread.addCredits(credits);
+                continue;
+            }
 
-                if (length == 0) {
-                    try {
-                        sleep(50);
-                    } catch (InterruptedException e) {
-                        // DO NOTHING
-                    }
+            if (what == ConnectionCommand.PONG && optionLen == ConnectionCommand.PROBE_LENGTH) {
+                if (!readFully(rawChunkHeader, 0, ConnectionCommand.PROBE_LENGTH)) {
+                    return null;
                 }
+                if (useRttProbes) {
+                    long rtt = System.nanoTime() - ConnectionCommand.getLong(rawChunkHeader, 0, mOrder);
+                    mRtt.onSample(rtt);
+                    mHandler.obtainMessage(Connection.EVENT_PONG_RECEIVED).sendToTarget();
+                }
+                continue;
             }
 
-            ByteBuffer bb = ByteBuffer.wrap(rawHeader).order(mOrder);
-            byte what = bb.get();
-            int optionLen = bb.getInt();
-            Log.v("CommandReceiveThread", "what=" + what + " / len = " + optionLen);
-            byte[] rawOption = new byte[optionLen];
-            receivedSize = 0;
+            byte[] rawOption = mPool.acquire(optionLen);
 
             // receive option
-            while (!forceStop && (receivedSize < optionLen)) {
-
-                int length = 0;
-                try {
-                    length = mInput.read(rawOption, receivedSize, optionLen
-                            - receivedSize);
-                } catch (IOException e) {
-                    Log.e("CommandReceiveThread", "error", e);
-                    mMessage.what = Connection.EVENT_CONNECTION_FAIL;
-                    mMessage.sendToTarget();
-                    return;
-                }
-                if (length != -1) {
-                    receivedSize += length;
+            boolean received = false;
+            try {
+                received = readFully(rawOption, 0, optionLen);
+            } finally {
+                if (!received) {
+                    mPool.release(rawOption);
                 }
             }
+            if (!received) {
+                return null;
+            }
+
+            if (what == ConnectionCommand.PING && optionLen == ConnectionCommand.PROBE_LENGTH && useRttProbes) {
+                mSendThread.echoPing(ConnectionCommand.getLong(rawOption, 0, mOrder));
+            }
+            return ConnectionCommand.wrapPooled(what, rawOption, optionLen, mPool);
+        }
+    }
+
+    /**
+     * receive one CHUNK frame into the command reassembled for its stream
+     *
+     * @return the command once its last chunk arrived, otherwise null
+     */
+    private ConnectionCommand receiveChunk(int optionLen, byte[] rawChunkHeader) throws IOException {
+        int sliceLen = optionLen - ConnectionCommand.CHUNK_HEADER_LENGTH;
+        if (sliceLen < 0) {
+            throw new IOException("invalid chunk length: " + optionLen);
+        }
+        if (!readFully(rawChunkHeader, 0, ConnectionCommand.CHUNK_HEADER_LENGTH)) {
+            return null;
+        }
+
+        int stream = rawChunkHeader[0];
+        int flags = rawChunkHeader[1];
+        byte type = rawChunkHeader[2];
+        int totalLen = ConnectionCommand.getInt(rawChunkHeader, 3, mOrder);
+        if (stream < 0 || stream >= ConnectionCommand.MAX_STREAMS || totalLen < 0) {
+            throw new IOException("invalid chunk stream=" + stream + " len=" + totalLen);
+        }
 
-            byte[] orderedOption = new byte[rawOption.length];
-            ByteBuffer.wrap(rawOption).order(mOrder).get(orderedOption);
+        ConnectionCommand partial = mPartial[stream];
+        if ((flags & ConnectionCommand.CHUNK_FIRST) != 0) {
+            if (partial != null) {
+                partial.release();
+            }
+            partial = ConnectionCommand.wrapPooled(type, mPool.acquire(totalLen), totalLen, mPool);
+            partial.stream = stream;
+            mPartial[stream] = partial;
+            mPartialFilled[stream] = 0;
+        } else if (partial == null) {
+            throw new IOException("chunk without start on stream " + stream);
+        }
 
-            ConnectionCommand command = ConnectionCommand.fromHeaderAndOption(
-                    rawHeader, rawOption, mOrder);
+        int filled = mPartialFilled[stream];
+        if (filled + sliceLen > partial.optionLen) {
+            throw new IOException("chunk overflows command on stream " + stream);
+        }
+        if (!readFully(partial.option, filled, sliceLen)) {
+            return null;
+        }
+        mPartialFilled[stream] = filled + sliceLen;
 
-            Log.v("CommandReceiverThread", "CommandReceiveThread=" + mMessage.what);
-            mMessage.obj = command;
+        if ((flags & ConnectionCommand.CHUNK_LAST) == 0) {
+            return null;
         }
-        catch ( Exception e ) {
-            Log.e("CommandReceiveThread", "error", e);
-            mMessage.what = Connection.EVENT_CONNECTION_FAIL;
+        if (filled + sliceLen != partial.optionLen) {
+            throw new IOException("short chunked command on stream " + stream);
+        }
+        mPartial[stream] = null;
+        return partial;
+    }
+
+    /**
+     * block until length bytes have been read
+     *
+     * @return false if stopped before the bytes arrived
+     * @throws EOFException if the peer closed the stream
+     */
+    private boolean readFully(byte[] buffer, int offset, int length) throws IOException {
+        int receivedSize = 0;
+        while (receivedSize < length) {
+            if (forceStop) {
+                return false;
+            }
+            int read = mInput.read(buffer, offset + receivedSize, length - receivedSize);
+            if (read == -1) {
+                throw new EOFException("stream closed after " + receivedSize + " of " + length + " bytes");
+            }
+            receivedSize += read;
         }
-        mMessage.sendToTarget();
+        return !forceStop;
     }
 
     protected void forceStop() {
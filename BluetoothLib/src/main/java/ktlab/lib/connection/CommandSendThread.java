@@ -4,33 +4,383 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteOrder;
 
-import android.os.Message;
+import android.os.Handler;
 import android.util.Log;
 
+/**
+ * Single writer per connection. Drains a bounded set of per-stream rings of
+ * pending commands, writes them back-to-back and reports each id as
+ * EVENT_DATA_SEND_COMPLETE.
+ *
+ * The stream with the highest priority that has data is served first, equal
+ * priorities take turns. With multiplexing on, commands larger than the chunk
+ * size are split into CHUNK frames so other streams can interleave with them.
+ *
+ * Once the peer has granted credits, every command other than link control
+ * frames takes one; commands wait in their ring while none are left. Credits
+ * this side grants, and pongs answering the peer's pings, are written ahead of
+ * everything else.
+ */
 public class CommandSendThread extends Thread {
 
-    private OutputStream mOut;
-    private Message mMessage;
-    private ConnectionCommand mCommand;
-    private ByteOrder mOrder;
+    private final OutputStream mOut;
+    private final Handler mHandler;
+    private final ByteOrder mOrder;
+    private final int mCapacity;
 
-    public CommandSendThread(OutputStream out, Message msg, ByteOrder order) {
+    // send rings, one per stream
+    private final StreamRing[] mStreams;
+    private int mCount = 0;
+    private int mLastServed = 0;
+    private boolean isWriting = false;
+    private boolean forceStop = false;
+
+    // chunking, 0 if commands are written whole
+    private int mChunkSize = 0;
+
+    // credits the peer granted minus commands started, only enforced after the first grant
+    private int mCredits = 0;
+    private boolean hasCredits = false;
+
+    // credits to grant the peer, written with the next frame
+    private int mPendingGrant = 0;
+
+    // timestamp of the peer's ping to echo, written with the next frame
+    private long mPendingPong = 0;
+    private boolean hasPendingPong = false;
+
+    // time spent with commands waiting for credits
+    private long mStallStart = 0;
+    private long mStallNanos = 0;
+    private long mStallCount = 0;
+
+    public CommandSendThread(OutputStream out, Handler handler, ByteOrder order, int capacity) {
+        super("CommandSendThread");
         mOut = out;
-        mCommand = (ConnectionCommand) msg.obj;
-        mMessage = msg;
+        mHandler = handler;
         mOrder = order;
+        mCapacity = capacity;
+        mStreams = new StreamRing[ConnectionCommand.MAX_STREAMS];
+        for (int i = 0; i < mStreams.length; i++) {
+            mStreams[i] = new StreamRing(i, capacity);
+        }
+    }
+
+    /**
+     * add a command to the ring of its stream
+     *
+     * @param id      send id
+     * @param command command to write
+     * @return false if the rings are full or the writer is stopped
+     */
+    public synchronized boolean offer(int id, ConnectionCommand command) {
+        if (forceStop || mCount == mCapacity) {
+            return false;
+        }
+
+        mStreams[command.stream].add(id, command);
+        mCount++;
+        notify();
+        return true;
+    }
+
+    /**
+     * @return true if no more commands can be accepted
+     */
+    public synchronized boolean isFull() {
+        return mCount == mCapacity;
+    }
+
+    /**
+     * @return true if a command is queued or being written
+     */
+    public synchronized boolean isSending() {
+        return isWriting || mCount > 0;
+    }
+
+    /**
+     * @param chunkSize largest option written in one frame, 0 to write commands whole
+     */
+    public synchronized void setChunkSize(int chunkSize) {
+        mChunkSize = chunkSize;
+    }
+
+    public synchronized void setStreamPriority(int stream, int priority) {
+        mStreams[stream].priority = priority;
+    }
+
+    /**
+     * credits granted by the peer
+     */
+    public synchronized void addCredits(int credits) {
+        mCredits += credits;
+        hasCredits = true;
+        if (mCredits > 0 && mStallStart != 0) {
+            mStallNanos += System.nanoTime() - mStallStart;
+            mStallStart = 0;
+        }
+        notify();
+    }
+
+    /**
+     * grant the peer more credits
+     */
+    public synchronized void grantCredits(int credits) {
+        mPendingGrant += credits;
+        notify();
+    }
+
+    /**
+     * answer a ping of the peer. only the latest one is answered if they pile up.
+     */
+    public synchronized void echoPing(long timestamp) {
+        mPendingPong = timestamp;
+        hasPendingPong = true;
+        notify();
+    }
+
+    /**
+     * @return credits left, or Integer.MAX_VALUE if the peer doesn't use flow control
+     */
+    public synchronized int getCredits() {
+        return hasCredits ? mCredits : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return number of times commands had to wait for credits
+     */
+    public synchronized long getStallCount() {
+        return mStallCount;
+    }
+
+    /**
+     * @return total time commands waited for credits, including a current wait
+     */
+    public synchronized long getStallNanos() {
+        if (mStallStart != 0) {
+            return mStallNanos + System.nanoTime() - mStallStart;
+        }
+        return mStallNanos;
     }
 
     @Override
     public void run() {
-        Log.v("CommandSendThread", "write: " + mMessage.arg1);
+        byte[] scratch = new byte[ConnectionCommand.HEADER_LENGTH + ConnectionCommand.CHUNK_HEADER_LENGTH
+                + ConnectionCommand.GATHER_LIMIT];
+        // frames were written since the stream was last flushed
+        boolean unflushed = false;
+
+        while (true) {
+            StreamRing ring = null;
+            int id = 0;
+            ConnectionCommand command = null;
+            int offset = 0;
+            int length = 0;
+            int grant;
+            boolean pong;
+            long pongTimestamp;
+
+            synchronized (this) {
+                isWriting = false;
+                while (!forceStop && mPendingGrant == 0 && !hasPendingPong && (ring = nextStream()) == null) {
+                    if (unflushed) {
+                        // nothing more to write for now, push out what the stream holds back.
+                        // in-memory pipes only wake their reader on a flush.
+                        unflushed = false;
+                        flushQuietly();
+                        continue;
+                    }
+                    if (mCount > 0 && mStallStart == 0) {
+                        // everything left is waiting for credits
+                        mStallStart = System.nanoTime();
+                        mStallCount++;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // DO NOTHING
+                    }
+                }
+                if (forceStop) {
+                    return;
+                }
+
+                isWriting = true;
+                grant = mPendingGrant;
+                mPendingGrant = 0;
+                pong = hasPendingPong;
+                pongTimestamp = mPendingPong;
+                hasPendingPong = false;
+                if (grant == 0 && !pong) {
+                    mLastServed = ring.index;
+                    id = ring.ids[ring.head];
+                    command = ring.commands[ring.head];
+                    offset = ring.offset;
+                    if (offset == 0 && !ConnectionCommand.isControl(command.type)) {
+                        mCredits--;
+                    }
+                    length = command.optionLen - offset;
+                    if (mChunkSize > 0 && (offset > 0 || length > mChunkSize)) {
+                        length = Math.min(length, mChunkSize);
+                    } else {
+                        // written whole
+                        length = -1;
+                    }
+                }
+            }
+
+            if (grant > 0 || pong) {
+                try {
+                    if (grant > 0) {
+                        if (TunnelLog.VERBOSE) {
+                            TunnelLog.v("CommandSendThread", "write credit: " + grant);
+                        }
+                        ConnectionCommand.writeCreditTo(mOut, mOrder, scratch, grant);
+                    }
+                    if (pong) {
+                        if (TunnelLog.VERBOSE) {
+                            TunnelLog.v("CommandSendThread", "write pong");
+                        }
+                        ConnectionCommand.writeProbeTo(mOut, mOrder, scratch, ConnectionCommand.PONG, pongTimestamp);
+                    }
+                    unflushed = true;
+                } catch (Exception e) {
+                    Log.e("CommandSendThread", "error", e);
+                    forceStop();
+                    mHandler.obtainMessage(Connection.EVENT_CONNECTION_SEND_FAIL, -1, 0).sendToTarget();
+                    return;
+                }
+                continue;
+            }
+
+            boolean done;
+            try {
+                if (length < 0) {
+                    if (TunnelLog.VERBOSE) {
+                        TunnelLog.v("CommandSendThread", "write: " + id);
+                    }
+                    command.writeTo(mOut, mOrder, scratch);
+                    done = true;
+                } else {
+                    if (TunnelLog.VERBOSE) {
+                        TunnelLog.v("CommandSendThread", "write chunk: " + id + " @" + offset);
+                    }
+                    command.writeChunkTo(mOut, mOrder, scratch, offset, length);
+                    done = offset + length == command.optionLen;
+                }
+                unflushed = true;
+            } catch (Exception e) {
+                Log.e("CommandSendThread", "error", e);
+                forceStop();
+                mHandler.obtainMessage(Connection.EVENT_CONNECTION_SEND_FAIL, id, 0).sendToTarget();
+                return;
+            }
+
+            synchronized (this) {
+                if (forceStop) {
+                    return;
+                }
+                if (done) {
+                    ring.remove();
+                    mCount--;
+                } else {
+                    ring.offset += length;
+                }
+            }
+
+            if (done) {
+                mHandler.obtainMessage(Connection.EVENT_DATA_SEND_COMPLETE, id, 0).sendToTarget();
+            }
+        }
+    }
+
+    /**
+     * pick the highest priority stream that can be written, rotating among equals
+     *
+     * @return the stream, or null if nothing can be written
+     */
+    private StreamRing nextStream() {
+        StreamRing best = null;
+        for (int i = 1; i <= mStreams.length; i++) {
+            StreamRing ring = mStreams[(mLastServed + i) % mStreams.length];
+            if (canWrite(ring) && (best == null || ring.priority > best.priority)) {
+                best = ring;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return true if the stream has a command and it is either under way, a
+     * control frame, or there is a credit for it
+     */
+    private boolean canWrite(StreamRing ring) {
+        if (ring.count == 0) {
+            return false;
+        }
+        if (!hasCredits || mCredits > 0 || ring.offset > 0) {
+            return true;
+        }
+        return ConnectionCommand.isControl(ring.commands[ring.head].type);
+    }
+
+    /**
+     * a stream that can't be flushed is broken, the next write reports it
+     */
+    private void flushQuietly() {
         try {
-            mOut.write(ConnectionCommand.toByteArray(mCommand, mOrder));
-        } catch (Exception e) {
-            Log.e("CommandSendThread", "error", e);
-            mMessage.what = Connection.EVENT_CONNECTION_SEND_FAIL;
+            mOut.flush();
+        } catch (IOException e) {
+            // DO NOTHING
+        }
+    }
+
+    protected synchronized void forceStop() {
+        forceStop = true;
+        for (StreamRing ring : mStreams) {
+            ring.clear();
         }
+        mCount = 0;
+        notify();
+    }
+
+    private static class StreamRing {
+        final int index;
+        final int[] ids;
+        final ConnectionCommand[] commands;
+        int head = 0;
+        int count = 0;
+        int priority = 0;
+
+        // bytes of the head command already written as chunks
+        int offset = 0;
 
-        mMessage.sendToTarget();
+        StreamRing(int index, int capacity) {
+            this.index = index;
+            ids = new int[capacity];
+            commands = new ConnectionCommand[capacity];
+        }
+
+        void add(int id, ConnectionCommand command) {
+            int tail = (head + count) % commands.length;
+            ids[tail] = id;
+            commands[tail] = command;
+            count++;
+        }
+
+        void remove() {
+            commands[head] = null;
+            head = (head + 1) % commands.length;
+            count--;
+            offset = 0;
+        }
+
+        void clear() {
+            for (int i = 0; i < commands.length; i++) {
+                commands[i] = null;
+            }
+            count = 0;
+            offset = 0;
+        }
     }
 }
@@ -2,13 +2,18 @@ package ktlab.lib.connection;
 
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectableChannel;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public abstract class Connection extends Handler {
@@ -20,15 +25,22 @@ public abstract class Connection extends Handler {
     public static final int EVENT_DATA_RECEIVED = 2;
     public static final int EVENT_DATA_SEND_COMPLETE = 3;
     public static final int EVENT_CONNECT_PING = 4;
+    public static final int EVENT_PONG_RECEIVED = 5;
     public static final int EVENT_CONNECTION_FAIL = 101;
     public static final int EVENT_CONNECTION_SEND_FAIL = 102;
 
-    private static final long PING_INTERVAL = 1000;
-    private static final long PING_LATE_TIME = 15000;
-    private static final long PING_WORRY_TIME = 10000;
+    // capacity of the writer's send rings
+    private static final int SEND_RING_CAPACITY = 32;
+
+    // commands the peer may have outstanding before it has to wait for us to
+    // handle them. credits are given back in batches of half this.
+    private static final int RECEIVE_CREDITS = 16;
+
+    // a ping may go this many timeouts of the measured round trip without an answer
+    private static final int PROBE_TIMEOUTS = 2;
 
     // Event
-    private static byte PING = Byte.MAX_VALUE;
+    private static final byte PING = ConnectionCommand.PING;
     private static int PING_ID = Integer.MAX_VALUE;
 
     protected ConnectionCallback mCallback;
@@ -42,28 +54,56 @@ public abstract class Connection extends Handler {
     protected InputStream mInput;
     protected OutputStream mOutput;
 
-    // send/close flag
-    private boolean isSending = false;
+    // close flag
     private boolean forceStop = false;
 
+    // wait for channel readiness instead of blocking in read/write, if the transport allows it
+    private boolean useReadiness = false;
+    private boolean hasReadinessStreams = false;
+
     // send data queue
     private final boolean canQueueing;
     private Queue<PendingData> mQueue = null;
     private final ByteOrder mOrder;
 
+    // receive buffers
+    private BufferPool mBufferPool = new BufferPool();
+
+    // multiplexing, chunk size 0 writes commands whole
+    private int mChunkSize = 0;
+    private final int[] mStreamPriorities = new int[ConnectionCommand.MAX_STREAMS];
+
+    // commands handled since credits were last granted
+    private int mConsumedCredits = 0;
+
     // ping
-    private long mLastActivity;
+    private KeepAlive mKeepAlive = new KeepAlive();
+
+    // round trip measured with timestamped pings, if the peer answers them
+    private final RttEstimator mRtt = new RttEstimator();
+    private boolean useRttProbes = false;
     private boolean hasOpenConnection = false;
     private boolean hasWorkingConnection = false;
 
     @Override
     public void handleMessage(Message msg) {
+        if (forceStop) {
+            // stopped, events its threads posted before that are no concern of the callback anymore
+            if (msg.what == EVENT_DATA_RECEIVED) {
+                ((ConnectionCommand) msg.obj).release();
+            }
+            mConnectionThread.close();
+            return;
+        }
+
         boolean processed = true;
 
         switch (msg.what) {
             case EVENT_DATA_RECEIVED:
-                Log.i(TAG, "data received");
-                mLastActivity = System.currentTimeMillis();
+                if (TunnelLog.isDebug()) {
+                    TunnelLog.d(TAG, "data received");
+                }
+                mKeepAlive.onPeerSeen(SystemClock.elapsedRealtime());
 
                 if (!hasWorkingConnection) {
                     hasWorkingConnection = true;
@@ -72,34 +112,40 @@ public abstract class Connection extends Handler {
 
                 ConnectionCommand cmd = (ConnectionCommand) msg.obj;
                 if (cmd.type == PING) {
-                    Log.v(TAG, "data received: ping");
+                    if (TunnelLog.VERBOSE) {
+                        TunnelLog.v(TAG, "data received: ping");
+                    }
+                    mKeepAlive.onAlive(SystemClock.elapsedRealtime());
+                    cmd.release();
                 } else {
+                    mKeepAlive.onTraffic(SystemClock.elapsedRealtime());
+                    // the callback owns the command now and releases it
                     mCallback.onCommandReceived(cmd);
+                    onCommandConsumed();
                 }
 
-                if (!forceStop) {
-                    // receive thread starting
-                    mReceiveThread = null;
-                    mReceiveThread = new CommandReceiveThread(mInput, obtainMessage(EVENT_DATA_RECEIVED),
-                            mOrder);
-                    mReceiveThread.start();
-                }
+                break;
 
+            case EVENT_PONG_RECEIVED:
+                if (TunnelLog.VERBOSE) {
+                    TunnelLog.v(TAG, "pong received, rtt " + mRtt.getLatest() / 1000 + "us");
+                }
+                mKeepAlive.onPeerSeen(SystemClock.elapsedRealtime());
+                updateProbeTimeout();
                 break;
 
             case EVENT_DATA_SEND_COMPLETE:
                 int id = msg.arg1;
 
+                if (TunnelLog.isDebug()) {
+                    TunnelLog.d(TAG, "data send complete, id : " + id);
+                }
+
                 if (id != PING_ID) {
-                    Log.i(TAG, "data send complete, id : " + id);
+                    mKeepAlive.onTraffic(SystemClock.elapsedRealtime());
                 } else {
-                    Log.v(TAG, "data send complete, id : " + id);
+                    mKeepAlive.onAlive(SystemClock.elapsedRealtime());
                 }
-
-                mSendThread = null;
-                isSending = false;
-
-                mLastActivity = System.currentTimeMillis();
                 if (!hasWorkingConnection) {
                     hasWorkingConnection = true;
                     mCallback.onConnectComplete();
@@ -108,11 +154,13 @@ public abstract class Connection extends Handler {
                 if (id != PING_ID) {
                     mCallback.onDataSendComplete(id);
                 } else {
-                    Log.v(TAG, "send complete: ping");
+                    if (TunnelLog.VERBOSE) {
+                        TunnelLog.v(TAG, "send complete: ping");
+                    }
                 }
 
                 if (!forceStop) {
-                    // if queueing data exists, send first data
+                    // ring has room again, move queued data into it
                     sendPendingData();
                 }
 
@@ -123,27 +171,37 @@ public abstract class Connection extends Handler {
         }
 
         if (!processed ) {
-            if (forceStop) {
-                mConnectionThread.close();
-                return;
-            }
-
             switch (msg.what) {
                 case EVENT_CONNECT_COMPLETE:
                     Log.i(TAG, "pre-connect complete");
-                    mInput = mConnectionThread.getInputStream();
-                    mOutput = mConnectionThread.getOutputStream();
+                    openStreams();
                     //mCallback.onConnectComplete();
 
                     hasOpenConnection = true;
 
-                    // receive thread starting
-                    mReceiveThread = new CommandReceiveThread(mInput, obtainMessage(EVENT_DATA_RECEIVED),
-                            mOrder);
+                    // writer starting, it lives as long as the connection
+                    mSendThread = new CommandSendThread(mOutput, this, mOrder, SEND_RING_CAPACITY);
+                    mSendThread.setChunkSize(mChunkSize);
+                    for (int stream = 0; stream < mStreamPriorities.length; stream++) {
+                        mSendThread.setStreamPriority(stream, mStreamPriorities[stream]);
+                    }
+                    mSendThread.start();
+
+                    // receive loop starting, it lives as long as the connection
+                    mReceiveThread = new CommandReceiveThread(mInput, this, mOrder, mBufferPool, mSendThread, mRtt);
+                    mReceiveThread.setRttProbes(useRttProbes);
                     mReceiveThread.start();
 
-                    mLastActivity = System.currentTimeMillis();
-                    sendEmptyMessageDelayed(EVENT_CONNECT_PING, 0);
+                    // let the peer start sending. peers that don't know credits never
+                    // grant any and are written to without limit.
+                    mConsumedCredits = 0;
+                    mSendThread.grantCredits(RECEIVE_CREDITS);
+
+                    // first ping goes out right away, it proves the link works
+                    mRtt.reset();
+                    mKeepAlive.start(SystemClock.elapsedRealtime());
+                    updateProbeTimeout();
+                    sendEmptyMessage(EVENT_CONNECT_PING);
 
                     // if queueing data exists, send first data
                     sendPendingData();
@@ -152,20 +210,22 @@ public abstract class Connection extends Handler {
 
                 case EVENT_CONNECT_PING:
                     try {
-                        long timeSinceActivity = System.currentTimeMillis() - mLastActivity;
-                        if (timeSinceActivity > PING_LATE_TIME) {
+                        long now = SystemClock.elapsedRealtime();
+                        int action = mKeepAlive.poll(now, !isSending() && mQueue.size() == 0);
+                        if (action == KeepAlive.ACTION_DEAD) {
                             throw new TimeoutException("late ping");
-                        } else if (!isSending && mQueue.size() == 0
-                                && (!hasWorkingConnection || timeSinceActivity > PING_WORRY_TIME)) {
-                            Log.v(TAG, "send ping");
+                        } else if (action == KeepAlive.ACTION_PING) {
+                            if (TunnelLog.VERBOSE) {
+                                TunnelLog.v(TAG, "send ping");
+                            }
                             mInput.available();
                             mOutput.flush();
-                            sendData(PING, PING_ID);
+                            sendPing(now);
                         }
-                        sendEmptyMessageDelayed(EVENT_CONNECT_PING, PING_INTERVAL);
+                        // nothing runs in between, traffic only moves the next wake later
+                        sendEmptyMessageDelayed(EVENT_CONNECT_PING, mKeepAlive.getNextWake(now) - now);
                     } catch (Exception e) {
-                        mSendThread = null;
-                        isSending = false;
+                        stopSendThread();
                         if (!hasWorkingConnection) {
                             Log.e(TAG, "connection failed", e);
                             mCallback.onConnectionFailed();
@@ -178,9 +238,8 @@ public abstract class Connection extends Handler {
 
                 case EVENT_CONNECTION_FAIL:
                 case EVENT_CONNECTION_SEND_FAIL:
-                    if (msg.what == EVENT_CONNECTION_SEND_FAIL || !isSending) {
-                        mSendThread = null;
-                        isSending = false;
+                    if (msg.what == EVENT_CONNECTION_SEND_FAIL || !isSending()) {
+                        stopSendThread();
                         if (!hasWorkingConnection) {
                             Log.e(TAG, "connection failed");
                             mCallback.onConnectionFailed();
@@ -232,9 +291,10 @@ public abstract class Connection extends Handler {
         }
 
         // stop send thread
-        mSendThread = null;
+        stopSendThread();
         clearQueuedData();
 
+        closeReadinessStreams();
         mInput = null;
         mOutput = null;
         hasWorkingConnection = false;
@@ -247,110 +307,160 @@ public abstract class Connection extends Handler {
      * @param data option data
      * @param id   send id
      * @return return true if success sending or queueing data. if "canQueueing"
-     * is false and sending any data, return false.
+     * is false and the send ring is full, return false.
      */
     public boolean sendData(byte type, byte[] data, int id) {
-
-        // if sending data, queueing...
-        if (type == PING && !hasOpenConnection) {
-            Log.i(TAG, "sendData(PING), not queuing...");
-            return false;
-        } else if (isSending || ( !hasWorkingConnection && type != PING )) {
-            if (canQueueing && type != PING) {
-                synchronized (mQueue) {
-                    PendingData p = new PendingData(id, new ConnectionCommand(type, data));
-                    mQueue.offer(p);
-                }
-                Log.i(TAG, "sendData(), pending...");
-                return true;
-            } else {
-                Log.i(TAG, "sendData(), not queuing...");
-                return false;
-            }
-        }
-
-        Log.v(TAG, "sendData(" + id + ")");
-        Message msg = obtainMessage(EVENT_DATA_SEND_COMPLETE);
-        msg.arg1 = id;
-        msg.obj = new ConnectionCommand(type, data);
-        mSendThread = new CommandSendThread(mOutput, msg, mOrder);
-        mSendThread.start();
-
-        isSending = true;
-        return true;
+        return sendCommand(new ConnectionCommand(type, data), id);
     }
 
     /**
      * @param type command type
      * @param id   send id
      * @return return true if success sending or queueing data. if "canQueueing"
-     * is false and sending any data, return false.
+     * is false and the send ring is full, return false.
      */
     public boolean sendData(byte type, int id) {
+        return sendCommand(new ConnectionCommand(type), id);
+    }
+
+    /**
+     * @param type command type
+     * @param data option data, remaining bytes are sent. array backed buffers
+     *             are handed over without a copy and must not be modified afterwards.
+     * @param id   send id
+     * @return return true if success sending or queueing data. if "canQueueing"
+     * is false and the send ring is full, return false.
+     */
+    public boolean sendData(byte type, ByteBuffer data, int id) {
+        return sendCommand(ConnectionCommand.wrap(type, data), id);
+    }
+
+    /**
+     * hand a command to the writer, or queue it if the writer can't take it.
+     * the connection takes ownership of the command and its option buffer,
+     * see {@link ConnectionCommand#wrap(byte, byte[])}.
+     *
+     * @param command command to send
+     * @param id      send id
+     * @return true if the command was accepted by the writer or queued. if
+     * "canQueueing" is false and the send ring is full, return false.
+     */
+    public boolean sendCommand(ConnectionCommand command, int id) {
+        byte type = command.type;
+        if (command.stream < 0 || command.stream >= ConnectionCommand.MAX_STREAMS) {
+            throw new IllegalArgumentException("invalid stream: " + command.stream);
+        }
 
-        // if sending data, queueing...
         if (type == PING && !hasOpenConnection) {
-            Log.i(TAG, "sendData(PING), not queuing...");
+            if (TunnelLog.isDebug()) {
+                TunnelLog.d(TAG, "sendData(PING), not queuing...");
+            }
             return false;
-        } else if (isSending || ( !hasWorkingConnection && type != PING )) {
-            if (canQueueing && type != PING) {
-                synchronized (mQueue) {
-                    PendingData p = new PendingData(id, new ConnectionCommand(type));
-                    mQueue.offer(p);
-                }
-                Log.i(TAG, "sendData(), pending...");
+        }
+
+        // keep order: nothing skips ahead of already queued data
+        boolean mustQueue = (!hasWorkingConnection && type != PING) || hasPending();
+        if (!mustQueue && mSendThread != null) {
+            if (TunnelLog.VERBOSE) {
+                TunnelLog.v(TAG, "sendData(" + id + ")");
+            }
+            if (mSendThread.offer(id, command)) {
                 return true;
-            } else {
-                Log.i(TAG, "sendData(), not queuing...");
-                return false;
             }
         }
 
-        Log.v(TAG, "sendData(" + id + ")");
-        Message msg = obtainMessage(EVENT_DATA_SEND_COMPLETE);
-        msg.arg1 = id;
-        msg.obj = new ConnectionCommand(type);
-        mSendThread = new CommandSendThread(mOutput, msg, mOrder);
-        mSendThread.start();
-
-        isSending = true;
-        return true;
+        // send ring full (backpressure) or connection not yet working
+        if (canQueueing && type != PING) {
+            synchronized (mQueue) {
+                mQueue.offer(new PendingData(id, command));
+            }
+            if (TunnelLog.isDebug()) {
+                TunnelLog.d(TAG, "sendData(), pending...");
+            }
+            return true;
+        } else {
+            TunnelLog.i(TAG, "sendData(), not queuing...");
+            return false;
+        }
     }
 
     /**
-     * send data internal.
+     * send a ping, timestamped if the peer answers them
      *
-     * @param pendingData pending data
-     * @return always true
      * @hide
      */
-    private boolean sendData(PendingData pendingData) {
+    private void sendPing(long now) {
+        if (!useRttProbes) {
+            sendData(PING, PING_ID);
+            return;
+        }
+        byte[] timestamp = new byte[ConnectionCommand.PROBE_LENGTH];
+        ConnectionCommand.putLong(timestamp, 0, System.nanoTime(), mOrder);
+        if (sendData(PING, timestamp, PING_ID)) {
+            mKeepAlive.onProbeSent(now);
+        }
+    }
 
-        Log.i(TAG, "send PendingData");
-        Message msg = obtainMessage(EVENT_DATA_SEND_COMPLETE);
-        msg.arg1 = pendingData.id;
-        msg.obj = pendingData.command;
-        mSendThread = new CommandSendThread(mOutput, msg, mOrder);
-        mSendThread.start();
+    /**
+     * expect pings to be answered within a few round trips, once one was measured
+     *
+     * @hide
+     */
+    private void updateProbeTimeout() {
+        if (useRttProbes && mRtt.hasSample()) {
+            long timeout = TimeUnit.NANOSECONDS.toMillis(mRtt.getTimeout(0)) * PROBE_TIMEOUTS;
+            mKeepAlive.setProbeTimeout(timeout);
+        } else {
+            mKeepAlive.setProbeTimeout(0);
+        }
+    }
 
-        isSending = true;
-        return true;
+    /**
+     * a received command has been handled, give its credit back to the peer
+     *
+     * @hide
+     */
+    private void onCommandConsumed() {
+        mConsumedCredits++;
+        if (mConsumedCredits >= RECEIVE_CREDITS / 2 && mSendThread != null) {
+            mSendThread.grantCredits(mConsumedCredits);
+            mConsumedCredits = 0;
+        }
     }
 
     /**
-     * send pending data if exists.
+     * move pending data into the send ring while it has room.
      *
      * @hide
      */
     private void sendPendingData() {
-        PendingData pendingData = null;
+        if (mSendThread == null) {
+            return;
+        }
+
         synchronized (mQueue) {
-            if (mQueue.size() > 0) {
-                pendingData = mQueue.poll();
+            while (mQueue.size() > 0) {
+                PendingData pendingData = mQueue.peek();
+                if (!mSendThread.offer(pendingData.id, pendingData.command)) {
+                    break;
+                }
+                if (TunnelLog.isDebug()) {
+                    TunnelLog.d(TAG, "send PendingData");
+                }
+                mQueue.poll();
             }
         }
-        if (pendingData != null) {
-            sendData(pendingData);
+    }
+
+    /**
+     * stop the writer, dropping anything left in its ring.
+     *
+     * @hide
+     */
+    private void stopSendThread() {
+        if (mSendThread != null) {
+            mSendThread.forceStop();
+            mSendThread = null;
         }
     }
 
@@ -365,8 +475,157 @@ public abstract class Connection extends Handler {
         }
     }
 
+    /**
+     * use the blocking streams of the connection thread, or selector based
+     * streams if readiness mode is on and the transport has a channel.
+     *
+     * @hide
+     */
+    private void openStreams() {
+        Transport transport = mConnectionThread.getTransport();
+        SelectableChannel channel = transport != null ? transport.getSelectableChannel() : null;
+        if (useReadiness && channel != null) {
+            try {
+                mInput = SelectorStreams.newInputStream(channel);
+                mOutput = SelectorStreams.newOutputStream(channel);
+                hasReadinessStreams = true;
+                return;
+            } catch (IOException e) {
+                Log.e(TAG, "readiness mode unavailable, using blocking streams", e);
+            }
+        }
+
+        mInput = mConnectionThread.getInputStream();
+        mOutput = mConnectionThread.getOutputStream();
+    }
+
+    /**
+     * @hide
+     */
+    private void closeReadinessStreams() {
+        if (hasReadinessStreams) {
+            hasReadinessStreams = false;
+            try {
+                mInput.close();
+                mOutput.close();
+            } catch (IOException e) {
+                // DO NOTHING
+            }
+        }
+    }
+
+    /**
+     * wait for channel readiness with a selector instead of blocking in
+     * read/write. only used by transports that offer a selectable channel.
+     * must be called before startConnection.
+     */
+    public void setReadinessMode(boolean enabled) {
+        useReadiness = enabled;
+    }
+
+    /**
+     * ping an idle link after baseInterval, backing off to maxInterval while it stays
+     * idle, and drop it after livenessBound without traffic or pings. must be called
+     * before startConnection.
+     */
+    public void setKeepAlive(long baseInterval, long maxInterval, long livenessBound) {
+        mKeepAlive = new KeepAlive(baseInterval, maxInterval, livenessBound);
+    }
+
+    /**
+     * send timestamped pings, answer the peer's and measure the round trip. only
+     * enable it once the peer is known to answer pings.
+     */
+    public void setRttProbes(boolean enabled) {
+        useRttProbes = enabled;
+        if (mReceiveThread != null) {
+            mReceiveThread.setRttProbes(enabled);
+        }
+        updateProbeTimeout();
+    }
+
+    /**
+     * @return round trip estimate of the link, empty unless RTT probes are on
+     */
+    public RttEstimator getRttEstimator() {
+        return mRtt;
+    }
+
+    /**
+     * split commands larger than the chunk size into CHUNK frames so streams
+     * interleave on the link. only enable it once the peer is known to
+     * reassemble chunks.
+     *
+     * @param enabled   true to chunk large commands
+     * @param chunkSize largest option per frame, up to ConnectionCommand.MAX_CHUNK_SIZE
+     */
+    public void setMultiplexing(boolean enabled, int chunkSize) {
+        if (chunkSize <= 0 || chunkSize > ConnectionCommand.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("invalid chunk size: " + chunkSize);
+        }
+        mChunkSize = enabled ? chunkSize : 0;
+        if (mSendThread != null) {
+            mSendThread.setChunkSize(mChunkSize);
+        }
+    }
+
+    /**
+     * streams with a higher priority are always written first, equal
+     * priorities take turns. all streams start at priority 0.
+     */
+    public void setStreamPriority(int stream, int priority) {
+        mStreamPriorities[stream] = priority;
+        if (mSendThread != null) {
+            mSendThread.setStreamPriority(stream, priority);
+        }
+    }
+
+    /**
+     * @return pool received commands draw their option buffers from
+     */
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * replace the receive buffer pool, e.g. to change its caps. must be
+     * called before startConnection.
+     */
+    public void setBufferPool(BufferPool pool) {
+        mBufferPool = pool;
+    }
+
     public boolean isSending() {
-        return isSending;
+        return mSendThread != null && mSendThread.isSending();
+    }
+
+    /**
+     * @return true if the send ring can't take another command right now.
+     * callers should wait for onDataSendComplete before sending more.
+     */
+    public boolean isSendQueueFull() {
+        return mSendThread == null || mSendThread.isFull() || hasPending();
+    }
+
+    /**
+     * @return credits the peer has left us, Integer.MAX_VALUE if it doesn't use flow control
+     */
+    public int getSendCredits() {
+        return mSendThread != null ? mSendThread.getCredits() : 0;
+    }
+
+    /**
+     * @return number of times the writer had to wait for the peer to grant credits
+     */
+    public long getCreditStallCount() {
+        return mSendThread != null ? mSendThread.getStallCount() : 0;
+    }
+
+    /**
+     * @return milliseconds the writer spent waiting for credits on this connection
+     */
+    public long getCreditStallTime() {
+        return mSendThread != null ? TimeUnit.NANOSECONDS.toMillis(mSendThread.getStallNanos()) : 0;
     }
 
     public boolean hasPending() {
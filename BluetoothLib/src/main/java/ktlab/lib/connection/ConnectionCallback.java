@@ -8,5 +8,9 @@ public interface ConnectionCallback {
 	public void onConnectionFailed();
     public void onConnectionLost();
 	public void onDataSendComplete(int id);
+	/**
+	 * @param command received command. its option is valid for optionLen bytes
+	 *                and may come from a pool, call command.release() when done with it.
+	 */
 	public void onCommandReceived(ConnectionCommand command);
 }
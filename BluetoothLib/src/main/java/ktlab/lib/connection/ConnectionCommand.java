@@ -1,5 +1,7 @@
 package ktlab.lib.connection;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -8,10 +10,45 @@ public class ConnectionCommand {
     // Header (type + optionLen) length
     public static final int HEADER_LENGTH = Integer.SIZE / Byte.SIZE + 1;
 
+    // Frames up to this size are gathered into one write
+    public static final int GATHER_LIMIT = 1024;
+
+    // Logical streams sharing the link
+    public static final int MAX_STREAMS = 8;
+
+    // Chunk frames carry a slice of a larger command:
+    // stream(1) + flags(1) + type(1) + total option length(4) + slice
+    protected static final byte CHUNK = Byte.MAX_VALUE - 1;
+    protected static final int CHUNK_HEADER_LENGTH = 7;
+    protected static final int CHUNK_FIRST = 1;
+    protected static final int CHUNK_LAST = 2;
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+    public static final int MAX_CHUNK_SIZE = 16 * 1024;
+
+    // Credit frames grant the peer's writer more commands: credits(4)
+    protected static final byte CREDIT = Byte.MAX_VALUE - 3;
+    protected static final int CREDIT_LENGTH = 4;
+
+    // Pings keep an idle link alive. With RTT probes on they carry the sender's
+    // System.nanoTime(), which the peer echoes in a PONG: timestamp(8)
+    protected static final byte PING = Byte.MAX_VALUE;
+    protected static final byte PONG = Byte.MAX_VALUE - 2;
+    protected static final int PROBE_LENGTH = 8;
+
+    // Types from here up are link control frames, they never consume credits
+    protected static final byte FIRST_CONTROL_TYPE = CREDIT;
+
     // Command fields
     public byte type;
     public int optionLen;
     public byte[] option;
+    public int optionOffset;
+
+    // Logical stream, not sent for commands written whole
+    public int stream;
+
+    // pool the option buffer came from, if any
+    private BufferPool mPool;
 
     /**
      * Constructor Create BTCommand without option.
@@ -43,6 +80,271 @@ public class ConnectionCommand {
         }
     }
 
+    /**
+     * Create BTCommand around the caller's buffer without copying it.
+     * Ownership of the buffer moves to the command, the caller must not
+     * modify it afterwards.
+     *
+     * @param type
+     *            Commands type
+     * @param option
+     *            Commands option
+     * @return BTCommand
+     */
+    public static ConnectionCommand wrap(byte type, byte[] option) {
+        return wrap(type, option, 0, option.length);
+    }
+
+    /**
+     * Create BTCommand around a range of the caller's buffer without copying it.
+     * Ownership of the buffer moves to the command.
+     *
+     * @param type
+     *            Commands type
+     * @param option
+     *            buffer holding the option
+     * @param offset
+     *            start of the option in the buffer
+     * @param length
+     *            option length
+     * @return BTCommand
+     */
+    public static ConnectionCommand wrap(byte type, byte[] option, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > option.length) {
+            throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length);
+        }
+        ConnectionCommand command = new ConnectionCommand(type);
+        command.option = option;
+        command.optionOffset = offset;
+        command.optionLen = length;
+        return command;
+    }
+
+    /**
+     * Create BTCommand around a buffer drawn from a pool. The buffer goes
+     * back to the pool on {@link #release()}.
+     *
+     * @hide
+     */
+    protected static ConnectionCommand wrapPooled(byte type, byte[] option, int length,
+            BufferPool pool) {
+        ConnectionCommand command = wrap(type, option, 0, length);
+        command.mPool = pool;
+        return command;
+    }
+
+    /**
+     * Return the option buffer to the pool it came from. The receiver of a
+     * command calls this once it is done with the option; the command must
+     * not be used afterwards. Does nothing for commands that aren't pooled.
+     */
+    public void release() {
+        BufferPool pool = mPool;
+        if (pool != null) {
+            mPool = null;
+            pool.release(option);
+            option = null;
+            optionLen = 0;
+        }
+    }
+
+    /**
+     * Create BTCommand around the remaining bytes of a buffer. Array backed
+     * buffers are not copied and their ownership moves to the command.
+     *
+     * @param type
+     *            Commands type
+     * @param option
+     *            Commands option
+     * @return BTCommand
+     */
+    public static ConnectionCommand wrap(byte type, ByteBuffer option) {
+        if (option.hasArray()) {
+            return wrap(type, option.array(), option.arrayOffset() + option.position(),
+                    option.remaining());
+        }
+        byte[] copy = new byte[option.remaining()];
+        option.duplicate().get(copy);
+        return wrap(type, copy);
+    }
+
+    /**
+     * Write header and option to the stream. Frames with an option up to
+     * GATHER_LIMIT are gathered into the scratch buffer and written at once,
+     * larger ones are written as the header followed by the option buffer itself.
+     *
+     * @param out
+     *            destination
+     * @param order
+     *            byte order
+     * @param scratch
+     *            reusable buffer, at least HEADER_LENGTH + GATHER_LIMIT long
+     * @hide
+     */
+    protected void writeTo(OutputStream out, ByteOrder order, byte[] scratch) throws IOException {
+        putHeader(scratch, type, optionLen, order);
+        if (optionLen <= GATHER_LIMIT) {
+            System.arraycopy(option, optionOffset, scratch, HEADER_LENGTH, optionLen);
+            out.write(scratch, 0, HEADER_LENGTH + optionLen);
+        } else {
+            out.write(scratch, 0, HEADER_LENGTH);
+            out.write(option, optionOffset, optionLen);
+        }
+    }
+
+    /**
+     * Write a slice of the option as a CHUNK frame. A slice up to GATHER_LIMIT
+     * is gathered into the scratch buffer with the headers, a larger one is
+     * written from the option buffer itself.
+     *
+     * @param out
+     *            destination
+     * @param order
+     *            byte order
+     * @param scratch
+     *            reusable buffer, at least HEADER_LENGTH + CHUNK_HEADER_LENGTH + GATHER_LIMIT long
+     * @param offset
+     *            start of the slice within the option
+     * @param length
+     *            slice length
+     * @hide
+     */
+    protected void writeChunkTo(OutputStream out, ByteOrder order, byte[] scratch, int offset,
+            int length) throws IOException {
+        int flags = 0;
+        if (offset == 0) {
+            flags |= CHUNK_FIRST;
+        }
+        if (offset + length == optionLen) {
+            flags |= CHUNK_LAST;
+        }
+
+        putHeader(scratch, CHUNK, CHUNK_HEADER_LENGTH + length, order);
+        scratch[HEADER_LENGTH] = (byte) stream;
+        scratch[HEADER_LENGTH + 1] = (byte) flags;
+        scratch[HEADER_LENGTH + 2] = type;
+        putInt(scratch, HEADER_LENGTH + 3, optionLen, order);
+
+        int headers = HEADER_LENGTH + CHUNK_HEADER_LENGTH;
+        if (length <= GATHER_LIMIT) {
+            System.arraycopy(option, optionOffset + offset, scratch, headers, length);
+            out.write(scratch, 0, headers + length);
+        } else {
+            out.write(scratch, 0, headers);
+            out.write(option, optionOffset + offset, length);
+        }
+    }
+
+    /**
+     * Write a CREDIT frame granting the peer more commands.
+     *
+     * @param out
+     *            destination
+     * @param order
+     *            byte order
+     * @param scratch
+     *            reusable buffer, at least HEADER_LENGTH + CREDIT_LENGTH long
+     * @param credits
+     *            commands granted
+     * @hide
+     */
+    protected static void writeCreditTo(OutputStream out, ByteOrder order, byte[] scratch, int credits)
+            throws IOException {
+        putHeader(scratch, CREDIT, CREDIT_LENGTH, order);
+        putInt(scratch, HEADER_LENGTH, credits, order);
+        out.write(scratch, 0, HEADER_LENGTH + CREDIT_LENGTH);
+    }
+
+    /**
+     * Write a PING or PONG frame carrying a timestamp.
+     *
+     * @param scratch
+     *            reusable buffer, at least HEADER_LENGTH + PROBE_LENGTH long
+     * @hide
+     */
+    protected static void writeProbeTo(OutputStream out, ByteOrder order, byte[] scratch, byte type, long timestamp)
+            throws IOException {
+        putHeader(scratch, type, PROBE_LENGTH, order);
+        putLong(scratch, HEADER_LENGTH, timestamp, order);
+        out.write(scratch, 0, HEADER_LENGTH + PROBE_LENGTH);
+    }
+
+    /**
+     * @return true for link control frames, which are not subject to flow control
+     * @hide
+     */
+    protected static boolean isControl(byte type) {
+        return type >= FIRST_CONTROL_TYPE;
+    }
+
+    private static void putHeader(byte[] header, byte type, int optionLen, ByteOrder order) {
+        header[0] = type;
+        putInt(header, 1, optionLen, order);
+    }
+
+    private static void putInt(byte[] buffer, int index, int value, ByteOrder order) {
+        if (order == ByteOrder.BIG_ENDIAN) {
+            buffer[index] = (byte) (value >>> 24);
+            buffer[index + 1] = (byte) (value >>> 16);
+            buffer[index + 2] = (byte) (value >>> 8);
+            buffer[index + 3] = (byte) value;
+        } else {
+            buffer[index] = (byte) value;
+            buffer[index + 1] = (byte) (value >>> 8);
+            buffer[index + 2] = (byte) (value >>> 16);
+            buffer[index + 3] = (byte) (value >>> 24);
+        }
+    }
+
+    protected static void putLong(byte[] buffer, int index, long value, ByteOrder order) {
+        if (order == ByteOrder.BIG_ENDIAN) {
+            putInt(buffer, index, (int) (value >>> 32), order);
+            putInt(buffer, index + 4, (int) value, order);
+        } else {
+            putInt(buffer, index, (int) value, order);
+            putInt(buffer, index + 4, (int) (value >>> 32), order);
+        }
+    }
+
+    /**
+     * Read a long written with putLong
+     *
+     * @hide
+     */
+    protected static long getLong(byte[] buffer, int index, ByteOrder order) {
+        long first = getInt(buffer, index, order) & 0xFFFFFFFFL;
+        long second = getInt(buffer, index + 4, order) & 0xFFFFFFFFL;
+        return order == ByteOrder.BIG_ENDIAN ? (first << 32) | second : (second << 32) | first;
+    }
+
+    /**
+     * Read an int written with putInt
+     *
+     * @hide
+     */
+    protected static int getInt(byte[] buffer, int index, ByteOrder order) {
+        if (order == ByteOrder.BIG_ENDIAN) {
+            return ((buffer[index] & 0xFF) << 24) | ((buffer[index + 1] & 0xFF) << 16)
+                    | ((buffer[index + 2] & 0xFF) << 8) | (buffer[index + 3] & 0xFF);
+        }
+        return (buffer[index] & 0xFF) | ((buffer[index + 1] & 0xFF) << 8)
+                | ((buffer[index + 2] & 0xFF) << 16) | ((buffer[index + 3] & 0xFF) << 24);
+    }
+
+    /**
+     * Read the option length from a frame header
+     *
+     * @param header
+     *            header(byte array)
+     * @param order
+     *            byte order
+     * @return option length
+     * @hide
+     */
+    protected static int getOptionLength(byte[] header, ByteOrder order) {
+        return getInt(header, 1, order);
+    }
+
     /**
      * Convert BTCommand to byte array
      *
@@ -59,7 +361,7 @@ public class ConnectionCommand {
         ByteBuffer bf = ByteBuffer.wrap(ret).order(order);
         bf.put(command.type);
         bf.putInt(command.optionLen);
-        bf.put(command.option);
+        bf.put(command.option, command.optionOffset, command.optionLen);
 
         return ret;
     }
@@ -81,7 +383,7 @@ public class ConnectionCommand {
         byte[] option = new byte[len];
         bf.get(option);
 
-        return new ConnectionCommand(type, option);
+        return wrap(type, option);
     }
 
     /**
@@ -96,11 +398,12 @@ public class ConnectionCommand {
      */
     protected static ConnectionCommand fromHeaderAndOption(byte[] header, byte[] option,
             ByteOrder order) {
-        byte[] data = new byte[header.length + option.length];
-
-        System.arraycopy(header, 0, data, 0, header.length);
-        System.arraycopy(option, 0, data, header.length, option.length);
+        int len = getOptionLength(header, order);
+        if (len != option.length) {
+            throw new IllegalArgumentException("option length " + option.length
+                    + " does not match header " + len);
+        }
 
-        return fromByteArray(data, order);
+        return wrap(header[0], option);
     }
 }
@@ -3,12 +3,12 @@ package ktlab.lib.connection;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
 
 import android.os.Message;
 
 public abstract class ConnectionThread extends Thread {
 
+    protected Transport mTransport;
     protected InputStream mInput;
     protected OutputStream mOutput;
 
@@ -18,6 +18,22 @@ public abstract class ConnectionThread extends Thread {
         mMessage = msg;
     }
 
+    /**
+     * @return transport of the established connection, null until connected
+     */
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * use the transport for this connection and open its streams
+     */
+    protected void setTransport(Transport transport) throws IOException {
+        mTransport = transport;
+        mInput = transport.getInputStream();
+        mOutput = transport.getOutputStream();
+    }
+
     public InputStream getInputStream() {
         return mInput;
     }
@@ -46,6 +62,14 @@ public abstract class ConnectionThread extends Thread {
             ret = false;
         }
 
+        try {
+            if (mTransport != null) {
+                mTransport.close();
+            }
+        } catch (IOException e) {
+            ret = false;
+        }
+
         mInput = null;
         mOutput = null;
 
@@ -0,0 +1,154 @@
+package ktlab.lib.connection;
+
+/**
+ * Decides when an idle connection pings and when it is considered dead. Holds no
+ * timer of its own, the connection asks it when to wake up next and what to do then.
+ *
+ * Traffic keeps the link alive by itself, no ping is due while frames flow. Once
+ * the link goes idle the first ping is due after the base interval, and every ping
+ * without traffic in between doubles the interval up to the ceiling. Any sign of
+ * life, traffic or a ping going out or coming in, restarts the liveness bound; the
+ * link is dead if the bound passes without one.
+ *
+ * With a probe timeout set, pings are expected to be answered: the link is also
+ * dead once a ping went that long without anything coming back from the peer. The
+ * connection derives the timeout from the measured round trip, so a good link is
+ * given up on well before the liveness bound.
+ *
+ * Times are milliseconds of a monotonic clock.
+ */
+public class KeepAlive {
+    public static final long DEFAULT_BASE_INTERVAL = 2500;
+    public static final long DEFAULT_MAX_INTERVAL = 10000;
+    public static final long DEFAULT_LIVENESS_BOUND = 15000;
+
+    // what poll() wants the connection to do
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_PING = 1;
+    public static final int ACTION_DEAD = 2;
+
+    private final long mBaseInterval;
+    private final long mMaxInterval;
+    private final long mLivenessBound;
+
+    private long mInterval;
+    private long mLastTraffic;
+    private long mLastPing;
+    private long mLastAlive;
+
+    // probes, mProbeSent is 0 while no ping waits for an answer
+    private long mProbeTimeout = 0;
+    private long mProbeSent = 0;
+
+    public KeepAlive() {
+        this(DEFAULT_BASE_INTERVAL, DEFAULT_MAX_INTERVAL, DEFAULT_LIVENESS_BOUND);
+    }
+
+    /**
+     * @param baseInterval  idle time before the first ping
+     * @param maxInterval   ceiling the ping interval backs off to, below the liveness bound
+     *                      so a ping always goes out in time
+     * @param livenessBound time without any sign of life after which the link is dead
+     */
+    public KeepAlive(long baseInterval, long maxInterval, long livenessBound) {
+        if (baseInterval <= 0 || maxInterval < baseInterval || maxInterval >= livenessBound) {
+            throw new IllegalArgumentException("invalid keepalive " + baseInterval + "/" + maxInterval + "/" + livenessBound);
+        }
+        mBaseInterval = baseInterval;
+        mMaxInterval = maxInterval;
+        mLivenessBound = livenessBound;
+    }
+
+    public long getLivenessBound() {
+        return mLivenessBound;
+    }
+
+    /**
+     * the link just opened, a ping is due right away to prove it works
+     */
+    public void start(long now) {
+        mInterval = mBaseInterval;
+        mLastTraffic = now - mBaseInterval;
+        mLastPing = mLastTraffic;
+        mLastAlive = now;
+        mProbeSent = 0;
+    }
+
+    /**
+     * @param timeout time a ping may go without an answer, 0 to not expect answers
+     */
+    public void setProbeTimeout(long timeout) {
+        mProbeTimeout = Math.min(timeout, mLivenessBound);
+    }
+
+    /**
+     * a ping that the peer answers went out
+     */
+    public void onProbeSent(long now) {
+        if (mProbeSent == 0) {
+            mProbeSent = now;
+        }
+    }
+
+    /**
+     * something arrived from the peer, any ping sent before is answered
+     */
+    public void onPeerSeen(long now) {
+        mLastAlive = now;
+        mProbeSent = 0;
+    }
+
+    /**
+     * a frame other than a ping was sent or received
+     */
+    public void onTraffic(long now) {
+        mLastTraffic = now;
+        mLastAlive = now;
+        mInterval = mBaseInterval;
+    }
+
+    /**
+     * a ping was sent or received, the link lives but isn't busy
+     */
+    public void onAlive(long now) {
+        mLastAlive = now;
+    }
+
+    /**
+     * @param canPing false if the writer is busy and a ping couldn't go out now
+     * @return ACTION_NONE, ACTION_PING or ACTION_DEAD
+     */
+    public int poll(long now, boolean canPing) {
+        if (now - mLastAlive > mLivenessBound || isProbeLate(now)) {
+            return ACTION_DEAD;
+        }
+        if (canPing && now >= getNextPing()) {
+            if (mLastPing > mLastTraffic) {
+                // the last ping didn't bring traffic, back off
+                mInterval = Math.min(mInterval * 2, mMaxInterval);
+            }
+            mLastPing = now;
+            return ACTION_PING;
+        }
+        return ACTION_NONE;
+    }
+
+    /**
+     * @return when poll() has to run next
+     */
+    public long getNextWake(long now) {
+        long wake = Math.min(getNextPing(), mLastAlive + mLivenessBound + 1);
+        if (mProbeTimeout > 0 && mProbeSent != 0) {
+            wake = Math.min(wake, mProbeSent + mProbeTimeout + 1);
+        }
+        return Math.max(wake, now);
+    }
+
+    private boolean isProbeLate(long now) {
+        return mProbeTimeout > 0 && mProbeSent != 0 && now - mProbeSent > mProbeTimeout;
+    }
+
+    private long getNextPing() {
+        return Math.max(mLastTraffic, mLastPing) + mInterval;
+    }
+}
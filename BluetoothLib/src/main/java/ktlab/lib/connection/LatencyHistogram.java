@@ -0,0 +1,120 @@
+package ktlab.lib.connection;
+
+/**
+ * Fixed size log-linear histogram of latencies, in the spirit of HdrHistogram.
+ *
+ * Values are bucketed by their power of two and, within it, by the next
+ * SUB_BUCKET_BITS bits, so every bucket is within 1/16 of the values it holds.
+ * Recording is a few shifts and an increment and never allocates, and
+ * any non-negative long fits. Not thread safe, callers synchronize.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAGNITUDES = 64 - SUB_BUCKET_BITS;
+
+    private final long[] mCounts = new long[(MAGNITUDES + 1) * SUB_BUCKETS];
+    private long mTotal = 0;
+    private long mSum = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+
+    /**
+     * @param value latency, negative values count as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts[indexOf(value)]++;
+        mTotal++;
+        mSum += value;
+        if (value < mMin) {
+            mMin = value;
+        }
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    /**
+     * add the counts of another histogram to this one
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotal += other.mTotal;
+        mSum += other.mSum;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mTotal = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    public long getCount() {
+        return mTotal;
+    }
+
+    public long getMin() {
+        return mTotal > 0 ? mMin : 0;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public long getMean() {
+        return mTotal > 0 ? mSum / mTotal : 0;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return highest value of the bucket the percentile falls in, capped at the
+     * largest recorded value. 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (mTotal == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * mTotal);
+        rank = Math.max(1, rank);
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    private static int indexOf(long value) {
+        // values below SUB_BUCKETS get a bucket each in magnitude 0
+        int magnitude = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        int sub = (int) (value >>> magnitude) & (SUB_BUCKETS - 1);
+        if (magnitude > 0) {
+            // the top bit is implied by the magnitude, the sub bucket is the bits below it
+            sub = (int) (value >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+        }
+        return magnitude * SUB_BUCKETS + sub;
+    }
+
+    private static long highestValueOf(int index) {
+        int magnitude = index / SUB_BUCKETS;
+        int sub = index % SUB_BUCKETS;
+        if (magnitude == 0) {
+            return sub;
+        }
+        long lowest = (1L << (magnitude + SUB_BUCKET_BITS - 1)) | ((long) sub << (magnitude - 1));
+        return lowest + (1L << (magnitude - 1)) - 1;
+    }
+}
@@ -0,0 +1,91 @@
+package ktlab.lib.connection;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Smoothed round trip time of a link and its variance, the TCP way (RFC 6298):
+ * srtt moves 1/8 and rttvar 1/4 of the way to each sample. Every sample also goes
+ * into a histogram so the spread can be looked at.
+ *
+ * Samples come from the receive thread, readers from anywhere.
+ */
+public class RttEstimator {
+    // a timeout is never shorter than this, whatever the link measures
+    public static final long MIN_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+
+    private long mSmoothed = 0;
+    private long mVariance = 0;
+    private long mLatest = 0;
+    private boolean hasSample = false;
+
+    /**
+     * @param rtt measured round trip, in nanoseconds
+     */
+    public synchronized void onSample(long rtt) {
+        if (rtt < 0) {
+            return;
+        }
+        mLatest = rtt;
+        if (!hasSample) {
+            hasSample = true;
+            mSmoothed = rtt;
+            mVariance = rtt / 2;
+        } else {
+            mVariance += (Math.abs(mSmoothed - rtt) - mVariance) / 4;
+            mSmoothed += (rtt - mSmoothed) / 8;
+        }
+        mHistogram.record(rtt);
+    }
+
+    public synchronized boolean hasSample() {
+        return hasSample;
+    }
+
+    /**
+     * @return smoothed round trip in nanoseconds, 0 before the first sample
+     */
+    public synchronized long getSmoothed() {
+        return mSmoothed;
+    }
+
+    /**
+     * @return round trip variance in nanoseconds, 0 before the first sample
+     */
+    public synchronized long getVariance() {
+        return mVariance;
+    }
+
+    public synchronized long getLatest() {
+        return mLatest;
+    }
+
+    /**
+     * @param fallback timeout while nothing was measured yet, in nanoseconds
+     * @return time after which a reply is late, srtt + 4 * rttvar, in nanoseconds
+     */
+    public synchronized long getTimeout(long fallback) {
+        if (!hasSample) {
+            return fallback;
+        }
+        return Math.max(MIN_TIMEOUT, mSmoothed + 4 * mVariance);
+    }
+
+    /**
+     * @return copy of the samples so far
+     */
+    public synchronized LatencyHistogram getHistogram() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(mHistogram);
+        return copy;
+    }
+
+    public synchronized void reset() {
+        hasSample = false;
+        mSmoothed = 0;
+        mVariance = 0;
+        mLatest = 0;
+        mHistogram.reset();
+    }
+}
@@ -0,0 +1,126 @@
+package ktlab.lib.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Streams over a non-blocking channel. Instead of blocking inside read or
+ * write, each stream waits on its own selector until the channel is ready,
+ * so the reader and the writer threads can share one channel.
+ */
+public class SelectorStreams {
+
+    private SelectorStreams() {
+    }
+
+    /**
+     * switch the channel to non-blocking mode and open a readiness based input stream on it
+     */
+    public static InputStream newInputStream(SelectableChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        return new SelectorInputStream(channel);
+    }
+
+    /**
+     * switch the channel to non-blocking mode and open a readiness based output stream on it
+     */
+    public static OutputStream newOutputStream(SelectableChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        return new SelectorOutputStream(channel);
+    }
+
+    private static class SelectorInputStream extends InputStream {
+        private final SelectableChannel mChannel;
+        private final Selector mSelector;
+        private final byte[] mSingle = new byte[1];
+        private ByteBuffer mBuffer;
+
+        SelectorInputStream(SelectableChannel channel) throws IOException {
+            mChannel = channel;
+            mSelector = Selector.open();
+            channel.register(mSelector, SelectionKey.OP_READ);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int length = read(mSingle, 0, 1);
+            return length == -1 ? -1 : mSingle[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            // reuse the wrapper while the caller keeps reading into the same array
+            if (mBuffer == null || mBuffer.array() != b) {
+                mBuffer = ByteBuffer.wrap(b);
+            }
+            mBuffer.limit(off + len).position(off);
+
+            while (true) {
+                int length = ((ReadableByteChannel) mChannel).read(mBuffer);
+                if (length != 0) {
+                    return length;
+                }
+                mSelector.select();
+                mSelector.selectedKeys().clear();
+                if (!mChannel.isOpen()) {
+                    return -1;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSelector.close();
+        }
+    }
+
+    private static class SelectorOutputStream extends OutputStream {
+        private final SelectableChannel mChannel;
+        private final Selector mSelector;
+        private final byte[] mSingle = new byte[1];
+        private ByteBuffer mBuffer;
+
+        SelectorOutputStream(SelectableChannel channel) throws IOException {
+            mChannel = channel;
+            mSelector = Selector.open();
+            channel.register(mSelector, SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mSingle[0] = (byte) b;
+            write(mSingle, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mBuffer == null || mBuffer.array() != b) {
+                mBuffer = ByteBuffer.wrap(b);
+            }
+            mBuffer.limit(off + len).position(off);
+
+            while (mBuffer.hasRemaining()) {
+                if (((WritableByteChannel) mChannel).write(mBuffer) == 0) {
+                    mSelector.select();
+                    mSelector.selectedKeys().clear();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSelector.close();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package ktlab.lib.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * Byte stream a Connection runs over, e.g. an RFCOMM socket.
+ */
+public interface Transport {
+
+    public InputStream getInputStream() throws IOException;
+
+    public OutputStream getOutputStream() throws IOException;
+
+    /**
+     * @return channel usable for readiness based (selector) reads and writes,
+     * or null if the transport only offers blocking streams. the channel must
+     * also be a ReadableByteChannel and WritableByteChannel.
+     */
+    public SelectableChannel getSelectableChannel();
+
+    public void close() throws IOException;
+}
@@ -0,0 +1,30 @@
+package ktlab.lib.connection;
+
+import java.nio.ByteOrder;
+
+import android.os.Message;
+
+/**
+ * Connection over any Transport, e.g. TCP, local sockets or in-memory pipes.
+ */
+public class TransportConnection extends Connection {
+
+    private final TransportConnector mConnector;
+
+    public TransportConnection(TransportConnector connector, ConnectionCallback cb, boolean canQueueing) {
+        this(connector, cb, canQueueing, ByteOrder.nativeOrder());
+    }
+
+    public TransportConnection(TransportConnector connector, ConnectionCallback cb, boolean canQueueing,
+            ByteOrder order) {
+        super(cb, canQueueing, order);
+        mConnector = connector;
+    }
+
+    @Override
+    public void startConnection() {
+        Message msg = obtainMessage(EVENT_CONNECT_COMPLETE);
+        mConnectionThread = new TransportConnectionThread(mConnector, msg);
+        mConnectionThread.start();
+    }
+}
@@ -0,0 +1,42 @@
+package ktlab.lib.connection;
+
+import java.io.IOException;
+
+import android.os.Message;
+import android.util.Log;
+
+public class TransportConnectionThread extends ConnectionThread {
+
+    private static final String TAG = "TransportConnection";
+
+    private final TransportConnector mConnector;
+
+    public TransportConnectionThread(TransportConnector connector, Message msg) {
+        super(msg);
+        mConnector = connector;
+    }
+
+    /**
+     * get connection
+     */
+    public void run() {
+        Log.i(TAG, "start connecting");
+
+        try {
+            setTransport(mConnector.connect());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to connect", e);
+            mMessage.what = Connection.EVENT_CONNECTION_FAIL;
+            mMessage.sendToTarget();
+            return;
+        }
+
+        mMessage.sendToTarget();
+    }
+
+    @Override
+    public boolean close() {
+        mConnector.cancel();
+        return super.close();
+    }
+}
@@ -0,0 +1,20 @@
+package ktlab.lib.connection;
+
+import java.io.IOException;
+
+/**
+ * Establishes the Transport of a TransportConnection, e.g. by connecting
+ * to or accepting from a socket.
+ */
+public interface TransportConnector {
+
+    /**
+     * block until the transport is established
+     */
+    public Transport connect() throws IOException;
+
+    /**
+     * abort a connect() in progress, e.g. close a listening socket
+     */
+    public void cancel();
+}
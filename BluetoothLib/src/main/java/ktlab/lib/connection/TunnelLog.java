@@ -0,0 +1,138 @@
+package ktlab.lib.connection;
+
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Logging for the per-frame paths of the tunnel.
+ *
+ * VERBOSE is a compile time constant, so a call written as
+ * <pre>
+ *     if (TunnelLog.VERBOSE) TunnelLog.v(TAG, "what=" + what);
+ * </pre>
+ * is removed by the compiler, message formatting included, unless the library itself
+ * is built for debugging. DEBUG is set at runtime by the app, the BuildConfig of a
+ * library says release in every build of the app. Its guard
+ * <pre>
+ *     if (TunnelLog.isDebug()) TunnelLog.d(TAG, "sent " + id);
+ * </pre>
+ * costs a field read when off.
+ *
+ * Every tag is also rate limited: a burst of lines goes through, after that only
+ * RATE_PER_SECOND. Lines dropped meanwhile are counted and reported with the next
+ * line that gets through. Errors are never dropped.
+ */
+public final class TunnelLog {
+    public static final boolean VERBOSE = BuildConfig.DEBUG;
+
+    public static final int RATE_PER_SECOND = 20;
+    public static final int BURST = 50;
+
+    private static final long NANOS_PER_LINE = 1000000000L / RATE_PER_SECOND;
+
+    private static final HashMap<String, Limiter> sLimiters = new HashMap<String, Limiter>();
+
+    private static volatile boolean sDebug = false;
+
+    private TunnelLog() {
+    }
+
+    /**
+     * @return true if debug lines are logged
+     */
+    public static boolean isDebug() {
+        return sDebug;
+    }
+
+    /**
+     * turn debug lines on or off, typically on for a debuggable app
+     */
+    public static void setDebug(boolean debug) {
+        sDebug = debug;
+    }
+
+    public static void v(String tag, String msg) {
+        int dropped = acquire(tag);
+        if (dropped >= 0) {
+            Log.v(tag, withDropped(msg, dropped));
+        }
+    }
+
+    public static void d(String tag, String msg) {
+        int dropped = acquire(tag);
+        if (dropped >= 0) {
+            Log.d(tag, withDropped(msg, dropped));
+        }
+    }
+
+    public static void i(String tag, String msg) {
+        int dropped = acquire(tag);
+        if (dropped >= 0) {
+            Log.i(tag, withDropped(msg, dropped));
+        }
+    }
+
+    public static void w(String tag, String msg) {
+        int dropped = acquire(tag);
+        if (dropped >= 0) {
+            Log.w(tag, withDropped(msg, dropped));
+        }
+    }
+
+    public static void e(String tag, String msg) {
+        Log.e(tag, msg);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        Log.e(tag, msg, tr);
+    }
+
+    /**
+     * @return lines of the tag dropped since its last line, or -1 if this line is dropped too
+     */
+    private static int acquire(String tag) {
+        long now = System.nanoTime();
+        synchronized (sLimiters) {
+            Limiter limiter = sLimiters.get(tag);
+            if (limiter == null) {
+                limiter = new Limiter(now);
+                sLimiters.put(tag, limiter);
+            }
+            return limiter.acquire(now);
+        }
+    }
+
+    private static String withDropped(String msg, int dropped) {
+        return dropped == 0 ? msg : msg + " (" + dropped + " lines dropped)";
+    }
+
+    /**
+     * token bucket of one tag
+     */
+    private static class Limiter {
+        long tokens = BURST;
+        long refilled;
+        int dropped = 0;
+
+        Limiter(long now) {
+            refilled = now;
+        }
+
+        int acquire(long now) {
+            long earned = (now - refilled) / NANOS_PER_LINE;
+            if (earned > 0) {
+                tokens = Math.min(BURST, tokens + earned);
+                refilled += earned * NANOS_PER_LINE;
+            }
+            if (tokens == 0) {
+                dropped++;
+                return -1;
+            }
+            tokens--;
+            int reported = dropped;
+            dropped = 0;
+            return reported;
+        }
+    }
+}
@@ -66,8 +66,7 @@ public abstract class BluetoothConnectionThread extends ConnectionThread {
         }
 
         try {
-            mInput = mSocket.getInputStream();
-            mOutput = mSocket.getOutputStream();
+            setTransport(new BluetoothTransport(mSocket));
         } catch (IOException e) {
             return false;
         }
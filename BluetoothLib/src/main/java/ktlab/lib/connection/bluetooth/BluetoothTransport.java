@@ -0,0 +1,42 @@
+package ktlab.lib.connection.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SelectableChannel;
+
+import android.bluetooth.BluetoothSocket;
+
+import ktlab.lib.connection.Transport;
+
+/**
+ * RFCOMM transport. Bluetooth sockets only offer blocking streams.
+ */
+public class BluetoothTransport implements Transport {
+
+    private final BluetoothSocket mSocket;
+
+    public BluetoothTransport(BluetoothSocket socket) {
+        mSocket = socket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public SelectableChannel getSelectableChannel() {
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
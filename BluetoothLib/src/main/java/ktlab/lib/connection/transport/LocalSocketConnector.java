@@ -0,0 +1,69 @@
+package ktlab.lib.connection.transport;
+
+import java.io.IOException;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+import ktlab.lib.connection.Transport;
+import ktlab.lib.connection.TransportConnector;
+
+/**
+ * Connects to, or accepts one connection from, an abstract namespace Unix-domain socket.
+ */
+public class LocalSocketConnector implements TransportConnector {
+
+    private final String mName;
+    private final boolean isServer;
+    private volatile LocalServerSocket mServerSocket;
+
+    private LocalSocketConnector(String name, boolean server) {
+        mName = name;
+        isServer = server;
+    }
+
+    public static LocalSocketConnector client(String name) {
+        return new LocalSocketConnector(name, false);
+    }
+
+    public static LocalSocketConnector server(String name) {
+        return new LocalSocketConnector(name, true);
+    }
+
+    @Override
+    public Transport connect() throws IOException {
+        if (isServer) {
+            LocalServerSocket serverSocket = new LocalServerSocket(mName);
+            mServerSocket = serverSocket;
+            try {
+                return new LocalSocketTransport(serverSocket.accept());
+            } finally {
+                // only one connection is accepted
+                serverSocket.close();
+                mServerSocket = null;
+            }
+        }
+
+        LocalSocket socket = new LocalSocket();
+        try {
+            socket.connect(new LocalSocketAddress(mName));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new LocalSocketTransport(socket);
+    }
+
+    @Override
+    public void cancel() {
+        LocalServerSocket serverSocket = mServerSocket;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // DO NOTHING
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package ktlab.lib.connection.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SelectableChannel;
+
+import android.net.LocalSocket;
+
+import ktlab.lib.connection.Transport;
+
+/**
+ * Unix-domain socket transport. Local sockets only offer blocking streams.
+ */
+public class LocalSocketTransport implements Transport {
+
+    private final LocalSocket mSocket;
+
+    public LocalSocketTransport(LocalSocket socket) {
+        mSocket = socket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public SelectableChannel getSelectableChannel() {
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,85 @@
+package ktlab.lib.connection.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.channels.SelectableChannel;
+
+import ktlab.lib.connection.Transport;
+import ktlab.lib.connection.TransportConnector;
+
+/**
+ * In-memory transport. createPair() returns two ends whose streams are
+ * cross-connected, standing in for a socket in load and soak tests.
+ */
+public class PipeTransport implements Transport {
+
+    public static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+    private final PipedInputStream mInput;
+    private final PipedOutputStream mOutput;
+
+    private PipeTransport(PipedInputStream input, PipedOutputStream output) {
+        mInput = input;
+        mOutput = output;
+    }
+
+    public static PipeTransport[] createPair() throws IOException {
+        return createPair(DEFAULT_PIPE_SIZE);
+    }
+
+    /**
+     * @param pipeSize bytes buffered in each direction
+     * @return the two ends of the pipe
+     */
+    public static PipeTransport[] createPair(int pipeSize) throws IOException {
+        PipedInputStream firstIn = new PipedInputStream(pipeSize);
+        PipedInputStream secondIn = new PipedInputStream(pipeSize);
+        PipedOutputStream firstOut = new PipedOutputStream(secondIn);
+        PipedOutputStream secondOut = new PipedOutputStream(firstIn);
+
+        return new PipeTransport[] {
+                new PipeTransport(firstIn, firstOut),
+                new PipeTransport(secondIn, secondOut)
+        };
+    }
+
+    /**
+     * @return connector handing out this end of the pipe
+     */
+    public TransportConnector asConnector() {
+        return new TransportConnector() {
+            @Override
+            public Transport connect() {
+                return PipeTransport.this;
+            }
+
+            @Override
+            public void cancel() {
+            }
+        };
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mInput;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutput;
+    }
+
+    @Override
+    public SelectableChannel getSelectableChannel() {
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOutput.close();
+        mInput.close();
+    }
+}
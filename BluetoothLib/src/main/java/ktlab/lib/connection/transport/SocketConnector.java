@@ -0,0 +1,66 @@
+package ktlab.lib.connection.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import ktlab.lib.connection.Transport;
+import ktlab.lib.connection.TransportConnector;
+
+/**
+ * Connects to, or accepts one connection from, a TCP address.
+ */
+public class SocketConnector implements TransportConnector {
+
+    private final SocketAddress mAddress;
+    private final boolean isServer;
+    private volatile ServerSocketChannel mServerChannel;
+
+    private SocketConnector(SocketAddress address, boolean server) {
+        mAddress = address;
+        isServer = server;
+    }
+
+    public static SocketConnector client(String host, int port) {
+        return new SocketConnector(new InetSocketAddress(host, port), false);
+    }
+
+    public static SocketConnector server(int port) {
+        return new SocketConnector(new InetSocketAddress(port), true);
+    }
+
+    @Override
+    public Transport connect() throws IOException {
+        SocketChannel channel;
+        if (isServer) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            mServerChannel = serverChannel;
+            try {
+                serverChannel.socket().setReuseAddress(true);
+                serverChannel.socket().bind(mAddress);
+                channel = serverChannel.accept();
+            } finally {
+                // only one connection is accepted
+                serverChannel.close();
+                mServerChannel = null;
+            }
+        } else {
+            channel = SocketChannel.open(mAddress);
+        }
+        return new SocketTransport(channel.socket());
+    }
+
+    @Override
+    public void cancel() {
+        ServerSocketChannel serverChannel = mServerChannel;
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                // DO NOTHING
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ktlab.lib.connection.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.SelectableChannel;
+
+import ktlab.lib.connection.Transport;
+
+/**
+ * TCP transport. Sockets opened through a SocketChannel also offer their
+ * channel for readiness mode.
+ */
+public class SocketTransport implements Transport {
+
+    private final Socket mSocket;
+
+    public SocketTransport(Socket socket) throws IOException {
+        mSocket = socket;
+        // frames are written whole, don't hold small ones back
+        mSocket.setTcpNoDelay(true);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public SelectableChannel getSelectableChannel() {
+        return mSocket.getChannel();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
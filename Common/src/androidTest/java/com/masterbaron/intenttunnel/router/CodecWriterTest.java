@@ -0,0 +1,32 @@
+package com.masterbaron.intenttunnel.router;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class CodecWriterTest extends TestCase {
+    private static final int[] VALUES = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+
+    /**
+     * a varint put in place is the same as one written, and takes the bytes varIntSize() says
+     */
+    public void testPutVarIntMatchesWrite() {
+        for (int value : VALUES) {
+            CodecWriter out = new CodecWriter();
+            out.writeVarInt(value);
+            assertEquals("size of " + value, out.size(), CodecWriter.varIntSize(value));
+
+            byte[] buffer = new byte[8];
+            int end = CodecWriter.putVarInt(buffer, 2, value);
+            assertEquals(2 + out.size(), end);
+            assertTrue("bytes of " + value, Arrays.equals(out.toByteArray(), Arrays.copyOfRange(buffer, 2, end)));
+        }
+    }
+
+    public void testSkipLeavesRoomInFront() throws Exception {
+        CodecWriter out = new CodecWriter();
+        out.skip(12);
+        out.writeString("togglepause");
+        assertEquals("togglepause", new CodecReader(out.getBuffer(), 12, out.size() - 12).readString());
+    }
+}
@@ -0,0 +1,90 @@
+package com.masterbaron.intenttunnel.router;
+
+import junit.framework.TestCase;
+
+public class DedupWindowTest extends TestCase {
+
+    public void testRepeatIsDuplicate() {
+        DedupWindow window = new DedupWindow();
+        assertTrue(window.accept(1));
+        assertTrue(window.accept(2));
+        assertFalse(window.accept(1));
+        assertFalse(window.accept(2));
+    }
+
+    public void testOutOfOrder() {
+        DedupWindow window = new DedupWindow();
+        assertTrue(window.accept(10));
+        assertTrue(window.accept(3));
+        assertFalse(window.accept(3));
+        assertFalse(window.accept(10));
+        assertTrue(window.accept(4));
+    }
+
+    /**
+     * ids delivered one after the other are remembered below the mark, however far the ids go
+     */
+    public void testInOrderStaysSmall() {
+        DedupWindow window = new DedupWindow(64, 1024);
+        for (int id = 1; id <= 100000; id++) {
+            assertTrue(window.accept(id));
+        }
+        assertEquals(64, window.getSize());
+        assertFalse(window.accept(1));
+        assertFalse(window.accept(99999));
+    }
+
+    /**
+     * an id far behind the highest one was never delivered, it must not be taken for a repeat
+     */
+    public void testReorderedFarBehindIsAccepted() {
+        DedupWindow window = new DedupWindow(64, 64);
+        for (int id = 1; id <= 10; id++) {
+            if (id != 5) {
+                assertTrue(window.accept(id));
+            }
+        }
+        assertTrue(window.accept(1000));
+        assertTrue(window.accept(5));
+        // still below the mark
+        assertFalse(window.accept(3));
+    }
+
+    /**
+     * two priority classes share the id sequence, the high one overtaking the low one
+     * by more than the initial bitmap. every id is delivered once, repeats are refused.
+     */
+    public void testInterleavedClassesDeliveredOnce() {
+        DedupWindow window = new DedupWindow();
+        int low = 1;
+        int high = 1501;
+        while (low <= 1500 || high <= 3000) {
+            for (int turn = 0; turn < 8 && high <= 3000; turn++) {
+                assertTrue("high " + high, window.accept(high++));
+            }
+            if (low <= 1500) {
+                assertTrue("low " + low, window.accept(low++));
+            }
+        }
+        for (int id = 1; id <= 3000; id++) {
+            assertFalse("repeat " + id, window.accept(id));
+        }
+    }
+
+    /**
+     * past its limit the bitmap slides, what it leaves behind above the mark is accepted again
+     */
+    public void testSlidesPastLimit() {
+        DedupWindow window = new DedupWindow(64, 128);
+        assertTrue(window.accept(2));
+        assertTrue(window.accept(100));
+        assertEquals(128, window.getSize());
+        assertTrue(window.accept(1000));
+        assertEquals(128, window.getSize());
+        // never delivered
+        assertTrue(window.accept(1));
+        // delivered, but no longer known
+        assertTrue(window.accept(100));
+        assertFalse(window.accept(1000));
+    }
+}
@@ -0,0 +1,113 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.content.Intent;
+import android.os.SystemClock;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ExpiryWheelTest extends TestCase {
+    private static final int TYPE = 1000;
+    private static final long SECOND = 1000;
+
+    private final Intent mIntent = new Intent("com.android.music.musicservicecommand");
+    private int mNextId = 1;
+    private long mNow;
+
+    @Override
+    protected void setUp() throws Exception {
+        mNow = SystemClock.elapsedRealtime();
+    }
+
+    public void testNextExpiryFollowsAdds() {
+        ExpiryWheel wheel = new ExpiryWheel(512, mNow);
+        assertEquals(-1, wheel.getNextExpiry());
+
+        // further than a turn of the wheel, its own tick and not an early slot
+        Packet far = newPacket(120 * SECOND);
+        wheel.add(far);
+        assertEquals(expiryOf(far), wheel.getNextExpiry());
+
+        Packet later = newPacket(5 * SECOND);
+        Packet sooner = newPacket(2 * SECOND);
+        wheel.add(later);
+        assertEquals(expiryOf(later), wheel.getNextExpiry());
+        wheel.add(sooner);
+        assertEquals(expiryOf(sooner), wheel.getNextExpiry());
+    }
+
+    /**
+     * a removed packet's deadline stays the bound until the wheel passes it
+     */
+    public void testRemoveLeavesEarlyBound() {
+        ExpiryWheel wheel = new ExpiryWheel(512, mNow);
+        Packet sooner = newPacket(2 * SECOND);
+        Packet later = newPacket(5 * SECOND);
+        wheel.add(sooner);
+        wheel.add(later);
+        long bound = expiryOf(sooner);
+        wheel.remove(sooner);
+        assertEquals(bound, wheel.getNextExpiry());
+
+        List<Packet> expired = new ArrayList<Packet>();
+        wheel.advance(wheel.getNextExpiry(), expired);
+        assertTrue(expired.isEmpty());
+        assertEquals(expiryOf(later), wheel.getNextExpiry());
+
+        wheel.advance(wheel.getNextExpiry(), expired);
+        assertEquals(1, expired.size());
+        assertSame(later, expired.get(0));
+        assertEquals(-1, wheel.getNextExpiry());
+    }
+
+    /**
+     * whatever is added and removed, the next expiry is never later than the earliest
+     * deadline, and advancing to it makes progress
+     */
+    public void testNeverLate() {
+        ExpiryWheel wheel = new ExpiryWheel(64, mNow);
+        List<Packet> tracked = new ArrayList<Packet>();
+        List<Packet> expired = new ArrayList<Packet>();
+        Random random = new Random(1);
+        long now = mNow;
+
+        for (int step = 0; step < 10000; step++) {
+            int op = random.nextInt(10);
+            if (op < 5) {
+                Packet packet = newPacket(now - mNow + random.nextInt(20000));
+                wheel.add(packet);
+                tracked.add(packet);
+            } else if (op < 8 && !tracked.isEmpty()) {
+                wheel.remove(tracked.remove(random.nextInt(tracked.size())));
+            } else if (!tracked.isEmpty()) {
+                long next = wheel.getNextExpiry();
+                wheel.advance(next, expired);
+                tracked.removeAll(expired);
+                expired.clear();
+                assertTrue(wheel.getNextExpiry() == -1 || wheel.getNextExpiry() > next);
+                now = next;
+            }
+
+            if (tracked.isEmpty()) {
+                assertEquals(-1, wheel.getNextExpiry());
+            } else {
+                long earliest = Long.MAX_VALUE;
+                for (Packet packet : tracked) {
+                    earliest = Math.min(earliest, packet.wheelTick * ExpiryWheel.TICK);
+                }
+                assertTrue(wheel.getNextExpiry() <= earliest);
+            }
+        }
+    }
+
+    private Packet newPacket(long ttl) {
+        return new Packet(mNextId++, TYPE, mIntent, Packet.DEFAULT_PRIORITY, System.currentTimeMillis() + ttl);
+    }
+
+    private static long expiryOf(Packet packet) {
+        return packet.wheelTick * ExpiryWheel.TICK;
+    }
+}
@@ -0,0 +1,37 @@
+package com.masterbaron.intenttunnel.router;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class FrameCompressorTest extends TestCase {
+    private static final byte[] FRAME = ("intent:#Intent;action=android.intent.action.VIEW;"
+            + "category=android.intent.category.DEFAULT;S.command=togglepause;"
+            + "component=com.android.music/.MediaPlaybackService;end").getBytes();
+
+    public void testRoundTrip() throws Exception {
+        FrameCompressor compressor = new FrameCompressor();
+        CodecWriter compressed = compressor.compress(FRAME, 0, FRAME.length);
+        assertNotNull(compressed);
+        assertTrue(compressed.size() < FRAME.length);
+        byte[] inflated = compressor.decompress(compressed.getBuffer(), 0, compressed.size());
+        assertTrue(Arrays.equals(FRAME, inflated));
+    }
+
+    /**
+     * the compressed frame starts after the headroom, which is left for a prefix
+     */
+    public void testHeadroom() throws Exception {
+        FrameCompressor compressor = new FrameCompressor();
+        int plain = compressor.compress(FRAME, 0, FRAME.length).size();
+        CodecWriter compressed = compressor.compress(FRAME, 0, FRAME.length, 12);
+        assertEquals(plain + 12, compressed.size());
+        byte[] inflated = compressor.decompress(compressed.getBuffer(), 12, compressed.size() - 12);
+        assertTrue(Arrays.equals(FRAME, inflated));
+    }
+
+    public void testSmallFrameIsNotCompressed() {
+        FrameCompressor compressor = new FrameCompressor();
+        assertNull(compressor.compress(FRAME, 0, FrameCompressor.MIN_COMPRESS_SIZE - 1));
+    }
+}
@@ -0,0 +1,91 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.content.Intent;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class PacketLogTest extends TestCase {
+    private static final long EPOCH = 42;
+    private static final int KB = 1024;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = new File(System.getProperty("java.io.tmpdir"), "packetlog-" + System.nanoTime());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    public void testReplaysLivePackets() throws Exception {
+        PacketLog log = new PacketLog(mDirectory);
+        assertTrue(log.open(EPOCH).isEmpty());
+        Packet first = newPacket(log, 16);
+        Packet second = newPacket(log, 16);
+        Packet third = newPacket(log, 16);
+        assertTrue(log.append(first));
+        assertTrue(log.append(second));
+        assertTrue(log.append(third));
+        log.remove(second);
+        log.close();
+
+        log = new PacketLog(mDirectory);
+        List<Packet> packets = log.open(EPOCH + 1);
+        assertEquals(EPOCH, log.getEpoch());
+        assertEquals(2, packets.size());
+        assertEquals(first.getId(), packets.get(0).getId());
+        assertEquals(third.getId(), packets.get(1).getId());
+        assertTrue(log.nextPacketId() > third.getId());
+        log.close();
+    }
+
+    /**
+     * the oldest segment is mostly removed by count but not by size. rewriting its live
+     * packets into the new segment must leave room for the record that started it.
+     */
+    public void testRollLeavesRoomForRecord() throws Exception {
+        PacketLog log = new PacketLog(mDirectory);
+        log.open(EPOCH);
+        Packet[] large = new Packet[10];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = newPacket(log, 90 * KB);
+            assertTrue(log.append(large[i]));
+            Packet small = newPacket(log, 16);
+            assertTrue(log.append(small));
+            log.remove(small);
+        }
+        Packet small = newPacket(log, 16);
+        assertTrue(log.append(small));
+        log.remove(small);
+
+        Packet rolling = newPacket(log, 200 * KB);
+        assertTrue(log.append(rolling));
+        log.close();
+
+        log = new PacketLog(mDirectory);
+        List<Packet> packets = log.open(EPOCH);
+        assertEquals(large.length + 1, packets.size());
+        assertEquals(rolling.getId(), packets.get(packets.size() - 1).getId());
+        log.close();
+    }
+
+    private static Packet newPacket(PacketLog log, int extraSize) {
+        Intent intent = new Intent("com.masterbaron.intenttunnel.test.LOGGED");
+        intent.putExtra("payload", new byte[extraSize]);
+        return new Packet(log.nextPacketId(), RouterService.ROUTER_MESSAGE_BROADCAST_INTENT, intent,
+                Packet.DEFAULT_PRIORITY, System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(10));
+    }
+}
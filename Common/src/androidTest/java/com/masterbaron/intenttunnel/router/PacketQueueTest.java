@@ -0,0 +1,71 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.content.Intent;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class PacketQueueTest extends TestCase {
+    private static final int TYPE = 1000;
+    private static final int HIGH = 1;
+    private static final int LOW = -1;
+
+    private final Intent mIntent = new Intent("com.android.music.musicservicecommand");
+    private int mNextId = 1;
+
+    public void testReplaceKeepsPlaceInLine() {
+        PacketQueue queue = new PacketQueue();
+        Packet first = newPacket(LOW, "first");
+        Packet second = newPacket(LOW, "second");
+        queue.offer(first);
+        queue.offer(second);
+
+        Packet newer = newPacket(LOW, "first");
+        assertSame(first, queue.replace(newer));
+        assertTrue(queue.contains(newer));
+        assertFalse(queue.contains(first));
+        assertEquals(2, queue.size());
+        assertSame(newer, queue.poll());
+        assertSame(second, queue.poll());
+    }
+
+    /**
+     * a low priority packet superseded by a high priority one, the newer packet goes
+     * to the high lane rather than waiting in the low one
+     */
+    public void testReplaceOfOtherClassMovesLane() {
+        PacketQueue queue = new PacketQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.offer(newPacket(LOW, null));
+        }
+        Packet queued = newPacket(LOW, "volume");
+        queue.offer(queued);
+
+        Packet newer = newPacket(HIGH, "volume");
+        assertSame(queued, queue.replace(newer));
+        assertFalse(queue.contains(newer));
+        assertEquals(10, queue.size());
+
+        assertNull(queue.offer(newer));
+        assertEquals(11, queue.size());
+
+        // the key now belongs to the newer packet, in its lane
+        Packet newest = newPacket(HIGH, "volume");
+        assertSame(newer, queue.replace(newest));
+        assertTrue(queue.contains(newest));
+        assertSame(newest, queue.poll());
+    }
+
+    public void testReplaceWithoutKey() {
+        PacketQueue queue = new PacketQueue();
+        queue.offer(newPacket(LOW, null));
+        assertNull(queue.replace(newPacket(LOW, null)));
+        assertEquals(1, queue.size());
+    }
+
+    private Packet newPacket(int priority, String key) {
+        long expiredTime = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        return new Packet(mNextId++, TYPE, mIntent, priority, expiredTime, key);
+    }
+}
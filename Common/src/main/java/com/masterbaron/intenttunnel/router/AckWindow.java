@@ -0,0 +1,98 @@
+package com.masterbaron.intenttunnel.router;
+
+import java.util.List;
+
+/**
+ * Frames of one stream that were sent with a sequence number and are not yet
+ * acknowledged by the peer.
+ *
+ * Frames of a stream arrive in the order they were sequenced, so the peer only
+ * has to report the last sequence number it delivered and every frame up to it
+ * is acknowledged at once.
+ */
+public class AckWindow {
+    private int mNextSequence = 1;
+
+    // unacknowledged frames, oldest at head
+    private int[] mIds = new int[16];
+    private int[] mSequences = new int[16];
+    private long[] mTimes = new long[16];
+    private int mHead = 0;
+    private int mCount = 0;
+
+    /**
+     * @param id message id of the frame
+     * @return sequence number to send the frame with
+     */
+    public int assign(int id) {
+        if (mCount == mIds.length) {
+            grow();
+        }
+        int sequence = mNextSequence++;
+        int tail = (mHead + mCount) % mIds.length;
+        mIds[tail] = id;
+        mSequences[tail] = sequence;
+        mTimes[tail] = System.currentTimeMillis();
+        mCount++;
+        return sequence;
+    }
+
+    /**
+     * take back the most recent assignment, e.g. when the frame was never sent,
+     * so the peer doesn't see a gap
+     *
+     * @return false if the id isn't the most recent assignment
+     */
+    public boolean cancel(int id) {
+        if (mCount == 0) {
+            return false;
+        }
+        int tail = (mHead + mCount - 1) % mIds.length;
+        if (mIds[tail] != id) {
+            return false;
+        }
+        mCount--;
+        mNextSequence--;
+        return true;
+    }
+
+    /**
+     * @param sequence last sequence number the peer delivered
+     * @param ids      receives the message ids that are now acknowledged, oldest first
+     */
+    public void acknowledge(int sequence, List<Integer> ids) {
+        while (mCount > 0 && mSequences[mHead] - sequence <= 0) {
+            ids.add(mIds[mHead]);
+            mHead = (mHead + 1) % mIds.length;
+            mCount--;
+        }
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * @return when the oldest unacknowledged frame was sent, 0 if there is none
+     */
+    public long getOldestTime() {
+        return mCount > 0 ? mTimes[mHead] : 0;
+    }
+
+    private void grow() {
+        int length = mIds.length * 2;
+        int[] ids = new int[length];
+        int[] sequences = new int[length];
+        long[] times = new long[length];
+        for (int i = 0; i < mCount; i++) {
+            int index = (mHead + i) % mIds.length;
+            ids[i] = mIds[index];
+            sequences[i] = mSequences[index];
+            times[i] = mTimes[index];
+        }
+        mIds = ids;
+        mSequences = sequences;
+        mTimes = times;
+        mHead = 0;
+    }
+}
@@ -5,26 +5,25 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.util.Base64;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Queue;
-import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
+import ktlab.lib.connection.BufferPool;
+import ktlab.lib.connection.Connection;
 import ktlab.lib.connection.ConnectionCallback;
 import ktlab.lib.connection.ConnectionCommand;
-import ktlab.lib.connection.bluetooth.BluetoothConnection;
-import ktlab.lib.connection.bluetooth.ServerBluetoothConnection;
+import ktlab.lib.connection.RttEstimator;
+import ktlab.lib.connection.TunnelLog;
 
 /**
  * Created by Van Etten on 12/6/13.
@@ -32,23 +31,77 @@ import ktlab.lib.connection.bluetooth.ServerBluetoothConnection;
 public abstract class BluetoothService implements ConnectionCallback, Handler.Callback {
     private static final String UUID_BASE="-756C-11E3-981F-0800200C9A66";
 
-    private static final String ENCODER_KEY_PREFIX = "IntentTunnel[byte]";
-    private static final String ENCODER_KEY_LIST_STRING = "IntentTunnel.StringList";
-    private static final String ENCODER_KEY_LIST_INTEGER = "IntentTunnel.IntegerList";
-
     protected static byte BLUETOOTH_COMMAND_BROADCAST_INTENT = 100;
     protected static byte BLUETOOTH_COMMAND_STARTSERVICE_INTENT = 101;
     protected static byte BLUETOOTH_COMMAND_STARTACTIVITY_INTENT = 102;
+    protected static byte BLUETOOTH_COMMAND_HELLO = 110;
+    protected static byte BLUETOOTH_COMMAND_BATCH = 111;
+    protected static byte BLUETOOTH_COMMAND_ACK = 112;
+    protected static byte BLUETOOTH_COMMAND_SEQUENCED = 113;
+
+    // hello version and the capabilities advertised in it.
+    // a capability is only used once both sides have advertised it, older peers never send a hello.
+    private static final int HELLO_VERSION = 2;
+    protected static final int CAPABILITY_BINARY_INTENT = 1;
+    protected static final int CAPABILITY_MULTIPLEX = 1 << 1;
+    protected static final int CAPABILITY_DEFLATE = 1 << 2;
+    protected static final int CAPABILITY_INTERN = 1 << 3;
+    protected static final int CAPABILITY_BATCH = 1 << 4;
+    protected static final int CAPABILITY_ACK = 1 << 5;
+    protected static final int CAPABILITY_DEDUP = 1 << 6;
+    protected static final int CAPABILITY_RTT = 1 << 7;
+    private static final int LOCAL_CAPABILITIES = CAPABILITY_BINARY_INTENT | CAPABILITY_MULTIPLEX
+            | CAPABILITY_DEFLATE | CAPABILITY_INTERN | CAPABILITY_BATCH | CAPABILITY_ACK | CAPABILITY_DEDUP
+            | CAPABILITY_RTT;
+
+    // set on the stream byte of a sequenced frame that also carries the router's packet id
+    private static final int SEQUENCED_PACKET_ID = 0x80;
+    // room encoded frames leave in front for the sequencing prefix: stream(1),
+    // sequence and packet id varints (5 each), inner type(1)
+    private static final int SEQUENCE_ROOM = 12;
+
+    // intents wait this long for the peer's hello before going out without its capabilities
+    private static final long HELLO_WAIT = TimeUnit.SECONDS.toMillis(1);
+
+    // logical streams on the link. control intents are never stuck behind bulk ones.
+    protected static final int STREAM_CONTROL = 0;
+    protected static final int STREAM_BULK = 1;
+    private static final int STREAM_CONTROL_PRIORITY = 10;
+    private static final int STREAM_BULK_PRIORITY = 0;
 
     private static final int MESSAGE_CHECK_TIMEOUT = 2300;
     private static final int MESSAGE_BT_FAIL = 2301;
+    private static final int MESSAGE_FLUSH_BATCH = 2302;
+    private static final int MESSAGE_SEND_ACK = 2303;
+    private static final int MESSAGE_HELLO_WAIT = 2304;
     private static long CONNECTION_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(5);
     private static long CONNECTION_TIMEOUT = TimeUnit.SECONDS.toMillis(25);
     private static long CONNECTION_SERVER_TIMEOUT = TimeUnit.SECONDS.toMillis(15);
 
+    // packets that may be in flight at once, bounded by the connection's send ring
+    protected static final int DEFAULT_SEND_WINDOW = 4;
+    protected static final int MAX_SEND_WINDOW = 16;
+
+    // batching of small frames into one container command. a batch is written once it
+    // reaches the size limit, holds BATCH_MAX_ENTRIES or has waited the linger time.
+    protected static final int DEFAULT_BATCH_SIZE = ConnectionCommand.DEFAULT_CHUNK_SIZE;
+    protected static final int MAX_BATCH_SIZE = ConnectionCommand.MAX_CHUNK_SIZE;
+    protected static final long DEFAULT_BATCH_LINGER = 5;
+    private static final int BATCH_MAX_ENTRIES = 32;
+
+    // delivered frames are acknowledged once this many are waiting or after ACK_DELAY.
+    // a frame without acknowledgement after ACK_TIMEOUT means the link is gone. once the
+    // round trip is measured the timeout is a few of its timeouts, but never below ACK_MIN_TIMEOUT.
+    private static final int ACK_EVERY = DEFAULT_SEND_WINDOW / 2;
+    private static final long ACK_DELAY = 20;
+    private static final long ACK_TIMEOUT = TimeUnit.SECONDS.toMillis(15);
+    private static final long ACK_MIN_TIMEOUT = TimeUnit.SECONDS.toMillis(3);
+    private static final int ACK_TIMEOUT_RTTS = 4;
+
     protected Handler mHandler;
-    protected BluetoothConnection mBTConnection;
+    protected Connection mBTConnection;
     protected RouterService mRouterService;
+    protected TunnelMetrics mMetrics;
 
     private String mStatus = "Stopped";
     private boolean isEnabled = true;
@@ -56,9 +109,42 @@ public abstract class BluetoothService implements ConnectionCallback, Handler.Ca
     private boolean isConnected = false;
     private long lastActivity = 0;
     private int mMessageId = 0;
-    private Packet sendingPacket;
+    private int mSendWindow = DEFAULT_SEND_WINDOW;
+    private int mPeerCapabilities = 0;
+    private long mPeerEpoch = 0;
+    private boolean hasPeerHello = false;
+    private long mConnectedTime = 0;
+    private final FrameCompressor mCompressor = new FrameCompressor();
 
-    abstract protected BluetoothConnection createNewBTConnection();
+    // string tables, one per stream so frames of a stream are decoded in the order they were encoded
+    private StringTable.Encoder[] mStringEncoders;
+    private StringTable.Decoder[] mStringDecoders;
+
+    // in flight packets by message id, in send order
+    private final LinkedHashMap<Integer, Packet> mInFlight = new LinkedHashMap<Integer, Packet>();
+
+    // batch being filled per stream, and batches handed to the connection by command id
+    private final FrameBatch[] mOpenBatches = new FrameBatch[ConnectionCommand.MAX_STREAMS];
+    private final HashMap<Integer, FrameBatch> mSentBatches = new HashMap<Integer, FrameBatch>();
+    private int mBatchSize = DEFAULT_BATCH_SIZE;
+    private long mBatchLinger = DEFAULT_BATCH_LINGER;
+
+    // packets riding in a batch with others, they don't take a slot of the send window
+    private int mBatchedPackets = 0;
+
+    // sent: frames awaiting acknowledgement per stream, and their message ids
+    private AckWindow[] mAckWindows;
+    private final HashSet<Integer> mAwaitingAck = new HashSet<Integer>();
+
+    // received: last sequence number delivered and acknowledged per stream
+    private final int[] mReceivedSequences = new int[ConnectionCommand.MAX_STREAMS];
+    private final int[] mAckedSequences = new int[ConnectionCommand.MAX_STREAMS];
+    private int mUnackedReceived = 0;
+
+    /**
+     * @return the connection to the peer, a bluetooth one outside of tests. null if there is no device.
+     */
+    abstract protected Connection createNewBTConnection();
 
     protected String getTag() {
         // logs to belong to whoever implements this abstract class.
@@ -86,17 +172,53 @@ public abstract class BluetoothService implements ConnectionCallback, Handler.Ca
     }
 
     public boolean isSending() {
-        return sendingPacket != null;
+        return !mInFlight.isEmpty();
+    }
+
+    /**
+     * @return true if connected, the peer's capabilities are settled and the in flight
+     * window has room for another frame. with acknowledgements the window counts every
+     * packet not yet acknowledged.
+     */
+    public boolean canSend() {
+        return isConnected && isPeerSettled() && mInFlight.size() - mBatchedPackets < mSendWindow;
+    }
+
+    /**
+     * @return true once the peer's hello arrived, or it took so long the peer is assumed not to send one
+     */
+    private boolean isPeerSettled() {
+        return hasPeerHello || mConnectedTime + HELLO_WAIT <= System.currentTimeMillis();
+    }
+
+    public int getSendWindow() {
+        return mSendWindow;
+    }
+
+    public void setSendWindow(int window) {
+        mSendWindow = Math.max(1, Math.min(window, MAX_SEND_WINDOW));
+    }
+
+    /**
+     * @param size   largest batch in bytes, 0 to send every frame on its own
+     * @param linger milliseconds a batch waits for more frames before it is written
+     */
+    public void setBatching(int size, long linger) {
+        mBatchSize = Math.max(0, Math.min(size, MAX_BATCH_SIZE));
+        mBatchLinger = Math.max(0, linger);
     }
 
     public BluetoothService(RouterService routerService) {
         Log.d(getTag(), "created()");
         this.mRouterService = routerService;
+        this.mMetrics = routerService.getMetrics();
 
         mStatus = "Ready";
 
         // setup handler and messenger
         mHandler = new Handler(this);
+        resetStringTables();
+        resetSequences();
     }
 
     public void stop() {
@@ -104,6 +226,7 @@ public abstract class BluetoothService implements ConnectionCallback, Handler.Ca
         mStatus = "Stopping";
         isEnabled = false;
         stopConnection();
+        mCompressor.release();
 
         mStatus = "Stopped";
     }
@@ -115,10 +238,21 @@ public abstract class BluetoothService implements ConnectionCallback, Handler.Ca
             mBTConnection = null;
         }
         mHandler.removeCallbacksAndMessages(null);
+        List<Packet> failed = takeInFlightPackets();
         mMessageId = 0;
+        mPeerCapabilities = 0;
+        mPeerEpoch = 0;
+        hasPeerHello = false;
+        resetStringTables();
+        resetSequences();
         isRunning = false;
         isConnected = false;
         mStatus = "Disconnected";
+
+        // packets still in flight are sent again, on the next connection or the other service
+        if (!failed.isEmpty()) {
+            mRouterService.onIntentSendFail(this, failed);
+        }
     }
 
     protected boolean startConnection() {
@@ -129,6 +263,10 @@ public abstract class BluetoothService implements ConnectionCallback, Handler.Ca
             Log.d(getTag(), "createNewBTConnection");
             mBTConnection = createNewBTConnection();
         }
+        if (mBTConnection != null) {
+            mBTConnection.setStreamPriority(STREAM_CONTROL, STREAM_CONTROL_PRIORITY);
+            mBTConnection.setStreamPriority(STREAM_BULK, STREAM_BULK_PRIORITY);
+        }
         if (mBTConnection != null) {
             // if this is a server, then we will be waiting for a connection
             if (isBTServer()) {
@@ -148,10 +286,16 @@ public abstract class BluetoothService implements ConnectionCallback, Handler.Ca
         Log.d(getTag(), "onConnectComplete()");
         mStatus = "Connected";
         isConnected = true;
+        mMetrics.increment(TunnelMetrics.CONNECTS);
 
         // once connected reset failure counter
         trackBluetoothActivity();
 
+        // tell the peer what we understand before any intents go out
+        mConnectedTime = System.currentTimeMillis();
+        sendHello();
+        mHandler.sendEmptyMessageDelayed(MESSAGE_HELLO_WAIT, HELLO_WAIT);
+
         mRouterService.onConnectComplete(this);
 
         // start the process of checking for inactivity
@@ -170,52 +314,264 @@ public abstract class BluetoothService implements ConnectionCallback, Handler.Ca
     public void onConnectionFailed() {
         Log.d(getTag(), "onConnectionFailed()");
         mStatus = "Connection Failed";
+        mMetrics.increment(TunnelMetrics.CONNECT_FAILURES);
 
+        List<Packet> failed = takeInFlightPackets();
         stopConnection();
 
         // when there is a failure, we need to tell the router it failed
-        mRouterService.onIntentSendFail(this, sendingPacket);
-        sendingPacket = null;
+        mRouterService.onIntentSendFail(this, failed);
     }
 
     @Override
     public void onConnectionLost() {
         Log.d(getTag(), "onConnectionLost()");
         mStatus = "Connection Lost";
+        mMetrics.increment(TunnelMetrics.CONNECTIONS_LOST);
 
+        List<Packet> failed = takeInFlightPackets();
         stopConnection();
 
         // when there is a failure, we need to tell the router it failed
-        mRouterService.onIntentSendFail(this, sendingPacket);
-        sendingPacket = null;
+        mRouterService.onIntentSendFail(this, failed);
     }
 
     @Override
     public void onDataSendComplete(int id) {
-        Log.d(getTag(), "onDataSendComplete(" + id + ")");
+        if (TunnelLog.isDebug()) {
+            TunnelLog.d(getTag(), "onDataSendComplete(" + id + ")");
+        }
         mStatus = "Ready (Sent Data)";
         trackBluetoothActivity();
 
-        mRouterService.onIntentSendComplete(this, sendingPacket);
-        sendingPacket = null;
+        FrameBatch batch = mSentBatches.remove(id);
+        if (batch != null) {
+            mBatchedPackets -= batch.getCount() - 1;
+            for (int i = 0; i < batch.getCount(); i++) {
+                if (mAwaitingAck.contains(batch.getId(i))) {
+                    // done once the peer acknowledges it
+                    continue;
+                }
+                Packet packet = mInFlight.remove(batch.getId(i));
+                if (packet != null) {
+                    mRouterService.onIntentSendComplete(this, packet);
+                }
+            }
+            return;
+        }
+
+        if (mAwaitingAck.contains(id)) {
+            // done once the peer acknowledges it
+            return;
+        }
+        Packet packet = mInFlight.remove(id);
+        if (packet != null) {
+            mRouterService.onIntentSendComplete(this, packet);
+        }
+    }
+
+    /**
+     * remove all in flight packets, including those written but never acknowledged
+     *
+     * @return the packets, in the order they were sent
+     */
+    private List<Packet> takeInFlightPackets() {
+        List<Packet> packets = new ArrayList<Packet>(mInFlight.values());
+        mInFlight.clear();
+        clearBatches();
+        resetSequences();
+        return packets;
+    }
+
+    /**
+     * sequence numbers only live as long as one connection, unacknowledged packets
+     * are sent again with new ones
+     */
+    private void resetSequences() {
+        mAckWindows = new AckWindow[ConnectionCommand.MAX_STREAMS];
+        for (int i = 0; i < mAckWindows.length; i++) {
+            mAckWindows[i] = new AckWindow();
+        }
+        mAwaitingAck.clear();
+        for (int i = 0; i < mReceivedSequences.length; i++) {
+            mReceivedSequences[i] = 0;
+            mAckedSequences[i] = 0;
+        }
+        mUnackedReceived = 0;
+    }
+
+    private void clearBatches() {
+        for (int i = 0; i < mOpenBatches.length; i++) {
+            mOpenBatches[i] = null;
+        }
+        mSentBatches.clear();
+        mBatchedPackets = 0;
+        mHandler.removeMessages(MESSAGE_FLUSH_BATCH);
     }
 
     @Override
     public void onCommandReceived(ConnectionCommand command) {
-        Log.d(getTag(), "onCommandReceived(" + command.type + ")");
+        if (TunnelLog.isDebug()) {
+            TunnelLog.d(getTag(), "onCommandReceived(" + command.type + ")");
+        }
+        mMetrics.add(TunnelMetrics.FRAME_BYTES_IN, ConnectionCommand.HEADER_LENGTH + command.optionLen);
 
-        if (command.type == BLUETOOTH_COMMAND_BROADCAST_INTENT) {
-            broadcast(command.option);
-        } else if (command.type == BLUETOOTH_COMMAND_STARTSERVICE_INTENT) {
-            startService(command.option);
-        } else if (command.type == BLUETOOTH_COMMAND_STARTACTIVITY_INTENT) {
-            startActivity(command.option);
+        try {
+            if (command.type == BLUETOOTH_COMMAND_HELLO) {
+                onHelloReceived(command);
+            } else if (command.type == BLUETOOTH_COMMAND_ACK) {
+                onAckReceived(command);
+            } else if (command.type == BLUETOOTH_COMMAND_BATCH) {
+                FrameBatch.unpack(command.option, command.optionOffset, command.optionLen, mBatchReceiver);
+            } else {
+                dispatchIntentFrame(command.type, command.option, command.optionOffset, command.optionLen, true);
+            }
+        } catch (Exception e) {
+            Log.e(getTag(), "Invalid intent frame", e);
+            mMetrics.increment(TunnelMetrics.INTENTS_UNREADABLE);
+        } finally {
+            // the option buffer goes back to the connection's pool
+            command.release();
         }
 
         mStatus = "Ready (Received Data)";
         trackBluetoothActivity();
     }
 
+    private final FrameBatch.Receiver mBatchReceiver = new FrameBatch.Receiver() {
+        @Override
+        public void onFrame(byte type, byte[] frame, int offset, int length) {
+            // a bad entry doesn't take the rest of the batch with it
+            try {
+                dispatchIntentFrame(type, frame, offset, length, true);
+            } catch (Exception e) {
+                Log.e(getTag(), "Invalid intent frame in batch", e);
+                mMetrics.increment(TunnelMetrics.INTENTS_UNREADABLE);
+            }
+        }
+    };
+
+    /**
+     * @param deliver false for a packet that was already delivered. it is still decoded,
+     *                it may define strings later frames refer to.
+     */
+    private void dispatchIntentFrame(byte type, byte[] option, int offset, int length, boolean deliver)
+            throws IOException, URISyntaxException {
+        if (type == BLUETOOTH_COMMAND_SEQUENCED) {
+            CodecReader in = new CodecReader(option, offset, length);
+            int streamByte = in.readByte();
+            int stream = streamByte & ~SEQUENCED_PACKET_ID;
+            int sequence = in.readVarInt();
+            boolean hasPacketId = (streamByte & SEQUENCED_PACKET_ID) != 0;
+            int packetId = hasPacketId ? in.readVarInt() : 0;
+            byte innerType = (byte) in.readByte();
+            if (stream >= ConnectionCommand.MAX_STREAMS) {
+                throw new IOException("invalid sequenced stream: " + stream);
+            }
+
+            // a frame that can't be decoded won't decode any better when sent again, acknowledge it anyway
+            onSequenceReceived(stream, sequence);
+            if (hasPacketId && !mRouterService.acceptDelivery(mPeerEpoch, packetId)) {
+                if (TunnelLog.isDebug()) {
+                    TunnelLog.d(getTag(), "duplicate packet " + packetId + ", not dispatched");
+                }
+                mMetrics.increment(TunnelMetrics.INTENTS_DUPLICATE);
+                deliver = false;
+            }
+            dispatchIntentFrame(innerType, option, in.position(), in.remaining(), deliver);
+            return;
+        }
+
+        if (type != BLUETOOTH_COMMAND_BROADCAST_INTENT && type != BLUETOOTH_COMMAND_STARTSERVICE_INTENT
+                && type != BLUETOOTH_COMMAND_STARTACTIVITY_INTENT) {
+            return;
+        }
+        long started = System.nanoTime();
+        Intent intent = decodeIntentFrame(option, offset, length);
+        mMetrics.recordSince(TunnelMetrics.STAGE_DECODE, started);
+        mMetrics.increment(TunnelMetrics.INTENTS_RECEIVED);
+        if (!deliver) {
+            return;
+        }
+
+        started = System.nanoTime();
+        if (type == BLUETOOTH_COMMAND_BROADCAST_INTENT) {
+            broadcast(intent);
+        } else if (type == BLUETOOTH_COMMAND_STARTSERVICE_INTENT) {
+            startService(intent);
+        } else {
+            startActivity(intent);
+        }
+        mMetrics.recordSince(TunnelMetrics.STAGE_DISPATCH, started);
+        mMetrics.increment(TunnelMetrics.INTENTS_DISPATCHED);
+    }
+
+    private void sendHello() {
+        CodecWriter out = new CodecWriter(16);
+        out.writeByte(HELLO_VERSION);
+        out.writeVarInt(LOCAL_CAPABILITIES);
+        out.writeVarLong(mRouterService.getEpoch());
+        sendCommand(ConnectionCommand.wrap(BLUETOOTH_COMMAND_HELLO, out.getBuffer(), 0, out.size()), ++mMessageId);
+    }
+
+    /**
+     * hand a command to the connection, counting the frame it becomes if it's taken
+     */
+    private boolean sendCommand(ConnectionCommand command, int id) {
+        int frameLength = ConnectionCommand.HEADER_LENGTH + command.optionLen;
+        if (!mBTConnection.sendCommand(command, id)) {
+            return false;
+        }
+        mMetrics.add(TunnelMetrics.FRAME_BYTES_OUT, frameLength);
+        return true;
+    }
+
+    private void onHelloReceived(ConnectionCommand command) {
+        try {
+            CodecReader in = new CodecReader(command.option, command.optionOffset, command.optionLen);
+            int version = in.readByte();
+            // newer versions only append fields
+            mPeerCapabilities = in.readVarInt();
+            if (version >= 2) {
+                mPeerEpoch = in.readVarLong();
+            }
+            Log.d(getTag(), "hello v" + version + ", peer capabilities=" + mPeerCapabilities);
+
+            if (hasCapability(CAPABILITY_MULTIPLEX) && mBTConnection != null) {
+                mBTConnection.setMultiplexing(true, ConnectionCommand.DEFAULT_CHUNK_SIZE);
+            }
+            if (hasCapability(CAPABILITY_RTT) && mBTConnection != null) {
+                mBTConnection.setRttProbes(true);
+            }
+        } catch (IOException e) {
+            Log.e(getTag(), "Invalid hello", e);
+        }
+
+        // intents held back for the hello can go now
+        hasPeerHello = true;
+        mHandler.removeMessages(MESSAGE_HELLO_WAIT);
+        mRouterService.onSendReady(this);
+    }
+
+    /**
+     * string tables only live as long as one connection
+     */
+    private void resetStringTables() {
+        mStringEncoders = new StringTable.Encoder[ConnectionCommand.MAX_STREAMS];
+        mStringDecoders = new StringTable.Decoder[ConnectionCommand.MAX_STREAMS];
+        for (int i = 0; i < ConnectionCommand.MAX_STREAMS; i++) {
+            mStringEncoders[i] = new StringTable.Encoder();
+            mStringDecoders[i] = new StringTable.Decoder();
+        }
+    }
+
+    /**
+     * @return true if both sides of the connection support the capability
+     */
+    protected boolean hasCapability(int capability) {
+        return (LOCAL_CAPABILITIES & mPeerCapabilities & capability) != 0;
+    }
+
     protected boolean isBTServer() {
         return this instanceof ServerService;
     }
@@ -224,38 +580,25 @@ public abstract class BluetoothService implements ConnectionCallback, Handler.Ca
      * Handle all internal and external messages
      */
     public boolean handleMessage(Message msg) {
-        Log.d(getTag(), "act on what=" + msg.what);
+        if (TunnelLog.isDebug()) {
+            TunnelLog.d(getTag(), "act on what=" + msg.what);
+        }
         if (msg.what == RouterService.ROUTER_MESSAGE_BROADCAST_INTENT ) {
-            try {
-                mMessageId++;
-                Intent intent = (Intent) msg.obj;
-                String sendUri = encodeIntent(intent);
-                mBTConnection.sendData(BLUETOOTH_COMMAND_BROADCAST_INTENT, sendUri.getBytes(), mMessageId);
-            } catch (Exception e) {
-                Log.e(getTag(), "failed to process BLUETOOTH_COMMAND_BROADCAST_INTENT", e);
-            }
+            sendPacket(BLUETOOTH_COMMAND_BROADCAST_INTENT, msg.arg1, (Packet) msg.obj);
             return true;
         } else if (msg.what == RouterService.ROUTER_MESSAGE_STARTSERVICE_INTENT) {
-            try {
-                mMessageId++;
-                Intent intent = (Intent) msg.obj;
-                String sendUri = encodeIntent(intent);
-                mBTConnection.sendData(BLUETOOTH_COMMAND_STARTSERVICE_INTENT, sendUri.getBytes(), mMessageId);
-            } catch (Exception e) {
-                Log.e(getTag(), "failed to process BLUETOOTH_COMMAND_STARTSERVICE_INTENT", e);
-            }
+            sendPacket(BLUETOOTH_COMMAND_STARTSERVICE_INTENT, msg.arg1, (Packet) msg.obj);
             return true;
         } else if (msg.what == RouterService.ROUTER_MESSAGE_STARTACTIVITY_INTENT) {
-            try {
-                mMessageId++;
-                Intent intent = (Intent) msg.obj;
-                String sendUri = encodeIntent(intent);
-                mBTConnection.sendData(BLUETOOTH_COMMAND_STARTACTIVITY_INTENT, sendUri.getBytes(), mMessageId);
-            } catch (Exception e) {
-                Log.e(getTag(), "failed to process BLUETOOTH_COMMAND_STARTACTIVITY_INTENT", e);
-            }
+            sendPacket(BLUETOOTH_COMMAND_STARTACTIVITY_INTENT, msg.arg1, (Packet) msg.obj);
             return true;
         } else if (msg.what == MESSAGE_CHECK_TIMEOUT) { // inactivity checking
+            if (mBTConnection != null && isConnected() && isAckOverdue()) {
+                // the packets are sent again on the next connection
+                Log.d(getTag(), "MESSAGE_CHECK_TIMEOUT.  acknowledgement overdue");
+                onConnectionLost();
+                return true;
+            }
             if (mBTConnection != null && isConnected()) {
                 if (!mBTConnection.isSending() && !mBTConnection.hasPending()) {
                     long timeout = CONNECTION_TIMEOUT;
@@ -275,132 +618,424 @@ public abstract class BluetoothService implements ConnectionCallback, Handler.Ca
             return true;
         } else if (msg.what == MESSAGE_BT_FAIL) { // inactivity checking
             onConnectionFailed();
+        } else if (msg.what == MESSAGE_FLUSH_BATCH) {
+            if (mOpenBatches[msg.arg1] == msg.obj) {
+                flushBatch(msg.arg1, 0);
+            }
+            return true;
+        } else if (msg.what == MESSAGE_SEND_ACK) {
+            sendAck();
+            return true;
+        } else if (msg.what == MESSAGE_HELLO_WAIT) {
+            Log.d(getTag(), "no hello from peer, sending without its capabilities");
+            mRouterService.onSendReady(this);
+            return true;
         }
 
         return false;
     }
 
     public void sendIntent(Packet msg) {
-        sendingPacket = msg;
-        mHandler.obtainMessage(msg.getType(), msg.getIntent()).sendToTarget();
+        int id = ++mMessageId;
+        mInFlight.put(id, msg);
+        mHandler.obtainMessage(msg.getType(), id, 0, msg).sendToTarget();
     }
 
-    protected void broadcast(byte[] option) {
-        String uri = new String(option);
+    /**
+     * encode and write one in flight packet
+     *
+     * @param type   bluetooth command type
+     * @param id     message id the packet is tracked by
+     * @param packet packet to send
+     */
+    private void sendPacket(byte type, int id, Packet packet) {
+        if (mInFlight.get(id) != packet) {
+            // connection was reset since the packet was handed to us
+            return;
+        }
+
+        boolean accepted = false;
+        int stream = getStream(type, packet.getPriority());
         try {
-            Intent intent = decodeIntent(uri);
-            Log.d(getTag(), "Broadcasting Intent: " + intent);
-            mRouterService.sendBroadcast(intent);
+            long started = System.nanoTime();
+            ConnectionCommand command = encodeIntentCommand(type, packet.getIntent(), stream);
+            mMetrics.recordSince(TunnelMetrics.STAGE_ENCODE, started);
+            // frames bigger than half a batch gain little from sharing one
+            if (isBatching() && FrameBatch.entrySize(command.optionLen) <= mBatchSize / 2) {
+                addToBatch(stream, id, command);
+                return;
+            }
+
+            // frames of a stream go out in encode order, the string tables depend on it
+            if (!flushBatch(stream, id)) {
+                return;
+            }
+            command = sequence(command, stream, id);
+            command.stream = stream;
+            accepted = sendCommand(command, id);
         } catch (Exception e) {
-            Log.e(getTag(), "Invalid URI: " + uri, e);
+            Log.e(getTag(), "failed to process bluetooth command " + type, e);
+        }
+
+        if (!accepted) {
+            // the peer will never see the string assignments made encoding this frame
+            mStringEncoders[stream].reset();
+            rejectPacket(stream, id);
         }
     }
 
-    protected void startService(byte[] option) {
-        String uri = new String(option);
-        try {
-            Intent intent = decodeIntent(uri);
-            Log.d(getTag(), "startService Intent: " + intent);
-            mRouterService.startService(intent);
-        } catch (Exception e) {
-            Log.e(getTag(), "Invalid URI: " + uri, e);
+    /**
+     * the connection refused a packet, give it back to the router
+     */
+    private void rejectPacket(int stream, int id) {
+        if (mAwaitingAck.remove(id)) {
+            mAckWindows[stream].cancel(id);
         }
+        Packet packet = mInFlight.remove(id);
+        if (packet != null) {
+            mRouterService.onIntentSendRejected(this, packet);
+        }
+    }
+
+    private boolean isBatching() {
+        return mBatchSize > 0 && hasCapability(CAPABILITY_BATCH);
     }
 
-    protected void startActivity(byte[] option) {
-        String uri = new String(option);
+    /**
+     * add an encoded frame to the open batch of its stream, writing the batch once it is full
+     */
+    private void addToBatch(int stream, int id, ConnectionCommand command) {
+        FrameBatch batch = mOpenBatches[stream];
+        if (batch != null && batch.size() + FrameBatch.entrySize(command.optionLen) > mBatchSize) {
+            if (!flushBatch(stream, id)) {
+                return;
+            }
+            batch = null;
+        }
+        if (batch == null) {
+            batch = new FrameBatch(stream, BATCH_MAX_ENTRIES, mBatchSize);
+            mOpenBatches[stream] = batch;
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(MESSAGE_FLUSH_BATCH, stream, 0, batch), mBatchLinger);
+        } else {
+            mBatchedPackets++;
+        }
+
+        command = sequence(command, stream, id);
+        batch.add(id, command.type, command.option, command.optionOffset, command.optionLen);
+        if (batch.isFull() || batch.size() >= mBatchSize) {
+            flushBatch(stream, 0);
+        }
+    }
+
+    /**
+     * write the open batch of a stream. a batch of one goes out as a plain command.
+     *
+     * @param stream      stream of the batch
+     * @param followingId packet encoded after the batch, it is rejected along with the
+     *                    batch since it may refer to strings defined in it. 0 if none.
+     * @return false if the connection refused the batch
+     */
+    private boolean flushBatch(int stream, int followingId) {
+        FrameBatch batch = mOpenBatches[stream];
+        if (batch == null) {
+            return true;
+        }
+        mOpenBatches[stream] = null;
+        mHandler.removeMessages(MESSAGE_FLUSH_BATCH, batch);
+
+        ConnectionCommand command;
+        int id;
+        if (batch.getCount() == 1) {
+            command = ConnectionCommand.wrap(batch.getType(0), batch.getBuffer(), batch.getOffset(0),
+                    batch.getLength(0));
+            id = batch.getId(0);
+        } else {
+            command = ConnectionCommand.wrap(BLUETOOTH_COMMAND_BATCH, batch.getBuffer(), 0, batch.size());
+            id = ++mMessageId;
+            mSentBatches.put(id, batch);
+        }
+        command.stream = stream;
+
+        boolean accepted = false;
         try {
-            Intent intent = decodeIntent(uri);
-            Log.d(getTag(), "startService Intent: " + intent);
-            mRouterService.startActivity(intent);
+            accepted = sendCommand(command, id);
         } catch (Exception e) {
-            Log.e(getTag(), "Invalid URI: " + uri, e);
+            Log.e(getTag(), "failed to send batch", e);
+        }
+        if (accepted) {
+            return true;
         }
+
+        // give every packet back to the router, last first so the first one ends up in front
+        mSentBatches.remove(id);
+        mBatchedPackets -= batch.getCount() - 1;
+        mStringEncoders[stream].reset();
+        if (followingId != 0) {
+            rejectPacket(stream, followingId);
+        }
+        for (int i = batch.getCount() - 1; i >= 0; i--) {
+            rejectPacket(stream, batch.getId(i));
+        }
+        return false;
     }
 
-    protected String encodeIntent(Intent intent) {
-        Bundle extras = intent.getExtras();
-        if ( extras != null ) {
-            Set<String> keys = extras.keySet();
-            for (String key : keys) {
-                Object value = extras.get(key);
-                if (value instanceof byte[]) {
-                    String encoded = Base64.encodeToString((byte[]) value, 0);
-                    intent.putExtra(ENCODER_KEY_PREFIX + key, encoded);
-                    intent.removeExtra(key);
-                } else if (value instanceof List) {
-                    boolean stringList = (extras.getStringArrayList(key) != null);
-                    boolean intList = (extras.getIntegerArrayList(key) != null);
-                    try {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        ObjectOutputStream out = new ObjectOutputStream(baos);
-                        out.writeObject((List) value);
-                        out.close();
-                        baos.close();
-
-                        String encoded = Base64.encodeToString(baos.toByteArray(), 0);
-                        intent.removeExtra(key);
-
-                        if (stringList) {
-                            intent.putExtra(ENCODER_KEY_LIST_STRING + key, encoded);
-                        }
-                        if (intList) {
-                            intent.putExtra(ENCODER_KEY_LIST_INTEGER + key, encoded);
-                        }
-                    } catch (IOException e) {
-                        Log.e(getTag(), "Invalid URI", e);
-                    }
-                }
+    /**
+     * wrap an encoded frame with its stream and the next sequence number of the stream,
+     * if the peer acknowledges frames. the packet then stays in flight until it is acknowledged.
+     * if the peer also drops duplicates the router's packet id goes along.
+     *
+     * the prefix goes into the room encodeIntentCommand() left in front of the frame,
+     * only a frame without that room, a URI one, is copied.
+     */
+    private ConnectionCommand sequence(ConnectionCommand command, int stream, int id) {
+        if (!hasCapability(CAPABILITY_ACK)) {
+            return command;
+        }
+
+        int sequence = mAckWindows[stream].assign(id);
+        mAwaitingAck.add(id);
+
+        // the packet id stays the same when the packet is sent again, the sequence number doesn't
+        boolean dedup = hasCapability(CAPABILITY_DEDUP);
+        int packetId = dedup ? mInFlight.get(id).getId() : 0;
+        int prefix = 2 + CodecWriter.varIntSize(sequence) + (dedup ? CodecWriter.varIntSize(packetId) : 0);
+
+        byte[] option = command.option;
+        int start = command.optionOffset - prefix;
+        if (start < 0) {
+            option = new byte[prefix + command.optionLen];
+            start = 0;
+            System.arraycopy(command.option, command.optionOffset, option, prefix, command.optionLen);
+        }
+        int position = start;
+        option[position++] = (byte) (dedup ? stream | SEQUENCED_PACKET_ID : stream);
+        position = CodecWriter.putVarInt(option, position, sequence);
+        if (dedup) {
+            position = CodecWriter.putVarInt(option, position, packetId);
+        }
+        option[position] = command.type;
+        return ConnectionCommand.wrap(BLUETOOTH_COMMAND_SEQUENCED, option, start, prefix + command.optionLen);
+    }
+
+    /**
+     * a sequenced frame was delivered, acknowledge it soon
+     */
+    private void onSequenceReceived(int stream, int sequence) {
+        mReceivedSequences[stream] = sequence;
+        mUnackedReceived++;
+        if (mUnackedReceived >= ACK_EVERY) {
+            sendAck();
+        } else if (!mHandler.hasMessages(MESSAGE_SEND_ACK)) {
+            mHandler.sendEmptyMessageDelayed(MESSAGE_SEND_ACK, ACK_DELAY);
+        }
+    }
+
+    /**
+     * tell the peer the last sequence number delivered on each stream
+     */
+    private void sendAck() {
+        mHandler.removeMessages(MESSAGE_SEND_ACK);
+        if (mUnackedReceived == 0 || mBTConnection == null) {
+            return;
+        }
+
+        CodecWriter out = new CodecWriter(16);
+        for (int stream = 0; stream < mReceivedSequences.length; stream++) {
+            if (mReceivedSequences[stream] != mAckedSequences[stream]) {
+                out.writeByte(stream);
+                out.writeVarInt(mReceivedSequences[stream]);
+            }
+        }
+        ConnectionCommand command = ConnectionCommand.wrap(BLUETOOTH_COMMAND_ACK, out.getBuffer(), 0, out.size());
+        command.stream = STREAM_CONTROL;
+        if (sendCommand(command, ++mMessageId)) {
+            System.arraycopy(mReceivedSequences, 0, mAckedSequences, 0, mReceivedSequences.length);
+            mUnackedReceived = 0;
+        } else {
+            // try again later
+            mHandler.sendEmptyMessageDelayed(MESSAGE_SEND_ACK, ACK_DELAY);
+        }
+    }
+
+    private void onAckReceived(ConnectionCommand command) throws IOException {
+        CodecReader in = new CodecReader(command.option, command.optionOffset, command.optionLen);
+        List<Integer> acknowledged = new ArrayList<Integer>();
+        while (in.hasRemaining()) {
+            int stream = in.readByte();
+            int sequence = in.readVarInt();
+            if (stream >= ConnectionCommand.MAX_STREAMS) {
+                throw new IOException("invalid ack stream: " + stream);
             }
+            mAckWindows[stream].acknowledge(sequence, acknowledged);
         }
 
-        return intent.toUri(Intent.URI_INTENT_SCHEME);
+        for (Integer id : acknowledged) {
+            mAwaitingAck.remove(id);
+            Packet packet = mInFlight.remove(id);
+            if (packet != null) {
+                mRouterService.onIntentSendComplete(this, packet);
+            }
+        }
     }
 
-    protected Intent decodeIntent(String uri) throws URISyntaxException {
-        Intent intent = Intent.parseUri(uri, Intent.URI_INTENT_SCHEME);
-
-        Bundle extras = intent.getExtras();
-        if ( extras != null ) {
-            Set<String> keys = extras.keySet();
-            for (String key : keys) {
-                if (key.startsWith(ENCODER_KEY_PREFIX)) {
-                    String newKey = key.substring(ENCODER_KEY_PREFIX.length());
-                    intent.putExtra(newKey, Base64.decode(extras.getString(key), 0));
-                    intent.removeExtra(key);
-                } else if (key.startsWith(ENCODER_KEY_LIST_STRING) || key.startsWith(ENCODER_KEY_LIST_INTEGER)) {
-                    try {
-                        String newKey;
-                        if (key.startsWith(ENCODER_KEY_LIST_STRING)) {
-                            newKey = key.substring(ENCODER_KEY_LIST_STRING.length());
-                        } else if (key.startsWith(ENCODER_KEY_LIST_INTEGER)) {
-                            newKey = key.substring(ENCODER_KEY_LIST_INTEGER.length());
-                        } else {
-                            throw new IOException("Invalid URI");
-                        }
-
-                        ByteArrayInputStream bais = new ByteArrayInputStream(Base64.decode(extras.getString(key), 0));
-                        ObjectInputStream in = new ObjectInputStream(bais);
-                        ArrayList<?> list = (ArrayList<?>) in.readObject();
-                        intent.removeExtra(key);
-                        if (key.startsWith(ENCODER_KEY_LIST_STRING)) {
-                            intent.putExtra(newKey, (ArrayList<String>) list);
-                        } else if (key.startsWith(ENCODER_KEY_LIST_INTEGER)) {
-                            intent.putExtra(newKey, (ArrayList<Integer>) list);
-                        }
-                    } catch (IOException e) {
-                        Log.e(getTag(), "Invalid URI", e);
-                    } catch (ClassNotFoundException e) {
-                        Log.e(getTag(), "Invalid URI", e);
-                    }
-                } else if (key.startsWith(ENCODER_KEY_LIST_INTEGER)) {
-                    String newKey = key.substring(ENCODER_KEY_LIST_INTEGER.length());
-                    byte[] list = Base64.decode(extras.getString(key), 0);
-                    intent.removeExtra(key);
+    /**
+     * @return true if a frame has waited longer than the ack timeout for its acknowledgement
+     */
+    private boolean isAckOverdue() {
+        long now = System.currentTimeMillis();
+        long timeout = getAckTimeout();
+        for (AckWindow window : mAckWindows) {
+            if (!window.isEmpty() && window.getOldestTime() + timeout < now) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * add this connection's gauges to a metrics snapshot
+     *
+     * @param prefix prepended to every key, e.g. "client."
+     */
+    public void writeMetricsTo(Bundle snapshot, String prefix) {
+        snapshot.putString(prefix + "status", mStatus);
+        snapshot.putBoolean(prefix + "connected", isConnected);
+        snapshot.putLong(prefix + "inFlight", mInFlight.size());
+        snapshot.putLong(prefix + "sendWindow", mSendWindow);
+        snapshot.putLong(prefix + "peerCapabilities", mPeerCapabilities);
+
+        Connection connection = mBTConnection;
+        if (connection == null) {
+            return;
+        }
+        snapshot.putLong(prefix + "credits", connection.getSendCredits());
+        snapshot.putLong(prefix + "creditStalls", connection.getCreditStallCount());
+        snapshot.putLong(prefix + "creditStallMillis", connection.getCreditStallTime());
+
+        BufferPool pool = connection.getBufferPool();
+        snapshot.putLong(prefix + "bufferPool.hits", pool.getHits());
+        snapshot.putLong(prefix + "bufferPool.misses", pool.getMisses());
+        snapshot.putLong(prefix + "bufferPool.discards", pool.getDiscards());
+        snapshot.putLong(prefix + "bufferPool.pooledBytes", pool.getPooledBytes());
+
+        RttEstimator rtt = connection.getRttEstimator();
+        snapshot.putLong(prefix + "rtt.smoothed", TimeUnit.NANOSECONDS.toMicros(rtt.getSmoothed()));
+        snapshot.putLong(prefix + "rtt.variance", TimeUnit.NANOSECONDS.toMicros(rtt.getVariance()));
+        TunnelMetrics.putHistogram(snapshot, prefix + "rtt", rtt.getHistogram());
+    }
+
+    /**
+     * @return how long a frame may wait for its acknowledgement, from the measured round trip if there is one
+     */
+    private long getAckTimeout() {
+        RttEstimator rtt = mBTConnection != null ? mBTConnection.getRttEstimator() : null;
+        if (rtt == null || !rtt.hasSample()) {
+            return ACK_TIMEOUT;
+        }
+        long timeout = TimeUnit.NANOSECONDS.toMillis(rtt.getTimeout(0)) * ACK_TIMEOUT_RTTS + ACK_DELAY;
+        return Math.min(ACK_TIMEOUT, Math.max(ACK_MIN_TIMEOUT, timeout));
+    }
+
+    protected void broadcast(Intent intent) {
+        if (TunnelLog.isDebug()) {
+            TunnelLog.d(getTag(), "Broadcasting Intent: " + intent);
+        }
+        mRouterService.sendBroadcast(intent);
+    }
+
+    protected void startService(Intent intent) {
+        if (TunnelLog.isDebug()) {
+            TunnelLog.d(getTag(), "startService Intent: " + intent);
+        }
+        mRouterService.startService(intent);
+    }
+
+    protected void startActivity(Intent intent) {
+        if (TunnelLog.isDebug()) {
+            TunnelLog.d(getTag(), "startActivity Intent: " + intent);
+        }
+        mRouterService.startActivity(intent);
+    }
+
+    /**
+     * activities can carry large extras, they go on the bulk stream so
+     * broadcasts and services aren't held up behind them. an explicit
+     * priority picks the stream regardless of type.
+     */
+    protected int getStream(byte type, int priority) {
+        if (priority != Packet.DEFAULT_PRIORITY) {
+            return priority > 0 ? STREAM_CONTROL : STREAM_BULK;
+        }
+        return type == BLUETOOTH_COMMAND_STARTACTIVITY_INTENT ? STREAM_BULK : STREAM_CONTROL;
+    }
+
+    /**
+     * encode an intent with the binary codec if the peer understands it,
+     * otherwise with the legacy URI form. the encoded buffer is handed to
+     * the command without another copy, with room in front for sequence()
+     * if the peer acknowledges frames.
+     */
+    protected ConnectionCommand encodeIntentCommand(byte type, Intent intent, int stream) {
+        int room = hasCapability(CAPABILITY_ACK) ? SEQUENCE_ROOM : 0;
+        byte[] frame = null;
+        int offset = 0;
+        int length = 0;
+        if (hasCapability(CAPABILITY_BINARY_INTENT)) {
+            try {
+                CodecWriter out = new CodecWriter();
+                out.skip(room);
+                if (hasCapability(CAPABILITY_INTERN)) {
+                    IntentCodec.encode(intent, out, mStringEncoders[stream], stream);
+                } else {
+                    IntentCodec.encode(intent, out);
                 }
+                frame = out.getBuffer();
+                offset = room;
+                length = out.size() - room;
+            } catch (IllegalArgumentException e) {
+                TunnelLog.w(getTag(), "falling back to URI encoding: " + e.getMessage());
             }
         }
-        return intent;
+        if (frame == null) {
+            frame = encodeIntent(intent).getBytes();
+            length = frame.length;
+        }
+
+        // small frames and frames that don't shrink are sent as they are
+        if (hasCapability(CAPABILITY_DEFLATE)) {
+            CodecWriter compressed = mCompressor.compress(frame, offset, length, room);
+            if (compressed != null) {
+                frame = compressed.getBuffer();
+                offset = room;
+                length = compressed.size() - room;
+            }
+        }
+        return ConnectionCommand.wrap(type, frame, offset, length);
+    }
+
+    /**
+     * decode either a binary or a URI intent frame. only length bytes from
+     * offset are valid, the rest of a pooled option or batch is not ours.
+     */
+    protected Intent decodeIntentFrame(byte[] option, int offset, int length)
+            throws IOException, URISyntaxException {
+        if (IntentCodec.isCompressed(option, offset, length)) {
+            option = mCompressor.decompress(option, offset, length);
+            offset = 0;
+            length = option.length;
+        }
+        if (IntentCodec.isBinary(option, offset, length)) {
+            return IntentCodec.decode(option, offset, length, mStringDecoders);
+        }
+        return decodeIntent(new String(option, offset, length));
+    }
+
+    protected String encodeIntent(Intent intent) {
+        return UriIntentCodec.encode(intent);
+    }
+
+    protected Intent decodeIntent(String uri) throws URISyntaxException {
+        return UriIntentCodec.decode(uri);
     }
 
     protected UUID getUUIDFromAddress(String address) {
@@ -0,0 +1,115 @@
+package com.masterbaron.intenttunnel.router;
+
+import java.io.IOException;
+
+/**
+ * Reads the primitives written by {@link CodecWriter} from a byte range.
+ */
+public class CodecReader {
+    private final byte[] mBuffer;
+    private final int mLimit;
+    private int mPosition;
+
+    public CodecReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public CodecReader(byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mPosition = offset;
+        mLimit = offset + length;
+    }
+
+    public boolean hasRemaining() {
+        return mPosition < mLimit;
+    }
+
+    public int position() {
+        return mPosition;
+    }
+
+    public int remaining() {
+        return mLimit - mPosition;
+    }
+
+    public void skip(int length) throws IOException {
+        require(length);
+        mPosition += length;
+    }
+
+    private void require(int length) throws IOException {
+        if (length < 0 || mPosition + length > mLimit) {
+            throw new IOException("truncated frame");
+        }
+    }
+
+    public int readByte() throws IOException {
+        require(1);
+        return mBuffer[mPosition++] & 0xFF;
+    }
+
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varlong");
+    }
+
+    public int readSignedVarInt() throws IOException {
+        int raw = readVarInt();
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    public long readSignedVarLong() throws IOException {
+        long raw = readVarLong();
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        int value = ((mBuffer[mPosition] & 0xFF) << 24) | ((mBuffer[mPosition + 1] & 0xFF) << 16)
+                | ((mBuffer[mPosition + 2] & 0xFF) << 8) | (mBuffer[mPosition + 3] & 0xFF);
+        mPosition += 4;
+        return value;
+    }
+
+    public long readLong() throws IOException {
+        long high = readInt() & 0xFFFFFFFFL;
+        long low = readInt() & 0xFFFFFFFFL;
+        return (high << 32) | low;
+    }
+
+    public byte[] readBytes() throws IOException {
+        int length = readVarInt();
+        require(length);
+        byte[] value = new byte[length];
+        System.arraycopy(mBuffer, mPosition, value, 0, length);
+        mPosition += length;
+        return value;
+    }
+
+    public String readString() throws IOException {
+        int length = readVarInt();
+        require(length);
+        String value = new String(mBuffer, mPosition, length, "UTF-8");
+        mPosition += length;
+        return value;
+    }
+}
@@ -0,0 +1,150 @@
+package com.masterbaron.intenttunnel.router;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer with the primitives used by the binary intent codec.
+ * Integers are written as unsigned varints, strings as a varint length followed by UTF-8.
+ */
+public class CodecWriter {
+    private byte[] mBuffer;
+    private int mSize;
+
+    public CodecWriter() {
+        this(256);
+    }
+
+    public CodecWriter(int initialCapacity) {
+        mBuffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public void reset() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the backing buffer, valid up to size(). it is replaced as the writer grows.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mSize);
+    }
+
+    private void ensure(int extra) {
+        if (mSize + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + extra));
+        }
+    }
+
+    public void writeByte(int value) {
+        ensure(1);
+        mBuffer[mSize++] = (byte) value;
+    }
+
+    public void writeVarInt(int value) {
+        ensure(5);
+        while ((value & ~0x7F) != 0) {
+            mBuffer[mSize++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mSize++] = (byte) value;
+    }
+
+    /**
+     * leave count bytes in front of what is written next, for a prefix filled in later
+     */
+    public void skip(int count) {
+        ensure(count);
+        mSize += count;
+    }
+
+    /**
+     * @return bytes writeVarInt() takes for the value
+     */
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * write a varint into a buffer the caller sized, varIntSize() tells how much it needs
+     *
+     * @return position after the varint
+     */
+    public static int putVarInt(byte[] buffer, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    public void writeVarLong(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            mBuffer[mSize++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mSize++] = (byte) value;
+    }
+
+    /**
+     * zig-zag encode so small negative numbers stay small
+     */
+    public void writeSignedVarInt(int value) {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    public void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeInt(int value) {
+        ensure(4);
+        mBuffer[mSize++] = (byte) (value >>> 24);
+        mBuffer[mSize++] = (byte) (value >>> 16);
+        mBuffer[mSize++] = (byte) (value >>> 8);
+        mBuffer[mSize++] = (byte) value;
+    }
+
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    public void writeBytes(byte[] value) {
+        writeBytes(value, 0, value.length);
+    }
+
+    public void writeBytes(byte[] value, int offset, int length) {
+        writeVarInt(length);
+        writeRaw(value, offset, length);
+    }
+
+    public void writeRaw(byte[] value, int offset, int length) {
+        ensure(length);
+        System.arraycopy(value, offset, mBuffer, mSize, length);
+        mSize += length;
+    }
+
+    public void writeString(String value) {
+        try {
+            writeBytes(value.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
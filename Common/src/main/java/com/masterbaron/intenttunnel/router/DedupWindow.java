@@ -0,0 +1,141 @@
+package com.masterbaron.intenttunnel.router;
+
+/**
+ * Remembers which of a peer's packet ids were delivered, so a packet sent again
+ * after a reconnect is never dispatched twice.
+ *
+ * Every id below a low water mark was delivered, the mark moves up while the ids
+ * it passes over are delivered one after the other. Above it a bitmap records each
+ * id delivered. Packets don't arrive in id order, priority classes and resends
+ * reorder them, so the bitmap grows to reach from the mark to the highest id, up
+ * to a limit. Past the limit it slides forward and the ids it leaves behind are
+ * no longer known: they are accepted, a packet dropped for good is worse than a
+ * rare repeat.
+ */
+public class DedupWindow {
+    public static final int DEFAULT_SIZE = 1024;
+    // 16 KB of bitmap per peer at most
+    public static final int MAX_SIZE = 1 << 17;
+
+    // packet ids start at 1
+    private static final int FIRST_ID = 1;
+
+    private final int mMaxBits;
+    private long[] mBits;
+    private int mMask;
+
+    // every id below it was delivered
+    private int mLow = FIRST_ID;
+    // first id of the bitmap, the mark unless the bitmap had to slide past it
+    private int mBase = FIRST_ID;
+
+    public DedupWindow() {
+        this(DEFAULT_SIZE, MAX_SIZE);
+    }
+
+    /**
+     * @param size    ids covered at first, rounded up to a power of two of at least 64
+     * @param maxSize ids the bitmap may grow to cover, rounded the same way
+     */
+    public DedupWindow(int size, int maxSize) {
+        int bits = roundBits(size);
+        mMaxBits = Math.max(bits, roundBits(maxSize));
+        mBits = new long[bits / 64];
+        mMask = bits - 1;
+    }
+
+    private static int roundBits(int size) {
+        return Math.max(64, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+    }
+
+    /**
+     * @param id packet id
+     * @return true the first time the id is seen, false for a duplicate
+     */
+    public boolean accept(int id) {
+        if (id - mLow < 0) {
+            return false;
+        }
+        if (id - mBase < 0) {
+            // the bitmap slid past it, not known to be delivered
+            return true;
+        }
+        if (id - mBase > mMask) {
+            cover(id);
+        }
+        if (isSet(id)) {
+            return false;
+        }
+        set(id);
+
+        if (mBase == mLow) {
+            // move the mark over the delivered ids it reaches, their bits are free again
+            while (isSet(mLow)) {
+                clear(mLow);
+                mLow++;
+            }
+            mBase = mLow;
+        }
+        return true;
+    }
+
+    /**
+     * @return ids the bitmap covers right now
+     */
+    public int getSize() {
+        return mMask + 1;
+    }
+
+    /**
+     * make the bitmap reach id, growing it or once it can't grow any more sliding it forward
+     */
+    private void cover(int id) {
+        while (id - mBase > mMask && mMask + 1 < mMaxBits) {
+            grow();
+        }
+        if (id - mBase <= mMask) {
+            return;
+        }
+
+        int base = id - mMask;
+        if (base - mBase > mMask) {
+            for (int i = 0; i < mBits.length; i++) {
+                mBits[i] = 0;
+            }
+        } else {
+            for (int left = mBase; left != base; left++) {
+                clear(left);
+            }
+        }
+        mBase = base;
+    }
+
+    private void grow() {
+        long[] bits = mBits;
+        int mask = mMask;
+        mBits = new long[bits.length * 2];
+        mMask = mask * 2 + 1;
+        for (int i = 0; i <= mask; i++) {
+            int id = mBase + i;
+            int bit = id & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) != 0) {
+                set(id);
+            }
+        }
+    }
+
+    private boolean isSet(int id) {
+        int bit = id & mMask;
+        return (mBits[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private void set(int id) {
+        int bit = id & mMask;
+        mBits[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clear(int id) {
+        int bit = id & mMask;
+        mBits[bit >>> 6] &= ~(1L << bit);
+    }
+}
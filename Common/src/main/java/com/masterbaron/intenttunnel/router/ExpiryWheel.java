@@ -0,0 +1,154 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.os.SystemClock;
+
+import java.util.List;
+
+/**
+ * Hashed timer wheel for the deadlines of queued packets.
+ *
+ * A packet hangs in the slot of the tick its deadline falls in, rounded up, so
+ * adding and removing one is constant time and advancing only looks at the slots
+ * of the ticks that passed. A deadline further away than one turn of the wheel
+ * stays in its slot until the turn it belongs to comes around.
+ *
+ * The earliest tick is kept on the side, lowered by every add. Removing a packet
+ * leaves it as it is, a bound that is too early only wakes the caller once for
+ * nothing; the slots are searched again only after the wheel moved past it.
+ *
+ * Times are SystemClock.elapsedRealtime() milliseconds.
+ */
+public class ExpiryWheel {
+    public static final long TICK = 100;
+    public static final int DEFAULT_SLOTS = 512;
+
+    private final Packet[] mSlots;
+    private final int mMask;
+    private long mTick;
+    private int mCount = 0;
+    // no deadline is earlier, 0 if it has to be searched for
+    private long mNextTick = 0;
+
+    public ExpiryWheel() {
+        this(DEFAULT_SLOTS, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @param slots slots of the wheel, rounded up to a power of two
+     * @param now   current time
+     */
+    public ExpiryWheel(int slots, long now) {
+        int size = Integer.highestOneBit(Math.max(2, slots) - 1) << 1;
+        mSlots = new Packet[size];
+        mMask = size - 1;
+        mTick = now / TICK;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * start tracking a packet's deadline. a deadline that already passed
+     * expires on the next tick.
+     */
+    public void add(Packet packet) {
+        long tick = (packet.getDeadline() + TICK - 1) / TICK;
+        if (tick <= mTick) {
+            tick = mTick + 1;
+        }
+        int slot = (int) (tick & mMask);
+
+        if (mCount == 0 || (mNextTick != 0 && tick < mNextTick)) {
+            mNextTick = tick;
+        }
+
+        packet.wheelTick = tick;
+        packet.wheelPrev = null;
+        packet.wheelNext = mSlots[slot];
+        if (mSlots[slot] != null) {
+            mSlots[slot].wheelPrev = packet;
+        }
+        mSlots[slot] = packet;
+        mCount++;
+    }
+
+    /**
+     * stop tracking a packet, does nothing if it isn't tracked
+     */
+    public void remove(Packet packet) {
+        if (packet.wheelTick == 0) {
+            return;
+        }
+        if (packet.wheelPrev != null) {
+            packet.wheelPrev.wheelNext = packet.wheelNext;
+        } else {
+            mSlots[(int) (packet.wheelTick & mMask)] = packet.wheelNext;
+        }
+        if (packet.wheelNext != null) {
+            packet.wheelNext.wheelPrev = packet.wheelPrev;
+        }
+        packet.wheelPrev = null;
+        packet.wheelNext = null;
+        packet.wheelTick = 0;
+        mCount--;
+    }
+
+    /**
+     * move the wheel up to now and take out every packet whose deadline passed
+     *
+     * @param expired receives the expired packets, they are no longer tracked
+     */
+    public void advance(long now, List<Packet> expired) {
+        long target = now / TICK;
+        if (target <= mTick) {
+            return;
+        }
+        if (mCount > 0) {
+            // after a long gap every slot is due once
+            long from = Math.max(mTick + 1, target - mMask);
+            for (long tick = from; tick <= target; tick++) {
+                Packet packet = mSlots[(int) (tick & mMask)];
+                while (packet != null) {
+                    Packet next = packet.wheelNext;
+                    if (packet.wheelTick <= target) {
+                        remove(packet);
+                        expired.add(packet);
+                    }
+                    packet = next;
+                }
+            }
+        }
+        mTick = target;
+        if (mNextTick <= target) {
+            mNextTick = 0;
+        }
+    }
+
+    /**
+     * @return when advance() may next find an expired packet, -1 if nothing is tracked
+     */
+    public long getNextExpiry() {
+        if (mCount == 0) {
+            return -1;
+        }
+        if (mNextTick == 0) {
+            mNextTick = findNextTick();
+        }
+        return mNextTick * TICK;
+    }
+
+    /**
+     * @return the earliest tick of a tracked packet, the slots are searched until
+     * one of a later tick couldn't hold an earlier deadline
+     */
+    private long findNextTick() {
+        long next = Long.MAX_VALUE;
+        for (long tick = mTick + 1; tick <= mTick + mSlots.length && tick < next; tick++) {
+            for (Packet packet = mSlots[(int) (tick & mMask)]; packet != null; packet = packet.wheelNext) {
+                next = Math.min(next, packet.wheelTick);
+            }
+        }
+        return next;
+    }
+}
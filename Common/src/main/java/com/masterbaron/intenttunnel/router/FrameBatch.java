@@ -0,0 +1,132 @@
+package com.masterbaron.intenttunnel.router;
+
+import java.io.IOException;
+
+/**
+ * Container for several small intent frames of one stream, written to the link as a
+ * single command.
+ *
+ * Each entry is the command type, the varint length of the frame and the frame itself,
+ * back-to-back until the end of the container. Entries are dispatched in the order
+ * they were added.
+ */
+public class FrameBatch {
+    private final int mStream;
+    private final CodecWriter mOut;
+    private final int[] mIds;
+    private final byte[] mTypes;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+    private int mCount = 0;
+
+    /**
+     * @param stream     stream all entries belong to
+     * @param maxEntries entries the batch can hold
+     * @param maxSize    expected size of the container, it may grow past this
+     */
+    public FrameBatch(int stream, int maxEntries, int maxSize) {
+        mStream = stream;
+        mOut = new CodecWriter(maxSize);
+        mIds = new int[maxEntries];
+        mTypes = new byte[maxEntries];
+        mOffsets = new int[maxEntries];
+        mLengths = new int[maxEntries];
+    }
+
+    public int getStream() {
+        return mStream;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public boolean isFull() {
+        return mCount == mIds.length;
+    }
+
+    /**
+     * @return bytes the container takes on the wire
+     */
+    public int size() {
+        return mOut.size();
+    }
+
+    /**
+     * @return bytes an entry of this length adds to the container
+     */
+    public static int entrySize(int length) {
+        int varint = 1;
+        for (int rest = length >>> 7; rest != 0; rest >>>= 7) {
+            varint++;
+        }
+        return 1 + varint + length;
+    }
+
+    /**
+     * @param id     message id of the packet the frame was encoded from
+     * @param type   command type the frame would have been sent as
+     * @param frame  encoded frame
+     * @param offset start of the frame
+     * @param length length of the frame
+     */
+    public void add(int id, byte type, byte[] frame, int offset, int length) {
+        mOut.writeByte(type);
+        mOut.writeVarInt(length);
+        mIds[mCount] = id;
+        mTypes[mCount] = type;
+        mOffsets[mCount] = mOut.size();
+        mLengths[mCount] = length;
+        mOut.writeRaw(frame, offset, length);
+        mCount++;
+    }
+
+    public int getId(int index) {
+        return mIds[index];
+    }
+
+    public byte getType(int index) {
+        return mTypes[index];
+    }
+
+    /**
+     * @return the container, valid up to size()
+     */
+    public byte[] getBuffer() {
+        return mOut.getBuffer();
+    }
+
+    /**
+     * @return offset of an entry's frame in getBuffer()
+     */
+    public int getOffset(int index) {
+        return mOffsets[index];
+    }
+
+    public int getLength(int index) {
+        return mLengths[index];
+    }
+
+    /**
+     * receiving side of a container
+     */
+    public interface Receiver {
+        void onFrame(byte type, byte[] frame, int offset, int length);
+    }
+
+    /**
+     * hand each entry of a received container to the receiver, in order
+     *
+     * @throws IOException if the container is malformed. entries before the bad one have been handled.
+     */
+    public static void unpack(byte[] data, int offset, int length, Receiver receiver) throws IOException {
+        CodecReader in = new CodecReader(data, offset, length);
+        while (in.hasRemaining()) {
+            byte type = (byte) in.readByte();
+            int frameLength = in.readVarInt();
+            int frameOffset = in.position();
+            in.skip(frameLength);
+            receiver.onFrame(type, data, frameOffset, frameLength);
+        }
+    }
+}
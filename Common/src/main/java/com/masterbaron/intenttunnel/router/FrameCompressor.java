@@ -0,0 +1,130 @@
+package com.masterbaron.intenttunnel.router;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate for intent frames, primed with a dictionary of tokens common in intents.
+ *
+ * A compressed frame is FORMAT_DEFLATE, the varint length of the inner frame and the
+ * deflated inner frame, which is itself a URI or binary intent frame. Every frame is
+ * compressed on its own, so frames can be decoded in any order.
+ * Both peers must use the same dictionary; change CAPABILITY_DEFLATE if it ever changes.
+ */
+public class FrameCompressor {
+
+    // frames smaller than this aren't worth the CPU
+    public static final int MIN_COMPRESS_SIZE = 64;
+
+    // largest inner frame accepted when inflating
+    private static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+
+    // most frequent tokens last, deflate reaches those with the shortest distances
+    private static final String DICTIONARY_TEXT =
+            "android.intent.category.DEFAULT;android.intent.category.LAUNCHER;"
+            + "android.intent.action.VIEW;android.intent.action.MAIN;android.intent.action.SEND;"
+            + "com.google.android.glass.;com.masterbaron.intenttunnel;IntentTunnel.StringList;"
+            + "IntentTunnel.IntegerList;IntentTunnel[byte];type=text/plain;scheme=http;"
+            + "launchFlags=0x10000000;package=com.;component=com.;category=;i.;l.;f.;d.;B.true;"
+            + "B.false;S.android.intent.extra.TEXT=;S.command=;togglepause;pause;play;next;previous;"
+            + "com.android.music.musicservicecommand;action=android.intent.action.;"
+            + "intent:#Intent;end";
+
+    private static final byte[] DICTIONARY = bytes(DICTIONARY_TEXT);
+
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater mInflater = new Inflater();
+
+    /**
+     * @return the compressed frame, or null if compression doesn't make it smaller
+     */
+    public CodecWriter compress(byte[] data, int offset, int length) {
+        return compress(data, offset, length, 0);
+    }
+
+    /**
+     * @param headroom bytes left free in front of the compressed frame, for a prefix
+     * @return the compressed frame after the headroom, or null if compression doesn't
+     * make it smaller
+     */
+    public CodecWriter compress(byte[] data, int offset, int length, int headroom) {
+        if (length < MIN_COMPRESS_SIZE) {
+            return null;
+        }
+
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(data, offset, length);
+        mDeflater.finish();
+
+        CodecWriter out = new CodecWriter(headroom + length + 8);
+        out.skip(headroom);
+        out.writeByte(IntentCodec.FORMAT_DEFLATE);
+        out.writeVarInt(length);
+
+        // give up as soon as it isn't smaller than the plain frame
+        byte[] buffer = new byte[Math.min(length, 4096)];
+        while (!mDeflater.finished()) {
+            int count = mDeflater.deflate(buffer);
+            out.writeRaw(buffer, 0, count);
+            if (out.size() - headroom >= length) {
+                return null;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return the inner frame of a compressed frame
+     */
+    public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        CodecReader in = new CodecReader(data, offset, length);
+        if (in.readByte() != IntentCodec.FORMAT_DEFLATE) {
+            throw new IOException("not a compressed frame");
+        }
+        int inflatedLength = in.readVarInt();
+        if (inflatedLength < 0 || inflatedLength > MAX_INFLATED_SIZE) {
+            throw new IOException("invalid inflated length: " + inflatedLength);
+        }
+
+        byte[] inflated = new byte[inflatedLength];
+        mInflater.reset();
+        mInflater.setInput(data, in.position(), in.remaining());
+        try {
+            int filled = 0;
+            while (filled < inflatedLength) {
+                int count = mInflater.inflate(inflated, filled, inflatedLength - filled);
+                if (count == 0) {
+                    if (mInflater.needsDictionary()) {
+                        mInflater.setDictionary(DICTIONARY);
+                    } else if (mInflater.finished() || mInflater.needsInput()) {
+                        throw new IOException("truncated compressed frame");
+                    }
+                }
+                filled += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed frame", e);
+        }
+        return inflated;
+    }
+
+    /**
+     * free the native zlib state, the compressor can't be used afterwards
+     */
+    public void release() {
+        mDeflater.end();
+        mInflater.end();
+    }
+
+    private static byte[] bytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compact, versioned binary form of an Intent.
+ *
+ * A frame starts with a format byte below 0x20, which can never begin an intent URI,
+ * so receivers can tell binary frames apart from the legacy Intent.toUri() text.
+ * Extras of a type the codec doesn't know are rejected with an IllegalArgumentException,
+ * letting the caller fall back to the URI form.
+ */
+public class IntentCodec {
+    public static final int FORMAT_BINARY_V1 = 0x01;
+    // wraps another frame, see FrameCompressor
+    public static final int FORMAT_DEFLATE = 0x02;
+    // like v1, with strings going through a StringTable: format, table id, table flags, fields
+    public static final int FORMAT_BINARY_V2 = 0x03;
+
+    // v2 table flags
+    private static final int TABLE_RESET = 1;
+
+    // highest first byte that marks a binary frame
+    private static final int MAX_FORMAT_BYTE = 0x1F;
+
+    // intent fields present in the frame
+    private static final int FIELD_ACTION = 1;
+    private static final int FIELD_DATA = 1 << 1;
+    private static final int FIELD_TYPE = 1 << 2;
+    private static final int FIELD_CATEGORIES = 1 << 3;
+    private static final int FIELD_FLAGS = 1 << 4;
+    private static final int FIELD_COMPONENT = 1 << 5;
+    private static final int FIELD_PACKAGE = 1 << 6;
+    private static final int FIELD_EXTRAS = 1 << 7;
+
+    // extra value tags
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_BOOLEAN = 2;
+    private static final int TAG_BYTE = 3;
+    private static final int TAG_SHORT = 4;
+    private static final int TAG_CHAR = 5;
+    private static final int TAG_INT = 6;
+    private static final int TAG_LONG = 7;
+    private static final int TAG_FLOAT = 8;
+    private static final int TAG_DOUBLE = 9;
+    private static final int TAG_BYTE_ARRAY = 10;
+    private static final int TAG_STRING_ARRAY = 11;
+    private static final int TAG_INT_ARRAY = 12;
+    private static final int TAG_LONG_ARRAY = 13;
+    private static final int TAG_BOOLEAN_ARRAY = 14;
+    private static final int TAG_STRING_LIST = 15;
+    private static final int TAG_INTEGER_LIST = 16;
+    private static final int TAG_BUNDLE = 17;
+
+    /**
+     * @return true if the payload is a binary or compressed frame rather than an intent URI
+     */
+    public static boolean isBinary(byte[] data, int offset, int length) {
+        return length > 0 && (data[offset] & 0xFF) <= MAX_FORMAT_BYTE;
+    }
+
+    public static byte[] encode(Intent intent) {
+        CodecWriter out = new CodecWriter();
+        encode(intent, out);
+        return out.toByteArray();
+    }
+
+    public static void encode(Intent intent, CodecWriter out) {
+        encode(intent, out, null, 0);
+    }
+
+    /**
+     * encode with repeated strings interned in a table shared with the peer
+     *
+     * @param table   sender side of the table, null to write v1 without one
+     * @param tableId which of the peer's tables mirrors this one
+     */
+    public static void encode(Intent intent, CodecWriter out, StringTable.Encoder table, int tableId) {
+        String action = intent.getAction();
+        String data = intent.getDataString();
+        String type = intent.getType();
+        Set<String> categories = intent.getCategories();
+        int flags = intent.getFlags();
+        ComponentName component = intent.getComponent();
+        String pkg = intent.getPackage();
+        Bundle extras = intent.getExtras();
+
+        int fields = 0;
+        if (action != null) {
+            fields |= FIELD_ACTION;
+        }
+        if (data != null) {
+            fields |= FIELD_DATA;
+        }
+        if (type != null) {
+            fields |= FIELD_TYPE;
+        }
+        if (categories != null && !categories.isEmpty()) {
+            fields |= FIELD_CATEGORIES;
+        }
+        if (flags != 0) {
+            fields |= FIELD_FLAGS;
+        }
+        if (component != null) {
+            fields |= FIELD_COMPONENT;
+        }
+        if (pkg != null) {
+            fields |= FIELD_PACKAGE;
+        }
+        if (extras != null && !extras.isEmpty()) {
+            fields |= FIELD_EXTRAS;
+        }
+
+        if (table != null) {
+            out.writeByte(FORMAT_BINARY_V2);
+            out.writeVarInt(tableId);
+            out.writeByte(table.takeResetPending() ? TABLE_RESET : 0);
+        } else {
+            out.writeByte(FORMAT_BINARY_V1);
+        }
+        out.writeVarInt(fields);
+
+        if (action != null) {
+            writeToken(action, out, table);
+        }
+        if (data != null) {
+            writeToken(data, out, table);
+        }
+        if (type != null) {
+            writeToken(type, out, table);
+        }
+        if ((fields & FIELD_CATEGORIES) != 0) {
+            out.writeVarInt(categories.size());
+            for (String category : categories) {
+                writeToken(category, out, table);
+            }
+        }
+        if (flags != 0) {
+            out.writeInt(flags);
+        }
+        if (component != null) {
+            writeToken(component.getPackageName(), out, table);
+            writeToken(component.getClassName(), out, table);
+        }
+        if (pkg != null) {
+            writeToken(pkg, out, table);
+        }
+        if ((fields & FIELD_EXTRAS) != 0) {
+            writeBundle(extras, out, table);
+        }
+    }
+
+    /**
+     * @return true if the payload is a compressed frame
+     */
+    public static boolean isCompressed(byte[] data, int offset, int length) {
+        return length > 0 && data[offset] == FORMAT_DEFLATE;
+    }
+
+    public static Intent decode(byte[] data, int offset, int length) throws IOException {
+        return decode(data, offset, length, null);
+    }
+
+    /**
+     * @param tables receiver side string tables by table id, may be null if the peer never interns
+     */
+    public static Intent decode(byte[] data, int offset, int length, StringTable.Decoder[] tables)
+            throws IOException {
+        CodecReader in = new CodecReader(data, offset, length);
+
+        StringTable.Decoder table = null;
+        int format = in.readByte();
+        if (format == FORMAT_BINARY_V2) {
+            int tableId = in.readVarInt();
+            if (tables == null || tableId >= tables.length) {
+                throw new IOException("unknown string table: " + tableId);
+            }
+            table = tables[tableId];
+            if ((in.readByte() & TABLE_RESET) != 0) {
+                table.reset();
+            }
+        } else if (format != FORMAT_BINARY_V1) {
+            throw new IOException("unsupported intent format: " + format);
+        }
+        int fields = in.readVarInt();
+
+        Intent intent = new Intent();
+        if ((fields & FIELD_ACTION) != 0) {
+            intent.setAction(readToken(in, table));
+        }
+        String uri = (fields & FIELD_DATA) != 0 ? readToken(in, table) : null;
+        String type = (fields & FIELD_TYPE) != 0 ? readToken(in, table) : null;
+        if (uri != null || type != null) {
+            intent.setDataAndType(uri != null ? Uri.parse(uri) : null, type);
+        }
+        if ((fields & FIELD_CATEGORIES) != 0) {
+            int count = in.readVarInt();
+            for (int i = 0; i < count; i++) {
+                intent.addCategory(readToken(in, table));
+            }
+        }
+        if ((fields & FIELD_FLAGS) != 0) {
+            intent.setFlags(in.readInt());
+        }
+        if ((fields & FIELD_COMPONENT) != 0) {
+            String pkg = readToken(in, table);
+            intent.setComponent(new ComponentName(pkg, readToken(in, table)));
+        }
+        if ((fields & FIELD_PACKAGE) != 0) {
+            intent.setPackage(readToken(in, table));
+        }
+        if ((fields & FIELD_EXTRAS) != 0) {
+            intent.putExtras(readBundle(in, table));
+        }
+
+        return intent;
+    }
+
+    private static void writeToken(String value, CodecWriter out, StringTable.Encoder table) {
+        if (table != null) {
+            table.write(value, out);
+        } else {
+            out.writeString(value);
+        }
+    }
+
+    private static String readToken(CodecReader in, StringTable.Decoder table) throws IOException {
+        return table != null ? table.read(in) : in.readString();
+    }
+
+    private static void writeBundle(Bundle bundle, CodecWriter out, StringTable.Encoder table) {
+        Set<String> keys = bundle.keySet();
+        out.writeVarInt(keys.size());
+        for (String key : keys) {
+            writeToken(key, out, table);
+            writeValue(bundle.get(key), out, table);
+        }
+    }
+
+    private static Bundle readBundle(CodecReader in, StringTable.Decoder table) throws IOException {
+        int count = in.readVarInt();
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < count; i++) {
+            String key = readToken(in, table);
+            readValue(key, bundle, in, table);
+        }
+        return bundle;
+    }
+
+    private static void writeValue(Object value, CodecWriter out, StringTable.Encoder table) {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            writeToken((String) value, out, table);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeByte(((Boolean) value) ? 1 : 0);
+        } else if (value instanceof Byte) {
+            out.writeByte(TAG_BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Short) {
+            out.writeByte(TAG_SHORT);
+            out.writeSignedVarInt((Short) value);
+        } else if (value instanceof Character) {
+            out.writeByte(TAG_CHAR);
+            out.writeVarInt((Character) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TAG_INT);
+            out.writeSignedVarInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeSignedVarLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TAG_FLOAT);
+            out.writeInt(Float.floatToIntBits((Float) value));
+        } else if (value instanceof Double) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeLong(Double.doubleToLongBits((Double) value));
+        } else if (value instanceof byte[]) {
+            out.writeByte(TAG_BYTE_ARRAY);
+            out.writeBytes((byte[]) value);
+        } else if (value instanceof String[]) {
+            String[] array = (String[]) value;
+            out.writeByte(TAG_STRING_ARRAY);
+            out.writeVarInt(array.length);
+            for (String s : array) {
+                writeNullableString(s, out, table);
+            }
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            out.writeByte(TAG_INT_ARRAY);
+            out.writeVarInt(array.length);
+            for (int i : array) {
+                out.writeSignedVarInt(i);
+            }
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            out.writeByte(TAG_LONG_ARRAY);
+            out.writeVarInt(array.length);
+            for (long l : array) {
+                out.writeSignedVarLong(l);
+            }
+        } else if (value instanceof boolean[]) {
+            boolean[] array = (boolean[]) value;
+            out.writeByte(TAG_BOOLEAN_ARRAY);
+            out.writeVarInt(array.length);
+            for (boolean b : array) {
+                out.writeByte(b ? 1 : 0);
+            }
+        } else if (value instanceof ArrayList) {
+            writeList((List<?>) value, out, table);
+        } else if (value instanceof Bundle) {
+            out.writeByte(TAG_BUNDLE);
+            writeBundle((Bundle) value, out, table);
+        } else {
+            throw new IllegalArgumentException("unsupported extra type: " + value.getClass().getName());
+        }
+    }
+
+    private static void writeList(List<?> list, CodecWriter out, StringTable.Encoder table) {
+        boolean strings = true;
+        boolean integers = true;
+        for (Object item : list) {
+            strings &= (item == null || item instanceof String);
+            integers &= (item instanceof Integer);
+        }
+
+        if (strings) {
+            out.writeByte(TAG_STRING_LIST);
+            out.writeVarInt(list.size());
+            for (Object item : list) {
+                writeNullableString((String) item, out, table);
+            }
+        } else if (integers) {
+            out.writeByte(TAG_INTEGER_LIST);
+            out.writeVarInt(list.size());
+            for (Object item : list) {
+                out.writeSignedVarInt((Integer) item);
+            }
+        } else {
+            throw new IllegalArgumentException("unsupported list extra");
+        }
+    }
+
+    private static void writeNullableString(String value, CodecWriter out, StringTable.Encoder table) {
+        if (value == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            writeToken(value, out, table);
+        }
+    }
+
+    private static String readNullableString(CodecReader in, StringTable.Decoder table) throws IOException {
+        return in.readByte() == 0 ? null : readToken(in, table);
+    }
+
+    private static void readValue(String key, Bundle bundle, CodecReader in, StringTable.Decoder table)
+            throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                bundle.putString(key, null);
+                break;
+            case TAG_STRING:
+                bundle.putString(key, readToken(in, table));
+                break;
+            case TAG_BOOLEAN:
+                bundle.putBoolean(key, in.readByte() != 0);
+                break;
+            case TAG_BYTE:
+                bundle.putByte(key, (byte) in.readByte());
+                break;
+            case TAG_SHORT:
+                bundle.putShort(key, (short) in.readSignedVarInt());
+                break;
+            case TAG_CHAR:
+                bundle.putChar(key, (char) in.readVarInt());
+                break;
+            case TAG_INT:
+                bundle.putInt(key, in.readSignedVarInt());
+                break;
+            case TAG_LONG:
+                bundle.putLong(key, in.readSignedVarLong());
+                break;
+            case TAG_FLOAT:
+                bundle.putFloat(key, Float.intBitsToFloat(in.readInt()));
+                break;
+            case TAG_DOUBLE:
+                bundle.putDouble(key, Double.longBitsToDouble(in.readLong()));
+                break;
+            case TAG_BYTE_ARRAY:
+                bundle.putByteArray(key, in.readBytes());
+                break;
+            case TAG_STRING_ARRAY: {
+                String[] array = new String[in.readVarInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readNullableString(in, table);
+                }
+                bundle.putStringArray(key, array);
+                break;
+            }
+            case TAG_INT_ARRAY: {
+                int[] array = new int[in.readVarInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readSignedVarInt();
+                }
+                bundle.putIntArray(key, array);
+                break;
+            }
+            case TAG_LONG_ARRAY: {
+                long[] array = new long[in.readVarInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readSignedVarLong();
+                }
+                bundle.putLongArray(key, array);
+                break;
+            }
+            case TAG_BOOLEAN_ARRAY: {
+                boolean[] array = new boolean[in.readVarInt()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readByte() != 0;
+                }
+                bundle.putBooleanArray(key, array);
+                break;
+            }
+            case TAG_STRING_LIST: {
+                int count = in.readVarInt();
+                ArrayList<String> list = new ArrayList<String>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(readNullableString(in, table));
+                }
+                bundle.putStringArrayList(key, list);
+                break;
+            }
+            case TAG_INTEGER_LIST: {
+                int count = in.readVarInt();
+                ArrayList<Integer> list = new ArrayList<Integer>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(in.readSignedVarInt());
+                }
+                bundle.putIntegerArrayList(key, list);
+                break;
+            }
+            case TAG_BUNDLE:
+                bundle.putBundle(key, readBundle(in, table));
+                break;
+            default:
+                throw new IOException("unknown extra tag: " + tag);
+        }
+    }
+}
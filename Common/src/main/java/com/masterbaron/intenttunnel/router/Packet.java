@@ -1,6 +1,8 @@
 package com.masterbaron.intenttunnel.router;
 
 import android.content.Intent;
+import android.os.Messenger;
+import android.os.SystemClock;
 
 import java.util.concurrent.TimeUnit;
 
@@ -8,15 +10,67 @@ import java.util.concurrent.TimeUnit;
  * Created by Van Etten on 12/31/13.
  */
 public class Packet {
-    private final long EXPIRED = TimeUnit.SECONDS.toMillis(30);
+    public static final long DEFAULT_TTL = TimeUnit.SECONDS.toMillis(30);
+    public static final int DEFAULT_PRIORITY = 0;
 
-    private final long expiredTime = System.currentTimeMillis() + EXPIRED;
+    private final long expiredTime;
+    private final long deadline;
+    private final int id;
     private final int type;
+    private final int priority;
     private final Intent intent;
+    private final String coalesceKey;
 
-    public Packet(int type, Intent intent) {
+    // told when the packet is dropped unsent, may be null
+    private Messenger replyTo;
+
+    // links of the PacketQueue lane the packet is waiting in
+    PacketQueue.Lane lane;
+    Packet prev;
+    Packet next;
+    // key the queue indexes the packet by
+    String indexKey;
+
+    // System.nanoTime() the packet was queued at and handed to a connection at, for the metrics
+    long queuedTime;
+    long sentTime;
+
+    // links of the ExpiryWheel slot, wheelTick is 0 when it isn't in one
+    long wheelTick;
+    Packet wheelPrev;
+    Packet wheelNext;
+
+    /**
+     * @param id stays the same every time the packet is sent, the receiver drops repeats by it
+     */
+    public Packet(int id, int type, Intent intent) {
+        this(id, type, intent, DEFAULT_PRIORITY, System.currentTimeMillis() + DEFAULT_TTL);
+    }
+
+    /**
+     * @param expiredTime wall clock time the packet is dropped at if it wasn't sent, it
+     *                    has to mean the same after a restart
+     */
+    public Packet(int id, int type, Intent intent, int priority, long expiredTime) {
+        this(id, type, intent, priority, expiredTime, null);
+    }
+
+    /**
+     * @param coalesceKey a queued packet with the same key is superseded by this one, may be null
+     */
+    public Packet(int id, int type, Intent intent, int priority, long expiredTime, String coalesceKey) {
+        this.id = id;
         this.type = type;
         this.intent = intent;
+        this.priority = priority;
+        this.expiredTime = expiredTime;
+        this.coalesceKey = coalesceKey;
+        // the wall clock can be changed, expiry runs on the monotonic one
+        this.deadline = SystemClock.elapsedRealtime() + (expiredTime - System.currentTimeMillis());
+    }
+
+    public int getId() {
+        return id;
     }
 
     protected Intent getIntent() {
@@ -27,7 +81,34 @@ public class Packet {
         return type;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getExpiredTime() {
+        return expiredTime;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    /**
+     * @return SystemClock.elapsedRealtime() the packet expires at
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
     public boolean isExpired() {
-        return System.currentTimeMillis() > expiredTime;
+        return SystemClock.elapsedRealtime() >= deadline;
+    }
+
+    public Messenger getReplyTo() {
+        return replyTo;
+    }
+
+    public void setReplyTo(Messenger replyTo) {
+        this.replyTo = replyTo;
     }
 }
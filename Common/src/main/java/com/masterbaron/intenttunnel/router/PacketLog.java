@@ -0,0 +1,501 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the router's outbound packets, so queued intents survive the
+ * service being killed.
+ *
+ * The log is a directory of fixed size, memory mapped segments. A packet is appended
+ * when it is queued and a removal is appended once it is delivered or dropped; on
+ * open the log is replayed and every packet without a removal comes back. Writes only
+ * touch the mapping, sync() forces them to disk, so any number of appends share one
+ * sync (group commit).
+ *
+ * Each record is its length, a CRC32 and the payload. A record that is cut short or
+ * doesn't match its CRC ends the segment, which is what a crash mid-write leaves behind.
+ * The oldest segment is deleted once none of its packets are live, or rewritten into the
+ * newest segment once most of them are gone.
+ *
+ * Packet ids are handed out by the log so they keep growing across restarts, the peer
+ * drops repeats by them. Ids are reserved in blocks, so only a reservation record per
+ * block is written for them.
+ */
+public class PacketLog {
+    private static final String TAG = PacketLog.class.getSimpleName();
+
+    public static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int ID_BLOCK = 256;
+
+    // rewrite the oldest segment once fewer than 1 in COMPACT_RATIO of its packets are live
+    private static final int COMPACT_RATIO = 2;
+
+    // record kinds
+    private static final int KIND_HEADER = 1;
+    private static final int KIND_APPEND = 2;
+    private static final int KIND_REMOVE = 3;
+    // an append with the packet's coalescing key before the intent
+    private static final int KIND_APPEND_KEYED = 4;
+
+    private final File mDirectory;
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private final HashMap<Integer, Segment> mLive = new HashMap<Integer, Segment>();
+    private final CRC32 mCrc = new CRC32();
+    private final CodecWriter mOut = new CodecWriter(512);
+
+    private long mEpoch = 0;
+    private int mLastId = 0;
+    private int mReservedId = 0;
+    private boolean isCompacting = false;
+
+    public PacketLog(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * replay the log
+     *
+     * @param epoch epoch to use if the log is new
+     * @return live packets that haven't expired, oldest first
+     */
+    public List<Packet> open(long epoch) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("can't create " + mDirectory);
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            throw new IOException("can't list " + mDirectory);
+        }
+        Arrays.sort(files);
+        HashMap<Integer, Packet> packets = new HashMap<Integer, Packet>();
+        for (File file : files) {
+            if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+                Segment segment = openSegment(file);
+                mSegments.add(segment);
+                replay(segment, packets);
+            }
+        }
+
+        if (mEpoch == 0) {
+            mEpoch = epoch;
+        }
+        mLastId = Math.max(mLastId, mReservedId);
+        if (mSegments.isEmpty()) {
+            roll();
+        }
+
+        ArrayList<Packet> result = new ArrayList<Packet>(packets.size());
+        for (Packet packet : packets.values()) {
+            if (packet.isExpired()) {
+                remove(packet);
+            } else {
+                result.add(packet);
+            }
+        }
+        Collections.sort(result, new Comparator<Packet>() {
+            @Override
+            public int compare(Packet lhs, Packet rhs) {
+                return lhs.getId() < rhs.getId() ? -1 : (lhs.getId() == rhs.getId() ? 0 : 1);
+            }
+        });
+        Log.d(TAG, "replayed " + result.size() + " packets from " + mSegments.size() + " segments");
+        return result;
+    }
+
+    public long getEpoch() {
+        return mEpoch;
+    }
+
+    /**
+     * @return id for a new packet, never handed out before with this log's epoch
+     */
+    public int nextPacketId() {
+        int id = ++mLastId;
+        if (id > mReservedId) {
+            mReservedId = id + ID_BLOCK - 1;
+            try {
+                writeHeader();
+            } catch (IOException e) {
+                Log.e(TAG, "failed to reserve packet ids", e);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return false if the packet can't be persisted, it then only lives in memory
+     */
+    public boolean append(Packet packet) {
+        try {
+            mOut.reset();
+            String key = packet.getCoalesceKey();
+            mOut.writeByte(key != null ? KIND_APPEND_KEYED : KIND_APPEND);
+            mOut.writeVarInt(packet.getId());
+            mOut.writeVarInt(packet.getType());
+            mOut.writeSignedVarInt(packet.getPriority());
+            mOut.writeVarLong(packet.getExpiredTime());
+            if (key != null) {
+                mOut.writeString(key);
+            }
+            IntentCodec.encode(packet.getIntent(), mOut);
+            if (RECORD_HEADER_LENGTH + mOut.size() > SEGMENT_SIZE / 2) {
+                Log.w(TAG, "packet " + packet.getId() + " too large to persist");
+                return false;
+            }
+
+            Segment segment = write(mOut.getBuffer(), 0, mOut.size());
+            segment.appended++;
+            segment.live++;
+            mLive.put(packet.getId(), segment);
+            return true;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "packet " + packet.getId() + " can't be persisted: " + e.getMessage());
+        } catch (IOException e) {
+            Log.e(TAG, "failed to persist packet " + packet.getId(), e);
+        }
+        return false;
+    }
+
+    /**
+     * the packet was delivered or dropped, it won't be replayed
+     */
+    public void remove(Packet packet) {
+        Segment segment = mLive.remove(packet.getId());
+        if (segment == null) {
+            return;
+        }
+        segment.live--;
+
+        try {
+            mOut.reset();
+            mOut.writeByte(KIND_REMOVE);
+            mOut.writeVarInt(packet.getId());
+            write(mOut.getBuffer(), 0, mOut.size());
+            compact();
+        } catch (IOException e) {
+            Log.e(TAG, "failed to remove packet " + packet.getId(), e);
+        }
+    }
+
+    /**
+     * @return true if there are writes sync() hasn't forced to disk yet
+     */
+    public boolean isDirty() {
+        for (Segment segment : mSegments) {
+            if (segment.dirty) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * force every write so far to disk
+     */
+    public void sync() {
+        for (Segment segment : mSegments) {
+            if (segment.dirty) {
+                segment.buffer.force();
+                segment.dirty = false;
+            }
+        }
+    }
+
+    public void close() {
+        sync();
+        for (Segment segment : mSegments) {
+            segment.close();
+        }
+        mSegments.clear();
+        mLive.clear();
+    }
+
+    private Segment active() {
+        return mSegments.get(mSegments.size() - 1);
+    }
+
+    /**
+     * write a record to the newest segment, starting a new one if it doesn't fit
+     *
+     * @return segment the record went to
+     */
+    private Segment write(byte[] payload, int offset, int length) throws IOException {
+        Segment segment = active();
+        boolean rolled = false;
+        if (segment.buffer.remaining() < RECORD_HEADER_LENGTH + length) {
+            segment = roll();
+            rolled = true;
+        }
+
+        mCrc.reset();
+        mCrc.update(payload, offset, length);
+        segment.buffer.putInt(length);
+        segment.buffer.putInt((int) mCrc.getValue());
+        segment.buffer.put(payload, offset, length);
+        segment.dirty = true;
+
+        if (rolled) {
+            // not before the record is in, compaction copies live packets to the new
+            // segment too and could leave the record no room
+            compact();
+        }
+        return segment;
+    }
+
+    private void writeHeader() throws IOException {
+        CodecWriter out = new CodecWriter(16);
+        out.writeByte(KIND_HEADER);
+        out.writeVarLong(mEpoch);
+        out.writeVarInt(mReservedId);
+        write(out.getBuffer(), 0, out.size());
+    }
+
+    /**
+     * start a new segment. every segment begins with the epoch and id reservation,
+     * so they survive older segments being deleted. the caller compacts once it has
+     * written its record.
+     */
+    private Segment roll() throws IOException {
+        long number = mSegments.isEmpty() ? 1 : active().number + 1;
+        File file = new File(mDirectory, String.format("%016d", number) + SEGMENT_SUFFIX);
+        Segment segment = openSegment(file);
+        segment.number = number;
+        mSegments.add(segment);
+        writeHeader();
+        return segment;
+    }
+
+    /**
+     * delete or rewrite old segments. only the oldest segment is ever touched, so a
+     * removal record is never lost while the packet it removes is still in the log.
+     */
+    private void compact() throws IOException {
+        if (isCompacting) {
+            return;
+        }
+        isCompacting = true;
+        try {
+            while (mSegments.size() > 1) {
+                Segment oldest = mSegments.get(0);
+                if (oldest.live > 0 && oldest.live * COMPACT_RATIO >= oldest.appended) {
+                    break;
+                }
+                if (oldest.live > 0) {
+                    rewriteLive(oldest);
+                }
+                mSegments.remove(0);
+                oldest.close();
+                if (!oldest.file.delete()) {
+                    Log.w(TAG, "failed to delete " + oldest.file);
+                }
+            }
+        } finally {
+            isCompacting = false;
+        }
+    }
+
+    /**
+     * copy the live packets of a segment to the newest one
+     */
+    private void rewriteLive(Segment segment) throws IOException {
+        RecordCursor cursor = new RecordCursor(segment);
+        while (cursor.next()) {
+            if (!isAppend(cursor.kind) || mLive.get(cursor.id) != segment) {
+                continue;
+            }
+
+            Segment target = write(cursor.record, 0, cursor.length);
+            target.appended++;
+            target.live++;
+            mLive.put(cursor.id, target);
+        }
+        segment.live = 0;
+    }
+
+    private static boolean isAppend(int kind) {
+        return kind == KIND_APPEND || kind == KIND_APPEND_KEYED;
+    }
+
+    private void replay(Segment segment, HashMap<Integer, Packet> packets) throws IOException {
+        RecordCursor cursor = new RecordCursor(segment);
+        while (cursor.next()) {
+            byte[] record = cursor.record;
+            CodecReader in = new CodecReader(record, 1, cursor.length - 1);
+
+            if (cursor.kind == KIND_HEADER) {
+                long epoch = in.readVarLong();
+                if (mEpoch == 0) {
+                    mEpoch = epoch;
+                }
+                mReservedId = Math.max(mReservedId, in.readVarInt());
+            } else if (isAppend(cursor.kind)) {
+                int id = in.readVarInt();
+                int type = in.readVarInt();
+                int priority = in.readSignedVarInt();
+                long expiredTime = in.readVarLong();
+                String key = cursor.kind == KIND_APPEND_KEYED ? in.readString() : null;
+                Intent intent;
+                try {
+                    intent = IntentCodec.decode(record, in.position(), in.remaining());
+                } catch (IOException e) {
+                    Log.w(TAG, "dropping unreadable packet " + id, e);
+                    continue;
+                }
+
+                Segment previous = mLive.put(id, segment);
+                if (previous != null) {
+                    // rewritten by compaction, the copy is the live one
+                    previous.live--;
+                }
+                segment.appended++;
+                segment.live++;
+                packets.put(id, new Packet(id, type, intent, priority, expiredTime, key));
+                mLastId = Math.max(mLastId, id);
+            } else if (cursor.kind == KIND_REMOVE) {
+                int id = in.readVarInt();
+                Segment live = mLive.remove(id);
+                if (live != null) {
+                    live.live--;
+                }
+                packets.remove(id);
+            }
+        }
+        // appends continue after the last intact record. anything behind it is what a
+        // crash left half written, clear it so it can't surface between later records.
+        segment.buffer.position(cursor.end);
+        for (int i = cursor.end; i < segment.buffer.capacity() && i < cursor.end + RECORD_HEADER_LENGTH; i++) {
+            if (segment.buffer.get(i) != 0) {
+                clear(segment.buffer, cursor.end);
+                segment.dirty = true;
+                break;
+            }
+        }
+    }
+
+    private static void clear(MappedByteBuffer buffer, int from) {
+        byte[] zeros = new byte[4096];
+        ByteBuffer view = buffer.duplicate();
+        view.position(from);
+        while (view.hasRemaining()) {
+            view.put(zeros, 0, Math.min(zeros.length, view.remaining()));
+        }
+    }
+
+    private static Segment openSegment(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(SEGMENT_SIZE);
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            Segment segment = new Segment(file, raf, buffer);
+            String name = file.getName();
+            segment.number = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            return segment;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        } catch (NumberFormatException e) {
+            raf.close();
+            throw new IOException("invalid segment name " + file.getName());
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        long number;
+
+        // packets appended to this segment, and those of them not yet removed
+        int appended = 0;
+        int live = 0;
+        boolean dirty = false;
+
+        Segment(File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // DO NOTHING
+            }
+        }
+    }
+
+    /**
+     * walks the intact records of a segment without moving its write position
+     */
+    private class RecordCursor {
+        final MappedByteBuffer buffer;
+        int end = 0;
+
+        // current record
+        byte[] record = new byte[256];
+        int length;
+        int kind;
+        int id;
+
+        RecordCursor(Segment segment) {
+            buffer = segment.buffer;
+        }
+
+        boolean next() {
+            int position = end;
+            if (position + RECORD_HEADER_LENGTH > buffer.capacity()) {
+                return false;
+            }
+            length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_LENGTH + length > buffer.capacity()) {
+                return false;
+            }
+            if (record.length < length) {
+                record = new byte[Math.max(length, record.length * 2)];
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + RECORD_HEADER_LENGTH);
+            view.get(record, 0, length);
+
+            mCrc.reset();
+            mCrc.update(record, 0, length);
+            if ((int) mCrc.getValue() != buffer.getInt(position + 4)) {
+                Log.w(TAG, "torn record at " + position);
+                return false;
+            }
+
+            kind = record[0];
+            id = 0;
+            if (isAppend(kind) || kind == KIND_REMOVE) {
+                try {
+                    id = new CodecReader(record, 1, length - 1).readVarInt();
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+            end = position + RECORD_HEADER_LENGTH + length;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.content.ComponentName;
+import android.content.Intent;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The router's outbound queue: one FIFO lane per priority class, served by weighted
+ * round robin so high priority packets get most turns without starving the rest.
+ *
+ * Every lane has its own cap and a policy for a packet that arrives while it is full:
+ * drop the oldest queued packet, drop the new packet, or coalesce with a queued
+ * packet for the same intent target.
+ *
+ * A packet with a coalescing key supersedes the queued packet with the same key, the
+ * newer intent taking over its place in line, or its own lane's if its priority class
+ * differs; in a coalescing lane the intent target is the key of packets without one.
+ *
+ * Lanes are doubly linked through the packets themselves, so a packet is unlinked
+ * from anywhere in the queue in constant time, and keys are indexed, so the packet
+ * a new one supersedes is found in constant time as well. Deadlines are kept in an
+ * ExpiryWheel for the same reason.
+ */
+public class PacketQueue {
+    public static final int CLASS_HIGH = 0;
+    public static final int CLASS_NORMAL = 1;
+    public static final int CLASS_LOW = 2;
+    private static final int CLASSES = 3;
+
+    public static final int DROP_OLDEST = 0;
+    public static final int DROP_NEWEST = 1;
+    public static final int COALESCE = 2;
+
+    // turns each class gets per round while it has packets
+    private static final int[] WEIGHTS = {8, 3, 1};
+
+    private final Lane[] mLanes = new Lane[CLASSES];
+    private final ExpiryWheel mExpiry = new ExpiryWheel();
+    private final HashMap<String, Packet> mKeyed = new HashMap<String, Packet>();
+    private int mSize = 0;
+
+    public PacketQueue() {
+        for (int i = 0; i < CLASSES; i++) {
+            mLanes[i] = new Lane(WEIGHTS[i]);
+        }
+    }
+
+    /**
+     * @return class of a packet priority, positive is high and negative low
+     */
+    public static int classOf(int priority) {
+        if (priority > 0) {
+            return CLASS_HIGH;
+        }
+        return priority < 0 ? CLASS_LOW : CLASS_NORMAL;
+    }
+
+    /**
+     * @param priorityClass class to configure
+     * @param cap           packets the class holds
+     * @param policy        DROP_OLDEST, DROP_NEWEST or COALESCE
+     */
+    public void setPolicy(int priorityClass, int cap, int policy) {
+        Lane lane = mLanes[priorityClass];
+        lane.cap = Math.max(1, cap);
+        lane.policy = policy;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * let a new packet take the place of the queued one it supersedes. a packet of
+     * another priority class doesn't, it belongs in its own lane: the queued one is
+     * only removed and the new one still has to be offered, see contains().
+     *
+     * @return the superseded packet, now out of the queue, or null if the packet
+     * supersedes nothing and still has to be offered
+     */
+    public Packet replace(Packet packet) {
+        String key = keyOf(packet);
+        Packet queued = key != null ? mKeyed.get(key) : null;
+        if (queued == null) {
+            return null;
+        }
+
+        if (queued.lane != mLanes[classOf(packet.getPriority())]) {
+            detach(queued);
+            return queued;
+        }
+        queued.lane.replace(queued, packet);
+        mExpiry.remove(queued);
+        mExpiry.add(packet);
+        queued.indexKey = null;
+        packet.indexKey = key;
+        mKeyed.put(key, packet);
+        return queued;
+    }
+
+    /**
+     * queue a new packet behind the others of its class
+     *
+     * @return the packet the lane's policy dropped to make room, possibly the new one, or null
+     */
+    public Packet offer(Packet packet) {
+        Lane lane = mLanes[classOf(packet.getPriority())];
+
+        Packet dropped = null;
+        if (lane.count >= lane.cap) {
+            if (lane.policy == DROP_NEWEST) {
+                return packet;
+            }
+            dropped = lane.head;
+            detach(dropped);
+        }
+
+        lane.linkLast(packet);
+        attach(packet);
+        return dropped;
+    }
+
+    /**
+     * put a packet that was taken but couldn't be sent back in front of its class.
+     * it was accepted before, so the cap doesn't apply.
+     *
+     * @return the packet if a newer one with its key was queued meanwhile, it is then dropped
+     */
+    public Packet offerFirst(Packet packet) {
+        String key = keyOf(packet);
+        if (key != null && mKeyed.containsKey(key)) {
+            return packet;
+        }
+        mLanes[classOf(packet.getPriority())].linkFirst(packet);
+        attach(packet);
+        return null;
+    }
+
+    /**
+     * @return the next packet to send, or null if the queue is empty
+     */
+    public Packet poll() {
+        if (mSize == 0) {
+            return null;
+        }
+
+        // smooth weighted round robin over the classes that have packets
+        Lane best = null;
+        int total = 0;
+        for (Lane lane : mLanes) {
+            if (lane.count > 0) {
+                lane.current += lane.weight;
+                total += lane.weight;
+                if (best == null || lane.current > best.current) {
+                    best = lane;
+                }
+            }
+        }
+        best.current -= total;
+
+        Packet packet = best.head;
+        detach(packet);
+        if (best.count == 0) {
+            // an idle class doesn't bank turns
+            best.current = 0;
+        }
+        return packet;
+    }
+
+    /**
+     * @return true if the packet is queued
+     */
+    public boolean contains(Packet packet) {
+        return packet.lane != null && isOwnLane(packet.lane);
+    }
+
+    /**
+     * @return false if the packet isn't queued
+     */
+    public boolean remove(Packet packet) {
+        Lane lane = packet.lane;
+        if (lane == null || !isOwnLane(lane)) {
+            return false;
+        }
+        detach(packet);
+        return true;
+    }
+
+    /**
+     * remove every packet whose deadline passed
+     *
+     * @param now     SystemClock.elapsedRealtime()
+     * @param expired receives the removed packets
+     */
+    public void removeExpired(long now, List<Packet> expired) {
+        int first = expired.size();
+        mExpiry.advance(now, expired);
+        for (int i = first; i < expired.size(); i++) {
+            Packet packet = expired.get(i);
+            packet.lane.unlink(packet);
+            unindex(packet);
+            mSize--;
+        }
+    }
+
+    /**
+     * @return SystemClock.elapsedRealtime() to call removeExpired() at next, -1 if the queue is empty
+     */
+    public long getNextExpiry() {
+        return mExpiry.getNextExpiry();
+    }
+
+    private boolean isOwnLane(Lane lane) {
+        for (Lane own : mLanes) {
+            if (own == lane) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * track a packet that was just linked into a lane
+     */
+    private void attach(Packet packet) {
+        mExpiry.add(packet);
+        String key = keyOf(packet);
+        if (key != null) {
+            packet.indexKey = key;
+            mKeyed.put(key, packet);
+        }
+        mSize++;
+    }
+
+    /**
+     * take a packet out of its lane and stop tracking it
+     */
+    private void detach(Packet packet) {
+        packet.lane.unlink(packet);
+        mExpiry.remove(packet);
+        unindex(packet);
+        mSize--;
+    }
+
+    private void unindex(Packet packet) {
+        if (packet.indexKey != null) {
+            if (mKeyed.get(packet.indexKey) == packet) {
+                mKeyed.remove(packet.indexKey);
+            }
+            packet.indexKey = null;
+        }
+    }
+
+    /**
+     * @return what the packet is coalesced by, null if it isn't
+     */
+    private String keyOf(Packet packet) {
+        String key = packet.getCoalesceKey();
+        if (key != null) {
+            return key;
+        }
+        if (mLanes[classOf(packet.getPriority())].policy != COALESCE) {
+            return null;
+        }
+
+        // the intent target, what filterEquals() mostly compares. \0 keeps it apart from explicit keys.
+        Intent intent = packet.getIntent();
+        ComponentName component = intent.getComponent();
+        return "\0" + packet.getType() + '|' + intent.getAction() + '|' + intent.getDataString() + '|'
+                + intent.getType() + '|' + (component != null ? component.flattenToShortString() : null);
+    }
+
+    static class Lane {
+        final int weight;
+        int current = 0;
+        int cap = Integer.MAX_VALUE;
+        int policy = DROP_OLDEST;
+
+        Packet head;
+        Packet tail;
+        int count = 0;
+
+        Lane(int weight) {
+            this.weight = weight;
+        }
+
+        void linkLast(Packet packet) {
+            packet.lane = this;
+            packet.prev = tail;
+            packet.next = null;
+            if (tail != null) {
+                tail.next = packet;
+            } else {
+                head = packet;
+            }
+            tail = packet;
+            count++;
+        }
+
+        void linkFirst(Packet packet) {
+            packet.lane = this;
+            packet.prev = null;
+            packet.next = head;
+            if (head != null) {
+                head.prev = packet;
+            } else {
+                tail = packet;
+            }
+            head = packet;
+            count++;
+        }
+
+        void unlink(Packet packet) {
+            if (packet.prev != null) {
+                packet.prev.next = packet.next;
+            } else {
+                head = packet.next;
+            }
+            if (packet.next != null) {
+                packet.next.prev = packet.prev;
+            } else {
+                tail = packet.prev;
+            }
+            packet.prev = null;
+            packet.next = null;
+            packet.lane = null;
+            count--;
+        }
+
+        /**
+         * put a packet in the place of a queued one
+         */
+        void replace(Packet queued, Packet packet) {
+            packet.lane = this;
+            packet.prev = queued.prev;
+            packet.next = queued.next;
+            if (queued.prev != null) {
+                queued.prev.next = packet;
+            } else {
+                head = packet;
+            }
+            if (queued.next != null) {
+                queued.next.prev = packet;
+            } else {
+                tail = packet;
+            }
+            queued.prev = null;
+            queued.next = null;
+            queued.lane = null;
+        }
+    }
+}
@@ -5,14 +5,25 @@ import android.bluetooth.BluetoothAdapter;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import ktlab.lib.connection.TunnelLog;
 
 /**
  * Created by Van Etten on 12/9/13.
@@ -25,18 +36,79 @@ public class RouterService extends Service implements Handler.Callback {
     protected static final int ROUTER_MESSAGE_STARTACTIVITY_INTENT = 1002;
 
     protected static final int ROUTER_MESSAGE_SEND_QUEUED_MESSAGES = 1100;
+    protected static final int ROUTER_MESSAGE_SYNC_QUEUE = 1101;
+    protected static final int ROUTER_MESSAGE_EXPIRE_PACKETS = 1102;
+
+    // sent to the Message.replyTo of an intent that was dropped unsent: arg1 is the reason,
+    // obj the intent
+    public static final int ROUTER_MESSAGE_INTENT_DROPPED = 1200;
+    public static final int DROP_REASON_EXPIRED = 1;
+    public static final int DROP_REASON_QUEUE_FULL = 2;
+    public static final int DROP_REASON_COALESCED = 3;
+
+    // a bound client sends ROUTER_MESSAGE_GET_METRICS with a replyTo, which gets
+    // ROUTER_MESSAGE_METRICS back with a snapshot of the tunnel's metrics as its data
+    public static final int ROUTER_MESSAGE_GET_METRICS = 1300;
+    public static final int ROUTER_MESSAGE_METRICS = 1301;
+
+    // message priorities, sent as Message.arg1 or MESSAGE_DATA_PRIORITY. high priority intents
+    // get most of the send turns, low priority ones go out when nothing else is waiting.
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = Packet.DEFAULT_PRIORITY;
+    public static final int PRIORITY_HIGH = 1;
+
+    // optional Message data: how long the intent may wait to be sent, in milliseconds, and its priority
+    public static final String MESSAGE_DATA_TTL = "com.masterbaron.intenttunnel.TTL";
+    public static final String MESSAGE_DATA_PRIORITY = "com.masterbaron.intenttunnel.PRIORITY";
+
+    // optional Message data to let a newer intent replace a queued one that wasn't sent yet:
+    // an explicit coalescing key, or the name of an extra that together with the action is the key
+    public static final String MESSAGE_DATA_COALESCE_KEY = "com.masterbaron.intenttunnel.COALESCE_KEY";
+    public static final String MESSAGE_DATA_COALESCE_EXTRA = "com.masterbaron.intenttunnel.COALESCE_EXTRA";
+
+    // queued packets kept per priority class, in memory and with the durable queue
+    private static final int MAX_QUEUED_PACKETS = 100;
+    private static final int MAX_DURABLE_PACKETS = 100000;
+
+    // durable queue writes within this many milliseconds go to disk together
+    private static final long GROUP_COMMIT_DELAY = 20;
+
+    // peers whose delivered packet ids are remembered
+    private static final int MAX_DEDUP_PEERS = 4;
 
     private static Boolean isGlass = null;
     private static RouterService service;
 
     private final Messenger mMessenger = new Messenger(new IncomingHandler());
-    private final LinkedList<Packet> mPackets = new LinkedList<Packet>();
+    private final PacketQueue mPackets = new PacketQueue();
+    private final TunnelMetrics mMetrics = new TunnelMetrics();
+    private final ArrayList<Packet> mExpired = new ArrayList<Packet>();
+    // elapsedRealtime the expiry message is due at, 0 if none is pending
+    private long mExpiryScheduled = 0;
 
     protected Handler mHandler;
-    private ClientService mClientService;
-    private ServerService mServerService;
+    private BluetoothService mClientService;
+    private BluetoothService mServerService;
     private long lastClientError;
 
+    // packet ids are only unique within an epoch. a new one is picked every time the router
+    // starts, unless the durable queue keeps the one it replays packets with.
+    private long mEpoch = newEpoch();
+    private int mNextPacketId = 0;
+
+    // durable outbound queue, null unless enabled. whether it is enabled is only read
+    // on start, the queue caps follow that.
+    private PacketLog mPacketLog;
+    private boolean isDurableQueue = false;
+
+    // delivered packet ids per peer epoch, shared by both connections since a peer may use either
+    private final LinkedHashMap<Long, DedupWindow> mDelivered = new LinkedHashMap<Long, DedupWindow>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, DedupWindow> eldest) {
+            return size() > MAX_DEDUP_PEERS;
+        }
+    };
+
     /**
      * Check if the service is still active
      *
@@ -75,6 +147,9 @@ public class RouterService extends Service implements Handler.Callback {
         super.onCreate();
         service = this;
 
+        // debug lines follow the app, the library's own BuildConfig is never a debug one
+        TunnelLog.setDebug((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+
         getPreferences(this).registerOnSharedPreferenceChangeListener(mPreferenceHandler);
 
         startService(new Intent(this, RouterService.class));
@@ -82,12 +157,37 @@ public class RouterService extends Service implements Handler.Callback {
         // setup handler and messenger
         mHandler = new Handler(this);
 
-        mClientService = new ClientService(this);
-        mServerService = new ServerService(this);
+        mClientService = createClientService();
+        mServerService = createServerService();
+
+        int sendWindow = getSendWindow(this);
+        mClientService.setSendWindow(sendWindow);
+        mServerService.setSendWindow(sendWindow);
+        applyBatching();
+        isDurableQueue = isDurableQueue(this);
+        applyQueuePolicies();
+
+        if (isDurableQueue) {
+            openPacketLog();
+        }
 
         mServerService.startConnection();
     }
 
+    /**
+     * @return the service connecting out to the peer's server
+     */
+    protected BluetoothService createClientService() {
+        return new ClientService(this);
+    }
+
+    /**
+     * @return the service waiting for the peer to connect
+     */
+    protected BluetoothService createServerService() {
+        return new ServerService(this);
+    }
+
     /**
      * cleanup the router service
      */
@@ -98,6 +198,10 @@ public class RouterService extends Service implements Handler.Callback {
         getPreferences(this).unregisterOnSharedPreferenceChangeListener(mPreferenceHandler);
         mClientService.stop();
         mServerService.stop();
+        if (mPacketLog != null) {
+            mPacketLog.close();
+            mPacketLog = null;
+        }
         service = null;
         super.onDestroy();
     }
@@ -114,7 +218,9 @@ public class RouterService extends Service implements Handler.Callback {
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent != null) {
             if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(intent.getAction())) {
-                Log.d("onStartCommand", "intent=" + intent.toUri(0));
+                if (TunnelLog.isDebug()) {
+                    TunnelLog.d("onStartCommand", "intent=" + intent.toUri(0));
+                }
                 int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
                 if (state == BluetoothAdapter.STATE_ON) {
                     mServerService.stopConnection();
@@ -149,22 +255,32 @@ public class RouterService extends Service implements Handler.Callback {
             expirePackets();
             if ( mPackets.size() > 0 && isBluetoothEnabled() ) {
                 if (mServerService.isConnected()) {
-                    if ( !mServerService.isSending() ) {
-                        Log.d(TAG, "sentToService: serviceService running");
-                        mServerService.sendIntent(mPackets.poll());
+                    while ( mPackets.size() > 0 && mServerService.canSend() ) {
+                        if (TunnelLog.isDebug()) {
+                            TunnelLog.d(TAG, "sentToService: serviceService running");
+                        }
+                        mServerService.sendIntent(takePacket());
                     }
                 } else {
                     if (!mClientService.isRunning()) {
                         if ( lastClientError + 5000 < System.currentTimeMillis() ) {
-                            Log.d(TAG, "sentToService: clientService not running");
+                            if (TunnelLog.isDebug()) {
+                                TunnelLog.d(TAG, "sentToService: clientService not running");
+                            }
                             mClientService.startConnection();
                         } else {
-                            Log.d(TAG, "sentToService: clientService error delay");
+                            if (TunnelLog.isDebug()) {
+                                TunnelLog.d(TAG, "sentToService: clientService error delay");
+                            }
                             mHandler.sendEmptyMessageDelayed(ROUTER_MESSAGE_SEND_QUEUED_MESSAGES, 1000);
                         }
-                    } else if ( !mServerService.isSending() ) {
-                        Log.d(TAG, "sentToService: sending to clientService");
-                        mClientService.sendIntent(mPackets.poll());
+                    } else {
+                        while ( mPackets.size() > 0 && mClientService.canSend() ) {
+                            if (TunnelLog.isDebug()) {
+                                TunnelLog.d(TAG, "sentToService: sending to clientService");
+                            }
+                            mClientService.sendIntent(takePacket());
+                        }
                     }
                 }
             }
@@ -173,19 +289,164 @@ public class RouterService extends Service implements Handler.Callback {
         }
     }
 
+    private Packet takePacket() {
+        Packet packet = mPackets.poll();
+        mMetrics.recordSince(TunnelMetrics.STAGE_QUEUE, packet.queuedTime);
+        packet.sentTime = System.nanoTime();
+        return packet;
+    }
+
     private void expirePackets() {
-        // now expire old ones
-        Iterator<Packet> iterator = mPackets.iterator();
-        while ( iterator.hasNext() ) {
-            if ( iterator.next().isExpired() ) {
-                iterator.remove();
+        mExpired.clear();
+        mPackets.removeExpired(SystemClock.elapsedRealtime(), mExpired);
+        for (int i = 0; i < mExpired.size(); i++) {
+            Packet packet = mExpired.get(i);
+            if (TunnelLog.isDebug()) {
+                TunnelLog.d(TAG, "packet expired " + packet.getId());
             }
+            forgetPacket(packet);
+            notifyDropped(packet, DROP_REASON_EXPIRED);
+        }
+        mExpired.clear();
+        scheduleExpiry();
+    }
+
+    /**
+     * make sure the handler wakes up for the next packet deadline
+     */
+    private void scheduleExpiry() {
+        long next = mPackets.getNextExpiry();
+        if (next < 0) {
+            mHandler.removeMessages(ROUTER_MESSAGE_EXPIRE_PACKETS);
+            mExpiryScheduled = 0;
+        } else if (mExpiryScheduled == 0 || next < mExpiryScheduled
+                || !mHandler.hasMessages(ROUTER_MESSAGE_EXPIRE_PACKETS)) {
+            mHandler.removeMessages(ROUTER_MESSAGE_EXPIRE_PACKETS);
+            mHandler.sendEmptyMessageDelayed(ROUTER_MESSAGE_EXPIRE_PACKETS, Math.max(0, next - SystemClock.elapsedRealtime()));
+            mExpiryScheduled = next;
+        }
+    }
+
+    /**
+     * tell the producer of a packet that it won't be sent
+     */
+    private void notifyDropped(Packet packet, int reason) {
+        if (reason == DROP_REASON_EXPIRED) {
+            mMetrics.increment(TunnelMetrics.DROPS_EXPIRED);
+        } else if (reason == DROP_REASON_QUEUE_FULL) {
+            mMetrics.increment(TunnelMetrics.DROPS_QUEUE_FULL);
+        } else {
+            mMetrics.increment(TunnelMetrics.DROPS_COALESCED);
+        }
+        Messenger replyTo = packet.getReplyTo();
+        if (replyTo != null) {
+            try {
+                replyTo.send(Message.obtain(null, ROUTER_MESSAGE_INTENT_DROPPED, reason, packet.getId(), packet.getIntent()));
+            } catch (RemoteException e) {
+                Log.d(TAG, "producer of dropped packet is gone");
+            }
+        }
+    }
+
+    /**
+     * queue a packet in place of the one it supersedes, or under its class' cap and drop policy
+     *
+     * @return false if the packet itself was dropped
+     */
+    private boolean queuePacket(Packet packet) {
+        packet.queuedTime = System.nanoTime();
+        mMetrics.increment(TunnelMetrics.INTENTS_QUEUED);
+        Packet superseded = mPackets.replace(packet);
+        if (superseded != null) {
+            if (TunnelLog.isDebug()) {
+                TunnelLog.d(TAG, "packet " + superseded.getId() + " superseded by " + packet.getId());
+            }
+            forgetPacket(superseded);
+            notifyDropped(superseded, DROP_REASON_COALESCED);
+            if (mPackets.contains(packet)) {
+                scheduleExpiry();
+                return true;
+            }
+            // of another priority class, it queues in its own lane
+        }
+
+        Packet dropped = mPackets.offer(packet);
+        if (dropped == packet) {
+            if (TunnelLog.isDebug()) {
+                TunnelLog.d(TAG, "queue full, dropped new packet " + packet.getId());
+            }
+            // a replayed packet is in the log already
+            forgetPacket(packet);
+            notifyDropped(packet, DROP_REASON_QUEUE_FULL);
+            return false;
+        }
+        if (dropped != null) {
+            if (TunnelLog.isDebug()) {
+                TunnelLog.d(TAG, "queue full, dropped packet " + dropped.getId());
+            }
+            forgetPacket(dropped);
+            notifyDropped(dropped, DROP_REASON_QUEUE_FULL);
+        }
+        scheduleExpiry();
+        return true;
+    }
+
+    /**
+     * replay the durable queue. its epoch is kept so the peer still recognizes
+     * packets it got before the restart.
+     */
+    private void openPacketLog() {
+        PacketLog log = new PacketLog(new File(getFilesDir(), "outbound"));
+        try {
+            List<Packet> packets = log.open(mEpoch);
+            mPacketLog = log;
+            mEpoch = log.getEpoch();
+            for (Packet packet : packets) {
+                queuePacket(packet);
+            }
+            if (!packets.isEmpty()) {
+                processQueue();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "durable queue unavailable", e);
+            log.close();
+        }
+    }
+
+    private int newPacketId() {
+        return mPacketLog != null ? mPacketLog.nextPacketId() : ++mNextPacketId;
+    }
+
+    /**
+     * the packet was delivered or dropped, it must not be replayed
+     */
+    private void forgetPacket(Packet packet) {
+        if (mPacketLog != null) {
+            mPacketLog.remove(packet);
+            scheduleSync();
+        }
+    }
+
+    private void scheduleSync() {
+        if (!mHandler.hasMessages(ROUTER_MESSAGE_SYNC_QUEUE)) {
+            mHandler.sendEmptyMessageDelayed(ROUTER_MESSAGE_SYNC_QUEUE, GROUP_COMMIT_DELAY);
         }
+    }
 
-        // cap size of queue
-        while ( mPackets.size() > 100 ) {
-            mPackets.removeFirst();
+    private Packet newPacket(int type, Intent intent, int priority, Bundle data) {
+        long ttl = Packet.DEFAULT_TTL;
+        String key = null;
+        if (data != null) {
+            ttl = data.getLong(MESSAGE_DATA_TTL, ttl);
+            priority = data.getInt(MESSAGE_DATA_PRIORITY, priority);
+            key = data.getString(MESSAGE_DATA_COALESCE_KEY);
+            String extra = data.getString(MESSAGE_DATA_COALESCE_EXTRA);
+            if (key == null && extra != null) {
+                Bundle extras = intent.getExtras();
+                key = intent.getAction() + '#' + extra + '=' + (extras != null ? extras.get(extra) : null);
+            }
         }
+        return new Packet(newPacketId(), type, intent, priority, System.currentTimeMillis() + ttl, key);
     }
 
     /**
@@ -198,6 +459,15 @@ public class RouterService extends Service implements Handler.Callback {
         if (msg.what == ROUTER_MESSAGE_SEND_QUEUED_MESSAGES) {
             sentToService();
             return true;
+        } else if (msg.what == ROUTER_MESSAGE_EXPIRE_PACKETS) {
+            mExpiryScheduled = 0;
+            expirePackets();
+            return true;
+        } else if (msg.what == ROUTER_MESSAGE_SYNC_QUEUE) {
+            if (mPacketLog != null) {
+                mPacketLog.sync();
+            }
+            return true;
         }
         return false;
     }
@@ -207,41 +477,129 @@ public class RouterService extends Service implements Handler.Callback {
     }
 
     protected void onIntentSendComplete(BluetoothService bluetoothService, Packet packet) {
+        mMetrics.recordSince(TunnelMetrics.STAGE_SEND, packet.sentTime);
+        mMetrics.increment(TunnelMetrics.INTENTS_SENT);
+        forgetPacket(packet);
         processQueue();
     }
 
-    protected void onIntentSendFail(BluetoothService bluetoothService, Packet packet) {
+    protected void onIntentSendFail(BluetoothService bluetoothService, List<Packet> packets) {
         if ( !bluetoothService.isBTServer() ) {
             lastClientError = System.currentTimeMillis();
             if ( !mServerService.isConnected() ) {
                 mServerService.onConnectionLost();
             }
         }
-        if( packet != null ) {
-            mPackets.addFirst(packet);
+        // put them back at the front, keeping their original order
+        mMetrics.add(TunnelMetrics.INTENTS_RESENT, packets.size());
+        for ( int i = packets.size() - 1; i >= 0; i-- ) {
+            requeuePacket(packets.get(i));
         }
         processQueue();
     }
 
+    protected void onIntentSendRejected(BluetoothService bluetoothService, Packet packet) {
+        // the connection could not take it right now, try again shortly
+        mMetrics.increment(TunnelMetrics.INTENTS_REJECTED);
+        requeuePacket(packet);
+        mHandler.sendEmptyMessageDelayed(ROUTER_MESSAGE_SEND_QUEUED_MESSAGES, 1000);
+    }
+
+    /**
+     * put a packet that couldn't be sent back in front, unless a newer one superseded it
+     */
+    private void requeuePacket(Packet packet) {
+        if (mPackets.offerFirst(packet) != null) {
+            forgetPacket(packet);
+            notifyDropped(packet, DROP_REASON_COALESCED);
+        }
+    }
+
     protected void onConnectComplete(BluetoothService bluetoothService) {
         processQueue();
     }
 
+    protected void onSendReady(BluetoothService bluetoothService) {
+        processQueue();
+    }
+
+    protected TunnelMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return counters, stage timings and the gauges of the queue and both connections
+     */
+    private Bundle getMetricsSnapshot() {
+        Bundle snapshot = new Bundle();
+        mMetrics.writeTo(snapshot);
+        snapshot.putLong("queue.depth", mPackets.size());
+        snapshot.putBoolean("queue.durable", mPacketLog != null);
+        mClientService.writeMetricsTo(snapshot, "client.");
+        mServerService.writeMetricsTo(snapshot, "server.");
+        return snapshot;
+    }
+
+    protected long getEpoch() {
+        return mEpoch;
+    }
+
+    /**
+     * @param epoch    epoch of the sending router
+     * @param packetId id of the received packet
+     * @return false if the packet was delivered before and must not be dispatched again
+     */
+    protected boolean acceptDelivery(long epoch, int packetId) {
+        DedupWindow window = mDelivered.get(epoch);
+        if (window == null) {
+            window = new DedupWindow();
+            mDelivered.put(epoch, window);
+        }
+        return window.accept(packetId);
+    }
+
+    private static long newEpoch() {
+        long epoch = 0;
+        while (epoch == 0) {
+            epoch = new Random().nextLong();
+        }
+        return epoch;
+    }
+
     /**
      * Handle all internal and external messages
      */
     class IncomingHandler extends Handler {
         @Override
         public void handleMessage(Message msg) {
-            Log.d(TAG, "send to service message: " + msg.what);
-            if (msg.what == ROUTER_MESSAGE_BROADCAST_INTENT || msg.what == ROUTER_MESSAGE_STARTSERVICE_INTENT
+            if (TunnelLog.isDebug()) {
+                TunnelLog.d(TAG, "send to service message: " + msg.what);
+            }
+            if (msg.what == ROUTER_MESSAGE_GET_METRICS) {
+                if (msg.replyTo != null) {
+                    Message reply = Message.obtain(null, ROUTER_MESSAGE_METRICS);
+                    reply.setData(getMetricsSnapshot());
+                    try {
+                        msg.replyTo.send(reply);
+                    } catch (RemoteException e) {
+                        Log.d(TAG, "metrics requester is gone");
+                    }
+                }
+            } else if (msg.what == ROUTER_MESSAGE_BROADCAST_INTENT || msg.what == ROUTER_MESSAGE_STARTSERVICE_INTENT
                     || msg.what == ROUTER_MESSAGE_STARTACTIVITY_INTENT) {
                 if ( msg.obj instanceof  Intent ) {
-                    expirePackets();
-
                     Intent intent = (Intent) msg.obj;
-                    Log.d(TAG, "send message: " + intent.toUri(0));
-                    mPackets.add( new Packet(msg.what, intent) );
+                    if (TunnelLog.isDebug()) {
+                        TunnelLog.d(TAG, "send message: " + intent.toUri(0));
+                    }
+                    Packet packet = newPacket(msg.what, intent, msg.arg1, msg.peekData());
+                    packet.setReplyTo(msg.replyTo);
+                    if (!queuePacket(packet)) {
+                        return;
+                    }
+                    if (mPacketLog != null && mPacketLog.append(packet)) {
+                        scheduleSync();
+                    }
                     processQueue();
                 }
             }
@@ -285,11 +643,96 @@ public class RouterService extends Service implements Handler.Callback {
         return getPreferences(context).getString("bt.device.address", null);
     }
 
+    public static void setSendWindow(Context context, int window) {
+        SharedPreferences.Editor edit = getPreferences(context).edit();
+        edit.putInt("router.send.window", window);
+        edit.commit();
+    }
+    public static int getSendWindow(Context context) {
+        return getPreferences(context).getInt("router.send.window", BluetoothService.DEFAULT_SEND_WINDOW);
+    }
+
+    public static void setBatching(Context context, int size, long linger) {
+        SharedPreferences.Editor edit = getPreferences(context).edit();
+        edit.putInt("router.batch.size", size);
+        edit.putLong("router.batch.linger", linger);
+        edit.commit();
+    }
+    public static int getBatchSize(Context context) {
+        return getPreferences(context).getInt("router.batch.size", BluetoothService.DEFAULT_BATCH_SIZE);
+    }
+    public static long getBatchLinger(Context context) {
+        return getPreferences(context).getLong("router.batch.linger", BluetoothService.DEFAULT_BATCH_LINGER);
+    }
+
+    private void applyBatching() {
+        int size = getBatchSize(this);
+        long linger = getBatchLinger(this);
+        mClientService.setBatching(size, linger);
+        mServerService.setBatching(size, linger);
+    }
+
+    /**
+     * keep queued intents on disk so they survive the router being killed.
+     * takes effect the next time the router starts.
+     */
+    public static void setDurableQueue(Context context, boolean durable) {
+        SharedPreferences.Editor edit = getPreferences(context).edit();
+        edit.putBoolean("router.queue.durable", durable);
+        edit.commit();
+    }
+    public static boolean isDurableQueue(Context context) {
+        return getPreferences(context).getBoolean("router.queue.durable", false);
+    }
+
+    /**
+     * @param priorityClass PacketQueue.CLASS_HIGH, CLASS_NORMAL or CLASS_LOW
+     * @param cap           packets the class keeps queued
+     * @param policy        PacketQueue.DROP_OLDEST, DROP_NEWEST or COALESCE, what to do when it is full
+     */
+    public static void setQueuePolicy(Context context, int priorityClass, int cap, int policy) {
+        SharedPreferences.Editor edit = getPreferences(context).edit();
+        edit.putInt("router.queue." + priorityClass + ".cap", cap);
+        edit.putInt("router.queue." + priorityClass + ".policy", policy);
+        edit.commit();
+    }
+    public static int getQueueCap(Context context, int priorityClass) {
+        return getQueueCap(context, priorityClass, isDurableQueue(context));
+    }
+    private static int getQueueCap(Context context, int priorityClass, boolean durable) {
+        int cap = durable ? MAX_DURABLE_PACKETS : MAX_QUEUED_PACKETS;
+        return getPreferences(context).getInt("router.queue." + priorityClass + ".cap", cap);
+    }
+    public static int getQueuePolicy(Context context, int priorityClass) {
+        // bulk intents already queued keep their place over new ones
+        int policy = priorityClass == PacketQueue.CLASS_LOW ? PacketQueue.DROP_NEWEST : PacketQueue.DROP_OLDEST;
+        return getPreferences(context).getInt("router.queue." + priorityClass + ".policy", policy);
+    }
+
+    private void applyQueuePolicies() {
+        for (int priorityClass : new int[]{PacketQueue.CLASS_HIGH, PacketQueue.CLASS_NORMAL, PacketQueue.CLASS_LOW}) {
+            mPackets.setPolicy(priorityClass, getQueueCap(this, priorityClass, isDurableQueue),
+                    getQueuePolicy(this, priorityClass));
+        }
+    }
+
     private SharedPreferences.OnSharedPreferenceChangeListener mPreferenceHandler = new SharedPreferences.OnSharedPreferenceChangeListener() {
         @Override
         public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
             if( "bt.device.address".equals(key)) {
                 mClientService.onConnectionLost();
+            } else if( "router.send.window".equals(key)) {
+                int sendWindow = getSendWindow(RouterService.this);
+                mClientService.setSendWindow(sendWindow);
+                mServerService.setSendWindow(sendWindow);
+            } else if( "router.batch.size".equals(key) || "router.batch.linger".equals(key)) {
+                applyBatching();
+            } else if( "router.queue.durable".equals(key)) {
+                // takes effect the next time the router starts, the caps stay until then
+                Log.d(TAG, "durable queue " + (isDurableQueue(RouterService.this) ? "enabled" : "disabled")
+                        + " after restart");
+            } else if( key != null && key.startsWith("router.queue.") ) {
+                applyQueuePolicies();
             }
         }
     };
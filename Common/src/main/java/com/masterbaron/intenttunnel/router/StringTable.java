@@ -0,0 +1,187 @@
+package com.masterbaron.intenttunnel.router;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Interning table for strings repeated across intent frames, e.g. actions and extra keys.
+ *
+ * The sending side owns an Encoder and decides which id each string gets; the first time
+ * a string is sent it goes out in full together with its id, later frames only carry the
+ * id. The receiving side's Decoder mirrors the assignments it is told about, so both stay
+ * in sync as long as frames using one table are decoded in the order they were encoded.
+ * When the table is full the least recently used string gives up its id.
+ */
+public class StringTable {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    // strings longer than this are always sent in full
+    public static final int MAX_INTERN_LENGTH = 128;
+
+    // how a token is encoded, in the low bits of its header varint
+    private static final int KIND_LITERAL = 0;
+    private static final int KIND_DEFINE = 1;
+    private static final int KIND_REFERENCE = 2;
+
+    private StringTable() {
+    }
+
+    public static class Encoder {
+        private final int mCapacity;
+        private final HashMap<String, Entry> mEntries;
+
+        // most recently used at the head
+        private Entry mHead;
+        private Entry mTail;
+
+        // the peer must clear its table before reading the next frame
+        private boolean mResetPending = false;
+
+        public Encoder() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        public Encoder(int capacity) {
+            mCapacity = capacity;
+            mEntries = new HashMap<String, Entry>(capacity * 2);
+        }
+
+        /**
+         * forget all assignments, e.g. when a frame encoded with this table was never sent.
+         * the next frame tells the peer to do the same.
+         */
+        public void reset() {
+            mEntries.clear();
+            mHead = null;
+            mTail = null;
+            mResetPending = true;
+        }
+
+        /**
+         * @return true, once, if the frame being encoded has to carry a reset
+         */
+        public boolean takeResetPending() {
+            boolean pending = mResetPending;
+            mResetPending = false;
+            return pending;
+        }
+
+        public void write(String value, CodecWriter out) {
+            if (value.length() > MAX_INTERN_LENGTH) {
+                out.writeVarInt(KIND_LITERAL);
+                out.writeString(value);
+                return;
+            }
+
+            Entry entry = mEntries.get(value);
+            if (entry != null) {
+                moveToHead(entry);
+                out.writeVarInt((entry.id << 2) | KIND_REFERENCE);
+                return;
+            }
+
+            int id;
+            if (mEntries.size() < mCapacity) {
+                id = mEntries.size();
+            } else {
+                // reuse the id of the least recently used string
+                Entry evicted = mTail;
+                unlink(evicted);
+                mEntries.remove(evicted.value);
+                id = evicted.id;
+            }
+
+            entry = new Entry(value, id);
+            mEntries.put(value, entry);
+            linkHead(entry);
+            out.writeVarInt((id << 2) | KIND_DEFINE);
+            out.writeString(value);
+        }
+
+        private void moveToHead(Entry entry) {
+            if (entry != mHead) {
+                unlink(entry);
+                linkHead(entry);
+            }
+        }
+
+        private void linkHead(Entry entry) {
+            entry.prev = null;
+            entry.next = mHead;
+            if (mHead != null) {
+                mHead.prev = entry;
+            }
+            mHead = entry;
+            if (mTail == null) {
+                mTail = entry;
+            }
+        }
+
+        private void unlink(Entry entry) {
+            if (entry.prev != null) {
+                entry.prev.next = entry.next;
+            } else {
+                mHead = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.prev = entry.prev;
+            } else {
+                mTail = entry.prev;
+            }
+            entry.prev = null;
+            entry.next = null;
+        }
+    }
+
+    public static class Decoder {
+        private final String[] mValues;
+
+        public Decoder() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        public Decoder(int capacity) {
+            mValues = new String[capacity];
+        }
+
+        public void reset() {
+            for (int i = 0; i < mValues.length; i++) {
+                mValues[i] = null;
+            }
+        }
+
+        public String read(CodecReader in) throws IOException {
+            int header = in.readVarInt();
+            int kind = header & 3;
+            int id = header >>> 2;
+
+            if (kind == KIND_LITERAL) {
+                return in.readString();
+            }
+            if (id >= mValues.length) {
+                throw new IOException("string id out of range: " + id);
+            }
+            if (kind == KIND_DEFINE) {
+                String value = in.readString();
+                mValues[id] = value;
+                return value;
+            }
+            if (kind == KIND_REFERENCE && mValues[id] != null) {
+                return mValues[id];
+            }
+            throw new IOException("unknown string id: " + id);
+        }
+    }
+
+    private static class Entry {
+        final String value;
+        final int id;
+        Entry prev;
+        Entry next;
+
+        Entry(String value, int id) {
+            this.value = value;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.os.Bundle;
+
+import java.util.concurrent.TimeUnit;
+
+import ktlab.lib.connection.LatencyHistogram;
+
+/**
+ * Counters and stage timings of the tunnel, from an intent being queued to it being
+ * dispatched on the other side.
+ *
+ * Counters and timers are slots of fixed arrays picked by constant, so recording is
+ * an increment or a histogram bucket and never allocates. Gauges, values that are
+ * read rather than counted, are added when a snapshot is taken. Recording and
+ * snapshots happen on the main thread.
+ */
+public class TunnelMetrics {
+    // counters
+    public static final int INTENTS_QUEUED = 0;
+    public static final int INTENTS_SENT = 1;
+    public static final int INTENTS_RESENT = 2;
+    public static final int INTENTS_REJECTED = 3;
+    public static final int INTENTS_RECEIVED = 4;
+    public static final int INTENTS_DISPATCHED = 5;
+    public static final int INTENTS_DUPLICATE = 6;
+    public static final int INTENTS_UNREADABLE = 7;
+    public static final int DROPS_EXPIRED = 8;
+    public static final int DROPS_QUEUE_FULL = 9;
+    public static final int DROPS_COALESCED = 10;
+    // frames handed to and taken from the connection, header included
+    public static final int FRAME_BYTES_OUT = 11;
+    public static final int FRAME_BYTES_IN = 12;
+    public static final int CONNECTS = 13;
+    public static final int CONNECT_FAILURES = 14;
+    public static final int CONNECTIONS_LOST = 15;
+
+    private static final String[] COUNTER_NAMES = {
+            "intents.queued", "intents.sent", "intents.resent", "intents.rejected", "intents.received",
+            "intents.dispatched", "intents.duplicate", "intents.unreadable", "drops.expired", "drops.queueFull",
+            "drops.coalesced", "frameBytes.out", "frameBytes.in", "connects", "connect.failures", "connections.lost"};
+
+    // stage timers
+    public static final int STAGE_QUEUE = 0;
+    public static final int STAGE_ENCODE = 1;
+    public static final int STAGE_SEND = 2;
+    public static final int STAGE_DECODE = 3;
+    public static final int STAGE_DISPATCH = 4;
+
+    private static final String[] STAGE_NAMES = {"queue", "encode", "send", "decode", "dispatch"};
+
+    private final long[] mCounters = new long[COUNTER_NAMES.length];
+    private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_NAMES.length];
+
+    public TunnelMetrics() {
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i] = new LatencyHistogram();
+        }
+    }
+
+    public void increment(int counter) {
+        mCounters[counter]++;
+    }
+
+    public void add(int counter, long amount) {
+        mCounters[counter] += amount;
+    }
+
+    public long get(int counter) {
+        return mCounters[counter];
+    }
+
+    /**
+     * @param stage   stage the time was spent in
+     * @param started System.nanoTime() the stage started at
+     */
+    public void recordSince(int stage, long started) {
+        mStages[stage].record(System.nanoTime() - started);
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounters.length; i++) {
+            mCounters[i] = 0;
+        }
+        for (LatencyHistogram stage : mStages) {
+            stage.reset();
+        }
+    }
+
+    /**
+     * @param snapshot receives "counter.<name>" longs and the stage timers,
+     *                 see {@link #putHistogram(Bundle, String, LatencyHistogram)}
+     */
+    public void writeTo(Bundle snapshot) {
+        for (int i = 0; i < mCounters.length; i++) {
+            snapshot.putLong("counter." + COUNTER_NAMES[i], mCounters[i]);
+        }
+        for (int i = 0; i < mStages.length; i++) {
+            putHistogram(snapshot, "stage." + STAGE_NAMES[i], mStages[i]);
+        }
+    }
+
+    /**
+     * add a histogram as "<name>.count" and "<name>.mean", ".p50", ".p90", ".p99" and ".max"
+     * in microseconds
+     */
+    public static void putHistogram(Bundle snapshot, String name, LatencyHistogram histogram) {
+        snapshot.putLong(name + ".count", histogram.getCount());
+        snapshot.putLong(name + ".mean", toMicros(histogram.getMean()));
+        snapshot.putLong(name + ".p50", toMicros(histogram.getPercentile(50)));
+        snapshot.putLong(name + ".p90", toMicros(histogram.getPercentile(90)));
+        snapshot.putLong(name + ".p99", toMicros(histogram.getPercentile(99)));
+        snapshot.putLong(name + ".max", toMicros(histogram.getMax()));
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,117 @@
+package com.masterbaron.intenttunnel.router;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Legacy text form of an Intent, Intent.toUri() with the extras toUri() can't carry,
+ * byte arrays and string and integer lists, moved into Base64 string extras.
+ *
+ * Peers that don't negotiate the binary IntentCodec are sent this form.
+ */
+public class UriIntentCodec {
+    private static final String TAG = UriIntentCodec.class.getSimpleName();
+
+    private static final String ENCODER_KEY_PREFIX = "IntentTunnel[byte]";
+    private static final String ENCODER_KEY_LIST_STRING = "IntentTunnel.StringList";
+    private static final String ENCODER_KEY_LIST_INTEGER = "IntentTunnel.IntegerList";
+
+    public static String encode(Intent intent) {
+        // work on a copy, the packet may have to be sent again
+        intent = new Intent(intent);
+        Bundle extras = intent.getExtras();
+        if ( extras != null ) {
+            Set<String> keys = extras.keySet();
+            for (String key : keys) {
+                Object value = extras.get(key);
+                if (value instanceof byte[]) {
+                    String encoded = Base64.encodeToString((byte[]) value, 0);
+                    intent.putExtra(ENCODER_KEY_PREFIX + key, encoded);
+                    intent.removeExtra(key);
+                } else if (value instanceof List) {
+                    boolean stringList = (extras.getStringArrayList(key) != null);
+                    boolean intList = (extras.getIntegerArrayList(key) != null);
+                    try {
+                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        ObjectOutputStream out = new ObjectOutputStream(baos);
+                        out.writeObject((List) value);
+                        out.close();
+                        baos.close();
+
+                        String encoded = Base64.encodeToString(baos.toByteArray(), 0);
+                        intent.removeExtra(key);
+
+                        if (stringList) {
+                            intent.putExtra(ENCODER_KEY_LIST_STRING + key, encoded);
+                        }
+                        if (intList) {
+                            intent.putExtra(ENCODER_KEY_LIST_INTEGER + key, encoded);
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Invalid URI", e);
+                    }
+                }
+            }
+        }
+
+        return intent.toUri(Intent.URI_INTENT_SCHEME);
+    }
+
+    public static Intent decode(String uri) throws URISyntaxException {
+        Intent intent = Intent.parseUri(uri, Intent.URI_INTENT_SCHEME);
+
+        Bundle extras = intent.getExtras();
+        if ( extras != null ) {
+            Set<String> keys = extras.keySet();
+            for (String key : keys) {
+                if (key.startsWith(ENCODER_KEY_PREFIX)) {
+                    String newKey = key.substring(ENCODER_KEY_PREFIX.length());
+                    intent.putExtra(newKey, Base64.decode(extras.getString(key), 0));
+                    intent.removeExtra(key);
+                } else if (key.startsWith(ENCODER_KEY_LIST_STRING) || key.startsWith(ENCODER_KEY_LIST_INTEGER)) {
+                    try {
+                        String newKey;
+                        if (key.startsWith(ENCODER_KEY_LIST_STRING)) {
+                            newKey = key.substring(ENCODER_KEY_LIST_STRING.length());
+                        } else if (key.startsWith(ENCODER_KEY_LIST_INTEGER)) {
+                            newKey = key.substring(ENCODER_KEY_LIST_INTEGER.length());
+                        } else {
+                            throw new IOException("Invalid URI");
+                        }
+
+                        ByteArrayInputStream bais = new ByteArrayInputStream(Base64.decode(extras.getString(key), 0));
+                        ObjectInputStream in = new ObjectInputStream(bais);
+                        ArrayList<?> list = (ArrayList<?>) in.readObject();
+                        intent.removeExtra(key);
+                        if (key.startsWith(ENCODER_KEY_LIST_STRING)) {
+                            intent.putExtra(newKey, (ArrayList<String>) list);
+                        } else if (key.startsWith(ENCODER_KEY_LIST_INTEGER)) {
+                            intent.putExtra(newKey, (ArrayList<Integer>) list);
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Invalid URI", e);
+                    } catch (ClassNotFoundException e) {
+                        Log.e(TAG, "Invalid URI", e);
+                    }
+                } else if (key.startsWith(ENCODER_KEY_LIST_INTEGER)) {
+                    String newKey = key.substring(ENCODER_KEY_LIST_INTEGER.length());
+                    byte[] list = Base64.decode(extras.getString(key), 0);
+                    intent.removeExtra(key);
+                }
+            }
+        }
+        return intent;
+    }
+}